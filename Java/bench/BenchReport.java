@@ -0,0 +1,99 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Results of a benchmark run, written as one JSON object so runs can be compared:
+ * {"benchmark": NAME, "time": ISO time, "java": version, "cores": N, "params": {...},
+ *  "results": {CASE: {METRIC: number, ...}, ...}}
+ */
+public class BenchReport {
+
+    private final String benchmark;
+    private final Map<String, Object> params = new LinkedHashMap<String, Object>();
+    private final Map<String, Map<String, Number>> results = new LinkedHashMap<String, Map<String, Number>>();
+
+    /**
+     * Constructor.
+     * @param benchmark Name of the benchmark program
+     */
+    public BenchReport(String benchmark) {
+        this.benchmark = benchmark;
+    }
+
+    /**
+     * Record a parameter of the run.
+     * @param name Parameter name
+     * @param value Number or string
+     */
+    public void param(String name, Object value) {
+        params.put(name, value);
+    }
+
+    /**
+     * Record a measured value.
+     * @param name Case measured, such as an operation
+     * @param metric Name of the value, with its unit, such as "p99Micros"
+     * @param value The value
+     */
+    public void result(String name, String metric, Number value) {
+        results.computeIfAbsent(name, key -> new LinkedHashMap<String, Number>()).put(metric, value);
+    }
+
+    /**
+     * Write the report, creating the parent directory if needed.
+     * @param file File to write
+     */
+    public void write(File file) throws IOException {
+        if (file.getParentFile() != null) file.getParentFile().mkdirs();
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"benchmark\": ").append(quote(benchmark)).append(",\n");
+        json.append("  \"time\": ").append(quote(Instant.now().toString())).append(",\n");
+        json.append("  \"java\": ").append(quote(System.getProperty("java.version"))).append(",\n");
+        json.append("  \"cores\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        json.append("  \"params\": {");
+        String separator = "";
+        for (Map.Entry<String, Object> param : params.entrySet()) {
+            json.append(separator).append(quote(param.getKey())).append(": ")
+                    .append(param.getValue() instanceof Number ? number((Number) param.getValue()) : quote(String.valueOf(param.getValue())));
+            separator = ", ";
+        }
+        json.append("},\n  \"results\": {");
+        separator = "\n";
+        for (Map.Entry<String, Map<String, Number>> result : results.entrySet()) {
+            json.append(separator).append("    ").append(quote(result.getKey())).append(": {");
+            String metricSeparator = "";
+            for (Map.Entry<String, Number> metric : result.getValue().entrySet()) {
+                json.append(metricSeparator).append(quote(metric.getKey())).append(": ").append(number(metric.getValue()));
+                metricSeparator = ", ";
+            }
+            json.append("}");
+            separator = ",\n";
+        }
+        json.append("\n  }\n}\n");
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        System.out.println("Results written to " + file);
+    }
+
+    private static String number(Number value) {
+        double d = value.doubleValue();
+        if (Double.isNaN(d) || Double.isInfinite(d)) return "null";
+        return d == Math.rint(d) && Math.abs(d) < 1e15 ? Long.toString((long) d) : String.format(Locale.ROOT, "%.3f", d);
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') quoted.append('\\');
+            if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,78 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Measures block reads per second from a BlockStore with and without the block cache, with
+ * 1, 2, 4, ... threads up to the number of cores. Block popularity follows a Zipf distribution,
+ * like downloads of a few popular files by many new clients.
+ * The cache holds a tenth of the stored bytes.
+ *
+ * Usage: java BlockCacheBench [blocks] [block size] [reads per thread]
+ */
+public class BlockCacheBench {
+
+    public static void main(String[] args) throws Exception {
+        int blockCount = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int reads = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+        File dir = Files.createTempDirectory("cachebench").toFile();
+        BlockHash[] hashes = new BlockHash[blockCount];
+        Random random = new Random(42);
+        BlockStore writer = new BlockStore(dir, 256L * 1024 * 1024);
+        byte[] blockData = new byte[blockSize];
+        for (int i = 0; i < blockCount; i++) {
+            random.nextBytes(blockData);
+            hashes[i] = BlockHash.of(blockData);
+            writer.put(hashes[i], blockData);
+        }
+        writer.close();
+
+        int[] order = zipf(blockCount, reads, 1.0, random);
+        long cacheBytes = (long) blockCount * blockSize / 10;
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (long capacity : new long[] {0, cacheBytes}) {
+            BlockStore store = new BlockStore(dir, 256L * 1024 * 1024, capacity);
+            for (int threads = 1; threads <= cores; threads *= 2) {
+                List<Thread> workers = new ArrayList<Thread>();
+                for (int t = 0; t < threads; t++) {
+                    int offset = t * 7919;
+                    workers.add(new Thread(() -> {
+                        try {
+                            for (int i = 0; i < reads; i++) {
+                                store.get(hashes[order[(offset + i) % reads]]);
+                            }
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }));
+                }
+                long start = System.nanoTime();
+                for (Thread worker : workers) worker.start();
+                for (Thread worker : workers) worker.join();
+                double elapsed = (System.nanoTime() - start) / 1e9;
+                Hashtable<String, Object> stats = store.cacheStats();
+                System.out.println(String.format("%-16s %2d threads: %10.0f reads/s%s",
+                        capacity == 0 ? "no cache," : (capacity >> 20) + " MB cache,", threads, threads * reads / elapsed,
+                        stats.isEmpty() ? "" : String.format("   hit rate %.3f", stats.get("hitRate"))));
+            }
+            store.close();
+        }
+    }
+
+    // Indexes of blocks to read, block i being read in proportion to 1 / (i + 1)^exponent
+    private static int[] zipf(int blockCount, int reads, double exponent, Random random) {
+        double[] cumulative = new double[blockCount];
+        double sum = 0;
+        for (int i = 0; i < blockCount; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cumulative[i] = sum;
+        }
+        int[] order = new int[reads];
+        for (int i = 0; i < reads; i++) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            order[i] = Math.min(blockCount - 1, index < 0 ? -index - 1 : index);
+        }
+        return order;
+    }
+}
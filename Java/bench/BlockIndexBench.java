@@ -0,0 +1,127 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compares the packed hash types with the hex String representation they replace:
+ * heap per million indexed blocks and per million hashes in a hash list, and the rate of
+ * hasblocks-style lookups of hex hash values, with and without a BlockFilter in front of the index.
+ *
+ * Usage: java BlockIndexBench [blocks]
+ */
+public class BlockIndexBench {
+
+    public static void main(String[] args) {
+        int blocks = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Random random = new Random(42);
+        String[] hexes = new String[blocks];
+        byte[] data = new byte[64];
+        for (int i = 0; i < blocks; i++) {
+            random.nextBytes(data);
+            hexes[i] = BlockHash.of(data).toHex();
+        }
+        double perMillion = 1_000_000.0 / blocks / (1024 * 1024);
+
+        long before = usedHeap();
+        Map<String, BlockIndex.Location> stringIndex = new ConcurrentHashMap<String, BlockIndex.Location>();
+        for (int i = 0; i < blocks; i++) {
+            // Copy the key so the hex strings kept for lookups are not counted as shared
+            stringIndex.put(new String(hexes[i].toCharArray()), new BlockIndex.Location(0, i * 4140L, 4096));
+        }
+        long stringBytes = usedHeap() - before;
+
+        before = usedHeap();
+        BlockIndex blockIndex = new BlockIndex();
+        for (int i = 0; i < blocks; i++) {
+            blockIndex.putIfAbsent(BlockHash.fromHex(hexes[i]), new BlockIndex.Location(0, i * 4140L, 4096));
+        }
+        long packedBytes = usedHeap() - before;
+        BlockFilter filter = new BlockFilter(blocks);
+        blockIndex.forEach((hash, location) -> filter.add(hash));
+        System.out.println(String.format("Block index heap per million blocks: String map %.1f MB, BlockIndex %.1f MB, BlockFilter %.1f MB",
+                stringBytes * perMillion, packedBytes * perMillion, filter.bytes() * perMillion));
+
+        // Half of the looked up hashes are stored, as for a partly uploaded file
+        String[] lookups = new String[blocks];
+        for (int i = 0; i < blocks; i++) {
+            if (i % 2 == 0) {
+                lookups[i] = hexes[random.nextInt(blocks)];
+            } else {
+                random.nextBytes(data);
+                lookups[i] = BlockHash.of(data).toHex();
+            }
+        }
+        for (int round = 0; round < 3; round++) {
+            // Fresh strings per round, as the server gets them from each request, so no hash code is cached
+            String[] requested = new String[blocks];
+            for (int i = 0; i < blocks; i++) {
+                requested[i] = new String(lookups[i].toCharArray());
+            }
+            long start = System.nanoTime();
+            int found = 0;
+            for (String hex : requested) {
+                if (stringIndex.containsKey(hex)) found++;
+            }
+            double stringRate = blocks / ((System.nanoTime() - start) / 1e9);
+            start = System.nanoTime();
+            int packedFound = 0;
+            for (String hex : requested) {
+                if (blockIndex.contains(BlockHash.fromHex(hex))) packedFound++;
+            }
+            double packedRate = blocks / ((System.nanoTime() - start) / 1e9);
+            BlockHash[] parsed = new BlockHash[blocks];
+            for (int i = 0; i < blocks; i++) {
+                parsed[i] = BlockHash.fromHex(requested[i]);
+            }
+            start = System.nanoTime();
+            int indexFound = 0;
+            for (BlockHash hash : parsed) {
+                if (blockIndex.contains(hash)) indexFound++;
+            }
+            double indexRate = blocks / ((System.nanoTime() - start) / 1e9);
+            start = System.nanoTime();
+            int filteredFound = 0;
+            int filterPositives = 0;
+            for (BlockHash hash : parsed) {
+                if (filter.mightContain(hash)) {
+                    filterPositives++;
+                    if (blockIndex.contains(hash)) filteredFound++;
+                }
+            }
+            double filteredRate = blocks / ((System.nanoTime() - start) / 1e9);
+            if (found != packedFound || found != indexFound || found != filteredFound) {
+                throw new IllegalStateException("Indexes disagree: " + found + ", " + packedFound + ", "
+                        + indexFound + " and " + filteredFound + " found");
+            }
+            System.out.println(String.format("hasblocks lookups: String map %,.0f/s, BlockIndex %,.0f/s (hex parsing included)",
+                    stringRate, packedRate));
+            System.out.println(String.format("parsed lookups: BlockIndex %,.0f/s, BlockFilter + BlockIndex %,.0f/s (false positives %.2f%%)",
+                    indexRate, filteredRate, 100.0 * (filterPositives - found) / (blocks - found)));
+        }
+        stringIndex = null;
+        blockIndex = null;
+
+        Vector<String> hashlist = new Vector<String>(Arrays.asList(hexes));
+        before = usedHeap();
+        Vector<String> copy = new Vector<String>();
+        for (String hex : hashlist) {
+            copy.add(new String(hex.toCharArray()));
+        }
+        long vectorBytes = usedHeap() - before;
+        before = usedHeap();
+        HashList packed = HashList.fromHex(hashlist);
+        long listBytes = usedHeap() - before;
+        System.out.println(String.format("Hash list heap per million hashes: Vector<String> %.1f MB, HashList %.1f MB",
+                vectorBytes * perMillion, listBytes * perMillion));
+        if (copy.size() != packed.size() || !packed.toHex().equals(hashlist)) {
+            throw new IllegalStateException("HashList does not round-trip");
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,128 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Compares fixed and content-defined chunking.
+ * A random file is chunked, then edited by inserting, overwriting or deleting a few bytes,
+ * and chunked again. The bytes of blocks the server does not already have are what a sync
+ * of the edit uploads. Chunking throughput covers finding the cut points only, not hashing.
+ *
+ * Usage: java ChunkingBench [file MB] [block size]
+ */
+public class ChunkingBench {
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        Random random = new Random(42);
+        byte[] data = new byte[megabytes * 1024 * 1024];
+        random.nextBytes(data);
+
+        Chunker fixed = Chunker.fixed(blockSize);
+        Chunker cdc = Chunker.contentDefined(blockSize / 4, blockSize, blockSize * 4);
+        System.out.println(String.format("%d MB file, %d byte blocks", megabytes, blockSize));
+        throughput("fixed", fixed, data);
+        throughput("cdc", cdc, data);
+
+        String[] edits = {"insert", "overwrite", "delete"};
+        for (String edit : edits) {
+            byte[] edited = edit(data, edit, random);
+            System.out.println(String.format("%-9s fixed: %,12d bytes to upload   cdc: %,12d bytes to upload",
+                    edit, uploadBytes(fixed, data, edited), uploadBytes(cdc, data, edited)));
+        }
+    }
+
+    /**
+     * Apply 10 small edits of the given kind at random positions.
+     */
+    private static byte[] edit(byte[] data, String kind, Random random) {
+        byte[] result = data;
+        for (int i = 0; i < 10; i++) {
+            int position = random.nextInt(result.length - 100);
+            byte[] next;
+            switch (kind) {
+                case "insert":
+                    next = new byte[result.length + 10];
+                    System.arraycopy(result, 0, next, 0, position);
+                    System.arraycopy(result, position, next, position + 10, result.length - position);
+                    break;
+                case "delete":
+                    next = new byte[result.length - 10];
+                    System.arraycopy(result, 0, next, 0, position);
+                    System.arraycopy(result, position + 10, next, position, next.length - position);
+                    break;
+                default:
+                    next = result.clone();
+                    break;
+            }
+            for (int j = 0; j < 10 && !kind.equals("delete"); j++) {
+                next[position + j] = (byte) random.nextInt();
+            }
+            result = next;
+        }
+        return result;
+    }
+
+    private static void throughput(String name, Chunker chunker, byte[] data) throws IOException {
+        File file = write(data);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            chunker.offsets(channel); // Warm up
+            int runs = 5;
+            long start = System.nanoTime();
+            long[] offsets = null;
+            for (int i = 0; i < runs; i++) {
+                offsets = chunker.offsets(channel);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("%-5s chunking: %8.1f MB/s, %d blocks, %d bytes average",
+                    name, runs * (double) data.length / seconds / 1e6, offsets.length - 1, data.length / (offsets.length - 1)));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Bytes of the blocks of the edited data that are not blocks of the original data.
+     */
+    private static long uploadBytes(Chunker chunker, byte[] original, byte[] edited) throws Exception {
+        Set<String> stored = blocks(chunker, original).keySet();
+        long bytes = 0;
+        for (Map.Entry<String, Integer> block : blocks(chunker, edited).entrySet()) {
+            if (!stored.contains(block.getKey())) {
+                bytes += block.getValue();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Map the hash of every block of the data to its length.
+     */
+    private static Map<String, Integer> blocks(Chunker chunker, byte[] data) throws Exception {
+        File file = write(data);
+        Map<String, Integer> blocks = new HashMap<String, Integer>();
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long[] offsets = chunker.offsets(channel);
+            for (int i = 0; i + 1 < offsets.length; i++) {
+                digest.update(ByteBuffer.wrap(data, (int) offsets[i], (int) (offsets[i + 1] - offsets[i])));
+                blocks.put(Base64.getEncoder().encodeToString(digest.digest()), (int) (offsets[i + 1] - offsets[i]));
+            }
+        } finally {
+            file.delete();
+        }
+        return blocks;
+    }
+
+    private static File write(byte[] data) throws IOException {
+        File file = File.createTempFile("chunkbench", ".bin");
+        Files.write(file.toPath(), data);
+        return file;
+    }
+}
@@ -0,0 +1,75 @@
+import java.util.*;
+
+/**
+ * Measures each block codec on compressible and incompressible blocks.
+ * The text-like data is random words from a small vocabulary, standing in for source
+ * files and documents. The random data stands in for media and archives, where the
+ * codecs should fall back to storing blocks uncompressed.
+ *
+ * Usage: java CompressionBench [data MB] [block size]
+ */
+public class CompressionBench {
+
+    private static final String[] WORDS = {"the", "block", "store", "file", "version", "server", "client",
+            "sync", "hash", "list", "index", "metadata", "update", "return", "public", "static", "void",
+            "int", "String", "Vector", "if", "for", "while", "new", "null", "true", "false", "{", "}", ";"};
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        Random random = new Random(42);
+
+        byte[] text = new byte[megabytes * 1024 * 1024];
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < text.length) {
+            builder.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(8) == 0 ? '\n' : ' ');
+        }
+        System.arraycopy(builder.toString().getBytes("UTF-8"), 0, text, 0, text.length);
+        byte[] noise = new byte[text.length];
+        random.nextBytes(noise);
+
+        System.out.println(String.format("%d MB of data, %d byte blocks", megabytes, blockSize));
+        for (String codec : BlockCodec.names()) {
+            measure("text", codec, split(text, blockSize));
+            measure("random", codec, split(noise, blockSize));
+        }
+    }
+
+    private static List<byte[]> split(byte[] data, int blockSize) {
+        List<byte[]> blocks = new ArrayList<byte[]>();
+        for (int offset = 0; offset < data.length; offset += blockSize) {
+            blocks.add(Arrays.copyOfRange(data, offset, Math.min(offset + blockSize, data.length)));
+        }
+        return blocks;
+    }
+
+    private static void measure(String dataName, String codecName, List<byte[]> blocks) throws Exception {
+        int codec = BlockCodec.id(codecName);
+        List<byte[]> encoded = new ArrayList<byte[]>(blocks.size());
+        long rawBytes = 0;
+        long encodedBytes = 0;
+        // Warm up once, then time the second round
+        for (byte[] block : blocks) BlockCodec.encode(block, codec);
+        long start = System.nanoTime();
+        for (byte[] block : blocks) {
+            byte[] result = BlockCodec.encode(block, codec);
+            encoded.add(result);
+            rawBytes += block.length;
+            encodedBytes += result.length;
+        }
+        double encodeSeconds = (System.nanoTime() - start) / 1e9;
+
+        for (byte[] block : encoded) BlockCodec.decode(block);
+        start = System.nanoTime();
+        for (int i = 0; i < encoded.size(); i++) {
+            if (BlockCodec.decode(encoded.get(i)).length != blocks.get(i).length) {
+                throw new AssertionError("Decoded block has the wrong length");
+            }
+        }
+        double decodeSeconds = (System.nanoTime() - start) / 1e9;
+
+        double megabytes = rawBytes / (1024.0 * 1024);
+        System.out.println(String.format("%-6s %-12s ratio %5.2f   compress %8.1f MB/s   decompress %8.1f MB/s",
+                dataName, codecName, (double) rawBytes / encodedBytes, megabytes / encodeSeconds, megabytes / decodeSeconds));
+    }
+}
@@ -0,0 +1,72 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Measures how blocks spread over block servers and how many move when a server is added,
+ * for the hash ring against placing blocks by hash modulo server count, as the Python client does.
+ * Balance is the largest server's share of blocks over the average share.
+ *
+ * Usage: java HashRingBench [blocks] [max servers]
+ */
+public class HashRingBench {
+
+    public static void main(String[] args) {
+        int blockCount = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int maxNodes = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        Random random = new Random(42);
+        BlockHash[] hashes = new BlockHash[blockCount];
+        byte[] data = new byte[16];
+        for (int i = 0; i < blockCount; i++) {
+            random.nextBytes(data);
+            hashes[i] = BlockHash.of(data);
+        }
+
+        System.out.println(String.format("%,d blocks", blockCount));
+        for (int virtualNodes : new int[] {1, 16, 128, 512}) {
+            for (int nodes = 1; nodes < maxNodes; nodes *= 2) {
+                HashRing before = new HashRing(addresses(nodes), virtualNodes);
+                HashRing after = new HashRing(addresses(nodes + 1), virtualNodes);
+                int moved = 0;
+                Map<String, Integer> counts = new HashMap<String, Integer>();
+                for (BlockHash hash : hashes) {
+                    String node = after.node(hash);
+                    if (!before.node(hash).equals(node)) moved++;
+                    counts.merge(node, 1, Integer::sum);
+                }
+                System.out.println(String.format("ring, %3d vnodes, %d -> %d servers: moved %5.1f%% (ideal %5.1f%%), balance %.2f",
+                        virtualNodes, nodes, nodes + 1, 100.0 * moved / blockCount, 100.0 / (nodes + 1),
+                        balance(counts.values(), nodes + 1, blockCount)));
+            }
+        }
+        for (int nodes = 1; nodes < maxNodes; nodes *= 2) {
+            int moved = 0;
+            int[] counts = new int[nodes + 1];
+            for (BlockHash hash : hashes) {
+                int node = modulo(hash, nodes + 1);
+                if (modulo(hash, nodes) != node) moved++;
+                counts[node]++;
+            }
+            List<Integer> countList = new ArrayList<Integer>();
+            for (int count : counts) countList.add(count);
+            System.out.println(String.format("modulo,             %d -> %d servers: moved %5.1f%% (ideal %5.1f%%), balance %.2f",
+                    nodes, nodes + 1, 100.0 * moved / blockCount, 100.0 / (nodes + 1), balance(countList, nodes + 1, blockCount)));
+        }
+    }
+
+    private static List<String> addresses(int count) {
+        List<String> addresses = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            addresses.add("localhost:" + (8081 + i));
+        }
+        return addresses;
+    }
+
+    private static int modulo(BlockHash hash, int nodes) {
+        ByteBuffer buffer = ByteBuffer.wrap(hash.toBytes());
+        return (int) Long.remainderUnsigned(buffer.getLong(24), nodes);
+    }
+
+    private static double balance(Collection<Integer> counts, int nodes, int blockCount) {
+        return Collections.max(counts) / ((double) blockCount / nodes);
+    }
+}
@@ -0,0 +1,206 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Measures the client and server hot paths one call at a time, without any transport:
+ * Client.hash, Client.splitFile, the index write and read, and the Server putblock, getblock,
+ * hasblocks and updatefile RPC methods called directly on an in-process Server.
+ *
+ * Each case runs for WARMUP_ITERATIONS untimed iterations so the JIT settles, then for
+ * MEASURED_ITERATIONS, each ITERATION_MILLIS long. The mean, standard deviation and min of the
+ * per-iteration ops/s are reported, with the mean time per call and, where it applies, MB/s.
+ * Results are also written as JSON (see BenchReport), so runs can be compared.
+ *
+ * Usage: java HotPathBench [results file]
+ */
+public class HotPathBench {
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final long ITERATION_MILLIS = 1000;
+
+    private static final int SPLIT_FILE_MB = 64;
+    private static final int INDEX_FILES = 10000;
+    private static final int INDEX_HASHES = 16;
+    private static final int HASBLOCKS_BATCH = 100;
+
+    private static final BenchReport report = new BenchReport("HotPathBench");
+
+    private interface Operation {
+        /**
+         * Run one call.
+         * @return Bytes processed by the call, or 0
+         */
+        long run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File results = new File(args.length > 0 ? args[0] : "hotpaths.json");
+        File dir = Files.createTempDirectory("hotpathbench").toFile();
+        Random random = new Random(42);
+        report.param("warmupIterations", WARMUP_ITERATIONS);
+        report.param("measuredIterations", MEASURED_ITERATIONS);
+        report.param("iterationMillis", ITERATION_MILLIS);
+
+        // Client.hash
+        for (int size : new int[] {4096, 65536}) {
+            byte[] block = new byte[size];
+            random.nextBytes(block);
+            measure("Client.hash/" + size, () -> {
+                Client.hash(block);
+                return block.length;
+            });
+        }
+
+        // Client.splitFile, hashing with the common fork-join pool like a sync does
+        File file = new File(dir, "split.bin");
+        try (OutputStream out = new FileOutputStream(file)) {
+            byte[] chunk = new byte[1024 * 1024];
+            for (int i = 0; i < SPLIT_FILE_MB; i++) {
+                random.nextBytes(chunk);
+                out.write(chunk);
+            }
+        }
+        report.param("splitFileMB", SPLIT_FILE_MB);
+        for (String chunking : new String[] {"fixed", "cdc"}) {
+            Client.configure(4096, new String[] {"--chunking=" + chunking});
+            measure("Client.splitFile/" + chunking, () -> {
+                Client.splitFile(file);
+                return file.length();
+            });
+        }
+        file.delete();
+
+        // Client.writeIndex and Client.getIndexMetadata
+        Map<String, Vector> index = new Hashtable<String, Vector>();
+        for (int i = 0; i < INDEX_FILES; i++) {
+            Vector<String> hashlist = new Vector<String>();
+            for (int j = 0; j < INDEX_HASHES; j++) {
+                hashlist.add(new BlockHash(random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong()).toHex());
+            }
+            Vector fileinfo = new Vector();
+            fileinfo.add(1);
+            fileinfo.add(hashlist);
+            index.put("file" + i, fileinfo);
+        }
+        File indexFile = new File(dir, "index.bin");
+        report.param("indexFiles", INDEX_FILES);
+        report.param("indexHashesPerFile", INDEX_HASHES);
+        measure("Client.writeIndex", () -> {
+            Client.writeIndex(index, indexFile);
+            return indexFile.length();
+        });
+        measure("Client.getIndexMetadata", () -> {
+            if (Client.getIndexMetadata(indexFile).size() != INDEX_FILES) {
+                throw new IllegalStateException("Index read back the wrong number of files");
+            }
+            return indexFile.length();
+        });
+
+        // Server RPC methods, called directly
+        BlockStore blockStore = new BlockStore(new File(dir, "blocks"), 1L << 30);
+        MetadataStore metaStore = new MetadataStore(new File(dir, "meta"), false, 10, 100000);
+        Server server = new Server(blockStore, metaStore, null, null);
+        byte[] template = new byte[4096];
+        random.nextBytes(template);
+        long[] counter = {0};
+        measure("Server.putblock/4096", () -> {
+            // A fresh block every call, so puts are never deduplicated
+            byte[] block = template.clone();
+            ByteBuffer.wrap(block).putLong(counter[0]++);
+            server.putblock(block);
+            return block.length;
+        });
+
+        List<String> stored = new ArrayList<String>();
+        for (int i = 0; i < 10000; i++) {
+            byte[] block = template.clone();
+            ByteBuffer.wrap(block).putLong(-1 - i);
+            server.putblock(block);
+            stored.add(Client.hash(block));
+        }
+        int[] next = {0};
+        measure("Server.getblock/4096", () -> {
+            byte[] block = server.getblock(stored.get(next[0]++ % stored.size()));
+            return block.length;
+        });
+
+        // Half of the hashes stored, half missing, like the blocks of an edited file
+        Vector<String> hashlist = new Vector<String>();
+        for (int i = 0; i < HASBLOCKS_BATCH; i++) {
+            hashlist.add(i % 2 == 0 ? stored.get(i)
+                    : new BlockHash(random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong()).toHex());
+        }
+        measure("Server.hasblocks/" + HASBLOCKS_BATCH, () -> {
+            if (server.hasblocks(hashlist).size() != HASBLOCKS_BATCH / 2) {
+                throw new IllegalStateException("hasblocks found the wrong number of blocks");
+            }
+            return 0;
+        });
+
+        Vector<String> fileHashes = new Vector<String>(stored.subList(0, INDEX_HASHES));
+        int[] version = {0};
+        measure("Server.updatefile", () -> {
+            if (!server.updatefile("file", ++version[0], fileHashes)) {
+                throw new IllegalStateException("updatefile rejected version " + version[0]);
+            }
+            return 0;
+        });
+
+        blockStore.close();
+        metaStore.close();
+        report.write(results);
+    }
+
+    /**
+     * Run warmup then measured iterations of an operation, and report them.
+     */
+    private static void measure(String name, Operation operation) throws Exception {
+        double[] opsPerSecond = new double[MEASURED_ITERATIONS];
+        long totalOps = 0;
+        long totalBytes = 0;
+        long totalNanos = 0;
+        for (int iteration = -WARMUP_ITERATIONS; iteration < MEASURED_ITERATIONS; iteration++) {
+            long ops = 0;
+            long bytes = 0;
+            long start = System.nanoTime();
+            long deadline = start + ITERATION_MILLIS * 1000000;
+            long now;
+            do {
+                bytes += operation.run();
+                ops++;
+                now = System.nanoTime();
+            } while (now < deadline);
+            if (iteration >= 0) {
+                opsPerSecond[iteration] = ops / ((now - start) / 1e9);
+                totalOps += ops;
+                totalBytes += bytes;
+                totalNanos += now - start;
+            }
+        }
+        double mean = 0;
+        double min = Double.MAX_VALUE;
+        for (double value : opsPerSecond) {
+            mean += value / MEASURED_ITERATIONS;
+            min = Math.min(min, value);
+        }
+        double variance = 0;
+        for (double value : opsPerSecond) {
+            variance += (value - mean) * (value - mean) / Math.max(1, MEASURED_ITERATIONS - 1);
+        }
+        double stddev = Math.sqrt(variance);
+        double microsPerOp = totalNanos / 1e3 / totalOps;
+        double megabytesPerSecond = totalBytes / (1024.0 * 1024.0) / (totalNanos / 1e9);
+        System.out.println(String.format("%-28s %12.1f ops/s +- %5.1f%%  %10.2f us/op%s", name, mean,
+                100 * stddev / mean, microsPerOp, totalBytes > 0 ? String.format("  %8.1f MB/s", megabytesPerSecond) : ""));
+        report.result(name, "opsPerSecond", mean);
+        report.result(name, "opsPerSecondStddev", stddev);
+        report.result(name, "opsPerSecondMin", min);
+        report.result(name, "microsPerOp", microsPerOp);
+        if (totalBytes > 0) report.result(name, "megabytesPerSecond", megabytesPerSecond);
+    }
+}
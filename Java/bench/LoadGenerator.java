@@ -0,0 +1,222 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.xmlrpc.WebServer;
+
+/**
+ * Load generator: many clients syncing against one Server started in this process.
+ *
+ * Every client thread has its own connection and repeats the calls of a sync: it lists the
+ * changes since its cursor with getfileinfomapsince, then either edits one of its files or
+ * downloads the file of another client. An edit keeps 3/4 of the file's blocks and replaces the
+ * rest with new random blocks, asks hasblocks which are stored, uploads the missing ones with
+ * putblocks and commits the new version with updatefile. A download fetches the blocks with
+ * getblocks. Blocks are not written to disk on the client side.
+ *
+ * After WARMUP_SECONDS, the latency of every call is recorded per RPC method on the client side.
+ * The report gives ops/s (calls and syncs) and p50/p99/max in microseconds, plus the server-side
+ * rpc.METHOD latencies from Metrics. Results are also written as JSON (see BenchReport).
+ *
+ * Usage: java LoadGenerator [clients] [seconds] [block size] [xml-rpc|binary] [results file]
+ */
+public class LoadGenerator {
+
+    private static final int XML_RPC_PORT = 18400;
+    private static final int BINARY_PORT = 18401;
+    private static final int WARMUP_SECONDS = 5;
+    private static final int FILES_PER_CLIENT = 4;
+    private static final int BLOCKS_PER_FILE = 32;
+    private static final double WRITE_FRACTION = 0.3;
+
+    // Map<operation, client-side latency in microseconds>
+    private static final Map<String, Metrics.Histogram> latencies = new TreeMap<String, Metrics.Histogram>();
+    private static final AtomicBoolean measuring = new AtomicBoolean();
+    private static final AtomicLong errors = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int blockSize = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+        String transport = args.length > 3 ? args[3] : "xml-rpc";
+        File results = new File(args.length > 4 ? args[4] : "load.json");
+        if (!transport.equals("xml-rpc") && !transport.equals("binary")) {
+            System.err.println("Unknown transport: " + transport);
+            System.exit(1);
+        }
+        for (String operation : new String[] {"getfileinfomapsince", "hasblocks", "putblocks", "updatefile", "getblocks", "sync"}) {
+            latencies.put(operation, new Metrics.Histogram());
+        }
+
+        File dir = Files.createTempDirectory("loadgenerator").toFile();
+        BlockStore blockStore = new BlockStore(new File(dir, "blocks"), 1L << 30);
+        MetadataStore metaStore = new MetadataStore(new File(dir, "meta"), false, 10, 100000);
+        Server handler = new Server(blockStore, metaStore, null, null);
+        WebServer webServer = new WebServer(XML_RPC_PORT);
+        webServer.addHandler("surfstore", new Metrics.TimedHandler(handler));
+        webServer.start();
+        BinaryServer binaryServer = new BinaryServer(BINARY_PORT, handler, blockStore);
+        binaryServer.start();
+        System.out.println(String.format("%d clients over %s, %d byte blocks, %d s after %d s warmup",
+                clients, transport, blockSize, seconds, WARMUP_SECONDS));
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch done = new CountDownLatch(clients);
+        for (int id = 0; id < clients; id++) {
+            int client = id;
+            Thread thread = new Thread(() -> {
+                try {
+                    RpcClient connection = transport.equals("binary")
+                            ? new BinaryConnection("localhost", BINARY_PORT)
+                            : new XmlRpcConnection("http://localhost:" + XML_RPC_PORT + "/RPC2");
+                    runClient(client, clients, connection, blockSize, running);
+                } catch (Exception e) {
+                    System.err.println("Client " + client + ": " + e);
+                    errors.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }, "load-client-" + id);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        Thread.sleep(WARMUP_SECONDS * 1000L);
+        measuring.set(true);
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        measuring.set(false);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        running.set(false);
+        done.await();
+
+        BenchReport report = new BenchReport("LoadGenerator");
+        report.param("clients", clients);
+        report.param("seconds", seconds);
+        report.param("warmupSeconds", WARMUP_SECONDS);
+        report.param("blockSize", blockSize);
+        report.param("transport", transport);
+        report.param("filesPerClient", FILES_PER_CLIENT);
+        report.param("blocksPerFile", BLOCKS_PER_FILE);
+        report.param("writeFraction", WRITE_FRACTION);
+        report.param("errors", errors.get());
+        SortedMap<String, Object> server = Metrics.snapshot();
+        System.out.println(String.format("%-20s %10s %10s %10s %10s %12s %12s",
+                "operation", "ops/s", "p50 us", "p99 us", "max us", "server p50", "server p99"));
+        for (Map.Entry<String, Metrics.Histogram> latency : latencies.entrySet()) {
+            String operation = latency.getKey();
+            Metrics.Histogram histogram = latency.getValue();
+            double opsPerSecond = histogram.count() / elapsed;
+            Object serverP50 = server.get("rpc." + operation + ".p50");
+            Object serverP99 = server.get("rpc." + operation + ".p99");
+            System.out.println(String.format("%-20s %10.1f %10d %10d %10d %12s %12s", operation, opsPerSecond,
+                    histogram.percentile(0.50), histogram.percentile(0.99), histogram.max(),
+                    serverP50 != null ? String.format("%.0f", (Double) serverP50) : "-",
+                    serverP99 != null ? String.format("%.0f", (Double) serverP99) : "-"));
+            report.result(operation, "count", histogram.count());
+            report.result(operation, "opsPerSecond", opsPerSecond);
+            report.result(operation, "p50Micros", histogram.percentile(0.50));
+            report.result(operation, "p99Micros", histogram.percentile(0.99));
+            report.result(operation, "maxMicros", histogram.max());
+            if (serverP50 != null) {
+                // The server histograms include the warmup
+                report.result(operation, "serverP50Micros", (Double) serverP50);
+                report.result(operation, "serverP99Micros", (Double) serverP99);
+            }
+        }
+        if (errors.get() > 0) System.err.println(errors.get() + " calls failed");
+
+        binaryServer.close();
+        webServer.shutdown();
+        blockStore.close();
+        metaStore.close();
+        report.write(results);
+    }
+
+    /**
+     * Sync until stopped, as one client owning FILES_PER_CLIENT files.
+     */
+    private static void runClient(int client, int clients, RpcClient connection, int blockSize, AtomicBoolean running) throws Exception {
+        Random random = new Random(client);
+        String cursor = "";
+        Map<String, Vector> files = new HashMap<String, Vector>(); // Latest FileInfoMap entries seen
+        while (running.get()) {
+            long syncStart = System.nanoTime();
+            try {
+                Hashtable changes = (Hashtable) call(connection, "getfileinfomapsince", cursor);
+                cursor = (String) changes.get("cursor");
+                if ((Boolean) changes.get("full")) files.clear();
+                files.putAll((Hashtable<String, Vector>) changes.get("files"));
+
+                if (random.nextDouble() < WRITE_FRACTION || files.isEmpty()) {
+                    String filename = "client" + client + "-file" + random.nextInt(FILES_PER_CLIENT);
+                    upload(connection, filename, files.get(filename), blockSize, random);
+                } else {
+                    String other = "client" + random.nextInt(clients) + "-file" + random.nextInt(FILES_PER_CLIENT);
+                    Vector fileinfo = files.get(other);
+                    if (fileinfo != null) download(connection, (Vector<String>) fileinfo.get(1));
+                }
+            } catch (Exception e) {
+                errors.incrementAndGet();
+                if (errors.get() <= 10) System.err.println("Client " + client + ": " + e);
+            }
+            record("sync", syncStart);
+        }
+    }
+
+    /**
+     * Edit a file: keep 3/4 of its blocks, replace the rest with new ones, upload what is missing and commit.
+     */
+    private static void upload(RpcClient connection, String filename, Vector fileinfo, int blockSize, Random random) throws Exception {
+        int version = fileinfo != null ? (Integer) fileinfo.get(0) : 0;
+        Vector<String> previous = fileinfo != null ? (Vector<String>) fileinfo.get(1) : new Vector<String>();
+        Vector<String> hashlist = new Vector<String>();
+        Map<String, byte[]> created = new HashMap<String, byte[]>();
+        for (int i = 0; i < BLOCKS_PER_FILE; i++) {
+            if (i < previous.size() && random.nextInt(4) != 0) {
+                hashlist.add(previous.get(i));
+            } else {
+                byte[] block = new byte[blockSize];
+                random.nextBytes(block);
+                String hash = Client.hash(block);
+                created.put(hash, block);
+                hashlist.add(hash);
+            }
+        }
+        Set<String> stored = new HashSet<String>((Vector<String>) call(connection, "hasblocks", hashlist));
+        Vector<byte[]> missing = new Vector<byte[]>();
+        for (Map.Entry<String, byte[]> block : created.entrySet()) {
+            if (!stored.contains(block.getKey())) missing.add(block.getValue());
+        }
+        if (!missing.isEmpty()) call(connection, "putblocks", missing);
+        // Each file is only edited by its client, so the version is never stale
+        call(connection, "updatefile", filename, version + 1, hashlist);
+    }
+
+    /**
+     * Download the blocks of a file.
+     */
+    private static void download(RpcClient connection, Vector<String> hashlist) throws Exception {
+        if (hashlist.isEmpty() || hashlist.get(0).equals("0")) return;
+        for (int first = 0; first < hashlist.size(); ) {
+            Vector blocks = (Vector) call(connection, "getblocks", new Vector<String>(hashlist.subList(first, hashlist.size())));
+            first += blocks.size();
+        }
+    }
+
+    /**
+     * Call an RPC and record its latency.
+     */
+    private static Object call(RpcClient connection, String method, Object... args) throws Exception {
+        long start = System.nanoTime();
+        Object result = connection.execute("surfstore." + method, new Vector<Object>(Arrays.asList(args)));
+        record(method, start);
+        return result;
+    }
+
+    private static void record(String operation, long startNanos) {
+        if (measuring.get()) latencies.get(operation).record((System.nanoTime() - startNanos) / 1000);
+    }
+}
@@ -0,0 +1,106 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures MetadataStore update throughput as the number of updating threads grows.
+ * Each thread updates its own files in batched mode, so the numbers show how well updates
+ * of different files scale. A last phase has all threads race on the same file and checks
+ * that every version is accepted exactly once.
+ *
+ * Usage: java MetadataStoreBench [seconds per run] [max threads]
+ */
+public class MetadataStoreBench {
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int cores = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            run(threads, seconds);
+        }
+        if (Integer.bitCount(cores) != 1) {
+            run(cores, seconds);
+        }
+        contend(cores);
+    }
+
+    /**
+     * Update distinct files from the given number of threads for a while.
+     */
+    private static void run(int threads, int seconds) throws Exception {
+        File dir = Files.createTempDirectory("metabench").toFile();
+        MetadataStore store = new MetadataStore(dir, false, 10, 1_000_000);
+        Vector hashlist = new Vector();
+        hashlist.add("a3f1c9e0b27d44e58a16c0f2d9b3e7a1");
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            results.add(pool.submit(() -> {
+                long ops = 0;
+                int[] versions = new int[64];
+                while (System.nanoTime() < deadline) {
+                    int file = (int) (ops & 63);
+                    if (!store.update("t" + id + "-" + file, ++versions[file], hashlist)) {
+                        throw new IllegalStateException("Update of own file rejected");
+                    }
+                    ops++;
+                }
+                return ops;
+            }));
+        }
+        long total = 0;
+        for (Future<Long> result : results) {
+            total += result.get();
+        }
+        pool.shutdown();
+        store.close();
+        delete(dir);
+        System.out.println(String.format("%2d threads: %,12.0f updates/s", threads, total / (double) seconds));
+    }
+
+    /**
+     * Race all threads on one file and check each version has exactly one winner.
+     */
+    private static void contend(int threads) throws Exception {
+        File dir = Files.createTempDirectory("metabench").toFile();
+        MetadataStore store = new MetadataStore(dir, false, 10, 1_000_000);
+        int versions = 100_000;
+        AtomicInteger wins = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (int t = 0; t < threads; t++) {
+            results.add(pool.submit(() -> {
+                for (int version = 1; version <= versions; version++) {
+                    if (store.update("shared", version, new Vector())) {
+                        wins.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        pool.shutdown();
+        int finalVersion = (int) store.getAll().get("shared").get(0);
+        store.close();
+        delete(dir);
+        // A version can be skipped when a thread is already past it, never accepted twice
+        if (wins.get() > versions || finalVersion != versions) {
+            throw new IllegalStateException("Contended updates: " + wins + " accepted, final version " + finalVersion);
+        }
+        System.out.println(String.format("Contended: %d threads, %d of %d versions accepted, final version %d",
+                threads, wins.get(), versions, finalVersion));
+    }
+
+    private static void delete(File dir) {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,128 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.xmlrpc.WebServer;
+
+/**
+ * Measures updatefile commit latency and throughput of a single metadata server against
+ * Raft clusters of 3 and 5, all started in this process on local ports.
+ * Each client thread sends updatefile calls of new files to the leader over XML-RPC
+ * for the given time; latency is that of the whole call, percentiles over all threads.
+ *
+ * Usage: java RaftBench [seconds] [client threads]
+ */
+public class RaftBench {
+
+    private static final int BASE_PORT = 19100;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        Vector<String> hashlist = new Vector<String>();
+        hashlist.add(BlockHash.of(new byte[] {1}).toHex());
+        int run = 0;
+        for (int nodes : new int[] {1, 3, 5}) {
+            List<Server> servers = new ArrayList<Server>();
+            List<WebServer> webServers = new ArrayList<WebServer>();
+            List<MetadataStore> stores = new ArrayList<MetadataStore>();
+            List<String> addresses = new ArrayList<String>();
+            for (int i = 0; i < nodes; i++) {
+                addresses.add("localhost:" + (BASE_PORT + 10 * run + i));
+            }
+            for (int i = 0; i < nodes; i++) {
+                File dir = Files.createTempDirectory("raftbench").toFile();
+                MetadataStore store = new MetadataStore(new File(dir, "meta"), nodes == 1, 10, 100000);
+                Server server;
+                if (nodes == 1) {
+                    server = new Server(null, store, null, null);
+                } else {
+                    RaftNode raft = new RaftNode(addresses.get(i), addresses, new RaftLog(new File(dir, "raft")), store, 300, 100000);
+                    server = new Server(null, store, raft, null);
+                    raft.start();
+                }
+                WebServer webServer = new WebServer(BASE_PORT + 10 * run + i);
+                webServer.addHandler("surfstore", server);
+                webServer.start();
+                servers.add(server);
+                webServers.add(webServer);
+                stores.add(store);
+            }
+            String leader = null;
+            while (leader == null) {
+                Thread.sleep(100);
+                for (int i = 0; i < nodes; i++) {
+                    if (servers.get(i).isLeader()) leader = addresses.get(i);
+                }
+            }
+            for (int threads = 1; threads <= maxThreads; threads *= 4) {
+                measure(nodes, threads, seconds, leader, hashlist);
+            }
+            // Crash first so the nodes stop sending heartbeats to servers already shut down
+            for (int i = 0; i < nodes; i++) {
+                servers.get(i).crash();
+                webServers.get(i).shutdown();
+                stores.get(i).close();
+            }
+            run++;
+        }
+        System.exit(0);
+    }
+
+    private static void measure(int nodes, int threads, int seconds, String leader, Vector<String> hashlist) throws Exception {
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        AtomicLong failures = new AtomicLong();
+        List<long[]> latencies = new ArrayList<long[]>();
+        int[] counts = new int[threads];
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            long[] samples = new long[1 << 20];
+            latencies.add(samples);
+            int thread = t;
+            workers.add(new Thread(() -> {
+                try {
+                    RpcClient client = RpcClient.connect(leader);
+                    int count = 0;
+                    while (System.nanoTime() < end && count < samples.length) {
+                        Vector params = new Vector();
+                        params.add("bench-" + threads + "-" + thread + "-" + count);
+                        params.add(1);
+                        params.add(hashlist);
+                        long start = System.nanoTime();
+                        if (!(boolean) client.execute("surfstore.updatefile", params)) {
+                            failures.incrementAndGet();
+                        }
+                        samples[count++] = System.nanoTime() - start;
+                    }
+                    counts[thread] = count;
+                } catch (Exception e) {
+                    System.err.println("RaftBench client: " + e);
+                    failures.incrementAndGet();
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) worker.start();
+        for (Thread worker : workers) worker.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        int total = 0;
+        for (int count : counts) total += count;
+        long[] all = new long[total];
+        int next = 0;
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(latencies.get(t), 0, all, next, counts[t]);
+            next += counts[t];
+        }
+        Arrays.sort(all);
+        System.out.println(String.format("%d node%s, %2d threads: %8.0f updates/s   p50 %6.2f ms   p99 %6.2f ms%s",
+                nodes, nodes == 1 ? " " : "s", threads, total / elapsed,
+                percentile(all, 0.50) / 1e6, percentile(all, 0.99) / 1e6,
+                failures.get() == 0 ? "" : "   " + failures.get() + " failed"));
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+}
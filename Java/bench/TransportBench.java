@@ -0,0 +1,100 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.*;
+import org.apache.xmlrpc.WebServer;
+
+/**
+ * Compares the XML-RPC and binary transports.
+ * Starts a Server with both transports in this process, then moves the same blocks over each
+ * with putblocks, getblocks and getblock, reporting throughput and the CPU time of the whole
+ * process (client and server) per GB moved.
+ *
+ * Usage: java TransportBench [total MB] [block size]
+ */
+public class TransportBench {
+
+    private static final int XML_RPC_PORT = 18080;
+    private static final int BINARY_PORT = 18081;
+    private static final int BATCH_BYTES = 4 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : 64 * 1024;
+        File dir = Files.createTempDirectory("transportbench").toFile();
+        BlockStore blockStore = new BlockStore(new File(dir, "blocks"), 1L << 30);
+        MetadataStore metaStore = new MetadataStore(new File(dir, "meta"), false, 10, 100000);
+        Server handler = new Server(blockStore, metaStore, null, null);
+        WebServer webServer = new WebServer(XML_RPC_PORT);
+        webServer.addHandler("surfstore", handler);
+        webServer.start();
+        BinaryServer binaryServer = new BinaryServer(BINARY_PORT, handler, blockStore);
+        binaryServer.start();
+
+        Random random = new Random(42);
+        int count = megabytes * 1024 * 1024 / blockSize;
+        System.out.println(String.format("%d MB in %d byte blocks", megabytes, blockSize));
+        for (int round = 0; round < 2; round++) {
+            // Fresh blocks every round and transport, so puts are never deduplicated
+            for (String transport : new String[] {"xml-rpc", "binary"}) {
+                RpcClient client = transport.equals("binary")
+                        ? new BinaryConnection("localhost", BINARY_PORT)
+                        : new XmlRpcConnection("http://localhost:" + XML_RPC_PORT + "/RPC2");
+                List<byte[]> blocks = new ArrayList<byte[]>();
+                Vector<String> hashes = new Vector<String>();
+                for (int i = 0; i < count; i++) {
+                    byte[] block = new byte[blockSize];
+                    random.nextBytes(block);
+                    blocks.add(block);
+                    hashes.add(BlockHash.of(block).toHex());
+                }
+                int perBatch = Math.max(1, BATCH_BYTES / blockSize);
+                measure(transport, "putblocks", megabytes, () -> {
+                    for (int first = 0; first < count; first += perBatch) {
+                        Vector params = new Vector();
+                        params.add(new Vector<byte[]>(blocks.subList(first, Math.min(first + perBatch, count))));
+                        client.execute("surfstore.putblocks", params);
+                    }
+                });
+                measure(transport, "getblocks", megabytes, () -> {
+                    for (int first = 0; first < count; ) {
+                        Vector params = new Vector();
+                        params.add(new Vector<String>(hashes.subList(first, Math.min(first + perBatch, count))));
+                        first += ((Vector) client.execute("surfstore.getblocks", params)).size();
+                    }
+                });
+                measure(transport, "getblock", megabytes, () -> {
+                    for (String hash : hashes) {
+                        Vector params = new Vector();
+                        params.add(hash);
+                        byte[] block = (byte[]) client.execute("surfstore.getblock", params);
+                        if (!BlockHash.of(block).toHex().equals(hash)) {
+                            throw new IllegalStateException("getblock returned the wrong block over " + transport);
+                        }
+                    }
+                });
+            }
+        }
+        binaryServer.close();
+        webServer.shutdown();
+        blockStore.close();
+        metaStore.close();
+    }
+
+    private interface Workload {
+        void run() throws Exception;
+    }
+
+    private static void measure(String transport, String operation, int megabytes, Workload workload) throws Exception {
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long cpuStart = os.getProcessCpuTime();
+        long start = System.nanoTime();
+        workload.run();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double cpuSeconds = (os.getProcessCpuTime() - cpuStart) / 1e9;
+        // The server logs every call to stdout, results go to stderr to stand out
+        System.err.println(String.format("%-8s %-10s %8.1f MB/s %8.1f CPU s/GB",
+                transport, operation, megabytes / seconds, cpuSeconds * 1024 / megabytes));
+    }
+}
@@ -0,0 +1,185 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * Encoding of RPC values for the binary transport.
+ * Values are the types XML-RPC uses (Integer, Boolean, Double, String, byte[], Vector and
+ * Hashtable) each written as a one-byte type tag followed by its content, so the Server
+ * methods receive and return the same objects on either transport. byte[] is written raw.
+ *
+ * A request frame is: int length, method name, int parameter count, parameters.
+ * A response frame is: int length, status byte, then the result (STATUS_OK) or a fault message (STATUS_FAULT).
+ */
+public class BinaryCodec {
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_FAULT = 1;
+
+    static final byte NULL = 0;
+    static final byte INT = 1;
+    static final byte BOOLEAN = 2;
+    static final byte DOUBLE = 3;
+    static final byte STRING = 4;
+    static final byte BYTES = 5;
+    static final byte VECTOR = 6;
+    static final byte TABLE = 7;
+
+    // Largest frame accepted, so a corrupt length cannot make the reader allocate without bound
+    public static final int MAX_FRAME_BYTES = 256 * 1024 * 1024;
+
+    /**
+     * Size of the encoded form of a value.
+     * @param value Value to encode
+     * @return Number of bytes write will produce
+     */
+    public static int size(Object value) {
+        if (value == null) return 1;
+        if (value instanceof Integer) return 5;
+        if (value instanceof Boolean) return 2;
+        if (value instanceof Double) return 9;
+        if (value instanceof String) return 5 + utf8Length((String) value);
+        if (value instanceof byte[]) return 5 + ((byte[]) value).length;
+        if (value instanceof Vector) {
+            int size = 5;
+            for (Object element : (Vector) value) {
+                size += size(element);
+            }
+            return size;
+        }
+        if (value instanceof Map) {
+            int size = 5;
+            for (Map.Entry entry : ((Map<?, ?>) value).entrySet()) {
+                size += size(entry.getKey().toString()) + size(entry.getValue());
+            }
+            return size;
+        }
+        throw new IllegalArgumentException("Cannot encode " + value.getClass().getName());
+    }
+
+    /**
+     * Write a value.
+     * @param out Stream to write to
+     * @param value Value to encode
+     */
+    public static void write(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof String) {
+            byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+            out.writeByte(STRING);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (value instanceof byte[]) {
+            out.writeByte(BYTES);
+            out.writeInt(((byte[]) value).length);
+            out.write((byte[]) value);
+        } else if (value instanceof Vector) {
+            out.writeByte(VECTOR);
+            out.writeInt(((Vector) value).size());
+            for (Object element : (Vector) value) {
+                write(out, element);
+            }
+        } else if (value instanceof Map) {
+            out.writeByte(TABLE);
+            out.writeInt(((Map) value).size());
+            for (Map.Entry entry : ((Map<?, ?>) value).entrySet()) {
+                write(out, entry.getKey().toString());
+                write(out, entry.getValue());
+            }
+        } else {
+            throw new IllegalArgumentException("Cannot encode " + value.getClass().getName());
+        }
+    }
+
+    /**
+     * Read a value.
+     * @param in Stream to read from
+     * @return The decoded value
+     */
+    public static Object read(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case INT:
+                return in.readInt();
+            case BOOLEAN:
+                return in.readBoolean();
+            case DOUBLE:
+                return in.readDouble();
+            case STRING:
+                return new String(readBytes(in), StandardCharsets.UTF_8);
+            case BYTES:
+                return readBytes(in);
+            case VECTOR: {
+                int count = readLength(in);
+                Vector vector = new Vector(count);
+                for (int i = 0; i < count; i++) {
+                    vector.add(read(in));
+                }
+                return vector;
+            }
+            case TABLE: {
+                int count = readLength(in);
+                Hashtable table = new Hashtable();
+                for (int i = 0; i < count; i++) {
+                    table.put(read(in), read(in));
+                }
+                return table;
+            }
+            default:
+                throw new IOException("Unknown type tag " + tag);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Read a length or count, checking it against the frame limit.
+     */
+    static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Bad length " + length);
+        }
+        return length;
+    }
+
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1; // Unpaired surrogates are encoded as '?'
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
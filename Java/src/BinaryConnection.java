@@ -0,0 +1,80 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Vector;
+import org.apache.xmlrpc.XmlRpcException;
+
+/**
+ * Connection to the server over the binary transport.
+ * Calls are sent one at a time as length-prefixed frames over a single socket,
+ * which is reopened on the next call if a call fails part way.
+ */
+public class BinaryConnection implements RpcClient {
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final String host;
+    private final int port;
+    private SocketChannel channel;
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    /**
+     * Constructor. The connection is opened on the first call.
+     * @param host Host name of the server
+     * @param port Port of the server's binary transport
+     */
+    public BinaryConnection(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Call a method on the server.
+     */
+    public Object execute(String method, Vector params) throws XmlRpcException, IOException {
+        if (channel == null) {
+            connect();
+        }
+        byte status;
+        Object result;
+        try {
+            out.writeInt(BinaryCodec.size(method) + BinaryCodec.size(params));
+            BinaryCodec.write(out, method);
+            BinaryCodec.write(out, params);
+            out.flush();
+            BinaryCodec.readLength(in);
+            status = in.readByte();
+            result = BinaryCodec.read(in);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        if (status == BinaryCodec.STATUS_FAULT) {
+            throw new XmlRpcException(0, (String) result);
+        }
+        return result;
+    }
+
+    private void connect() throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), BUFFER_BYTES));
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_BYTES));
+    }
+
+    /**
+     * Close the socket.
+     */
+    public void close() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // Nothing left to clean up
+        }
+        channel = null;
+    }
+}
@@ -0,0 +1,184 @@
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Binary transport of the Server operations, next to the XML-RPC WebServer.
+ * Each connection is served by its own thread reading request frames and writing response
+ * frames (see BinaryCodec). Requests name the same "surfstore.*" methods as XML-RPC and are
+ * dispatched to the public methods of the handler by name and parameter types.
+ *
+ * getblock is answered without copying the block through the heap: the frame header is
+ * written and the record is sent from its segment file with FileChannel.transferTo.
+ */
+public class BinaryServer {
+
+    private static final String HANDLER = "surfstore.";
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final Server handler;
+    private final BlockStore blockStore;
+    private final ServerSocketChannel listener;
+    private final Map<String, List<Method>> methods = new HashMap<String, List<Method>>();
+    private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "binary-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructor. Binds the port, call start to accept connections.
+     * @param port Port to listen on
+     * @param handler Server whose methods are called
+     * @param blockStore Block store getblock is served from, or null for a metadata-only server
+     */
+    public BinaryServer(int port, Server handler, BlockStore blockStore) throws IOException {
+        this.handler = handler;
+        this.blockStore = blockStore;
+        for (Method method : Server.class.getMethods()) {
+            if (method.getDeclaringClass() == Server.class && !Modifier.isStatic(method.getModifiers())) {
+                methods.computeIfAbsent(method.getName(), name -> new ArrayList<Method>()).add(method);
+            }
+        }
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+    }
+
+    /**
+     * Accept connections on a background thread.
+     */
+    public void start() {
+        Thread acceptor = new Thread(() -> {
+            while (listener.isOpen()) {
+                try {
+                    SocketChannel channel = listener.accept();
+                    channel.socket().setTcpNoDelay(true);
+                    connections.submit(() -> serve(channel));
+                } catch (IOException e) {
+                    if (listener.isOpen()) {
+                        Log.error("Binary transport accept: %s", e);
+                    }
+                }
+            }
+        }, "binary-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Serve the requests of one connection until the client closes it.
+     */
+    private void serve(SocketChannel channel) {
+        try (SocketChannel connection = channel) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(connection), BUFFER_BYTES));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(connection), BUFFER_BYTES));
+            while (true) {
+                try {
+                    BinaryCodec.readLength(in);
+                } catch (EOFException e) {
+                    return;
+                }
+                Object method = BinaryCodec.read(in);
+                Object params = BinaryCodec.read(in);
+                if (!(method instanceof String) || !(params instanceof Vector)) {
+                    throw new IOException("Malformed request");
+                }
+                String name = ((String) method).startsWith(HANDLER) ? ((String) method).substring(HANDLER.length()) : "";
+                Vector args = (Vector) params;
+                long start = System.nanoTime();
+                if (name.equals("getblock") && args.size() == 1 && args.get(0) instanceof String
+                        && sendBlock((String) args.get(0), out, connection)) {
+                    Metrics.recordCall(name, start, false);
+                    continue;
+                }
+                byte status = BinaryCodec.STATUS_OK;
+                Object result;
+                try {
+                    result = invoke(name, args);
+                } catch (Exception e) {
+                    status = BinaryCodec.STATUS_FAULT;
+                    result = e.toString();
+                }
+                if (methods.containsKey(name)) {
+                    Metrics.recordCall(name, start, status == BinaryCodec.STATUS_FAULT);
+                }
+                out.writeInt(1 + BinaryCodec.size(result));
+                out.writeByte(status);
+                BinaryCodec.write(out, result);
+                out.flush();
+            }
+        } catch (IOException e) {
+            if (listener.isOpen()) {
+                Log.warn("Binary transport: %s", e);
+            }
+        }
+    }
+
+    /**
+     * Send a stored block straight from its segment file.
+     * @return False if the block is not stored, so the request is answered the usual way
+     */
+    private boolean sendBlock(String hashvalue, DataOutputStream out, SocketChannel connection) throws IOException {
+        BlockHash hash;
+        try {
+            hash = BlockHash.fromHex(hashvalue);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        BlockIndex.Location location = blockStore == null ? null : blockStore.locate(hash);
+        if (location == null || location.codec != BlockCodec.NONE) return false; // Compressed blocks are decoded first
+        Log.debug("GetBlock(%s)", hashvalue);
+        out.writeInt(1 + 5 + location.length);
+        out.writeByte(BinaryCodec.STATUS_OK);
+        out.writeByte(BinaryCodec.BYTES);
+        out.writeInt(location.length);
+        out.flush();
+        blockStore.transferTo(hash, location, connection);
+        Metrics.count("bytesOut", location.length);
+        return true;
+    }
+
+    /**
+     * Call the handler method matching the name and arguments, like the XML-RPC invoker does.
+     */
+    private Object invoke(String name, Vector args) throws Exception {
+        for (Method method : methods.getOrDefault(name, Collections.<Method>emptyList())) {
+            if (accepts(method.getParameterTypes(), args)) {
+                try {
+                    return method.invoke(handler, args.toArray());
+                } catch (InvocationTargetException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof Exception ? (Exception) cause : new Exception(cause);
+                }
+            }
+        }
+        throw new NoSuchMethodException(HANDLER + name);
+    }
+
+    private static boolean accepts(Class<?>[] types, Vector args) {
+        if (types.length != args.size()) return false;
+        for (int i = 0; i < types.length; i++) {
+            Object arg = args.get(i);
+            Class<?> type = types[i] == int.class ? Integer.class : types[i] == boolean.class ? Boolean.class
+                    : types[i] == double.class ? Double.class : types[i];
+            if (arg == null ? types[i].isPrimitive() : !type.isInstance(arg)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stop accepting connections.
+     */
+    public void close() throws IOException {
+        listener.close();
+        connections.shutdownNow();
+    }
+}
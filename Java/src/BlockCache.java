@@ -0,0 +1,134 @@
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-bounded cache of block records read from the block store, so popular blocks
+ * downloaded by many clients are served from the heap instead of the segment files.
+ *
+ * The cache is split into stripes by hash value, each an LRU map with its own lock and an
+ * equal share of the byte capacity, so concurrent readers of different blocks rarely wait
+ * for each other. Blocks never change once stored, so cached records are never stale.
+ * Blocks larger than a stripe's share are not cached.
+ */
+public class BlockCache {
+
+    private static final int STRIPES = 16; // Indexed by the top 4 bits of the hash
+
+    private final long capacity; // Bytes of block data the cache may hold
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder bytesServed = new LongAdder(); // Bytes returned by hits
+
+    /**
+     * LRU map of one stripe, evicting its least recently read blocks once over its share of the capacity.
+     */
+    private static class Stripe extends LinkedHashMap<BlockHash, byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        final long capacity;
+        long bytes;
+
+        Stripe(long capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param capacity Bytes of block data the cache may hold
+     */
+    public BlockCache(long capacity) {
+        this.capacity = capacity;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(capacity / STRIPES);
+        }
+    }
+
+    /**
+     * Given a hash value, return the cached block record.
+     * @param hashvalue SHA-256 hash of the block
+     * @return Record data as stored in the block store, or null if not cached
+     */
+    public byte[] get(BlockHash hashvalue) {
+        Stripe stripe = stripe(hashvalue);
+        byte[] data;
+        synchronized (stripe) {
+            data = stripe.get(hashvalue);
+        }
+        if (data == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+            bytesServed.add(data.length);
+        }
+        return data;
+    }
+
+    /**
+     * Cache a block record read from the block store, evicting the least recently read ones if needed.
+     * @param hashvalue SHA-256 hash of the block
+     * @param data Record data as stored in the block store
+     */
+    public void put(BlockHash hashvalue, byte[] data) {
+        Stripe stripe = stripe(hashvalue);
+        if (data.length > stripe.capacity) return;
+        synchronized (stripe) {
+            byte[] previous = stripe.put(hashvalue, data);
+            stripe.bytes += data.length - (previous == null ? 0 : previous.length);
+            Iterator<byte[]> eldest = stripe.values().iterator();
+            while (stripe.bytes > stripe.capacity) {
+                stripe.bytes -= eldest.next().length;
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Drop a cached block record, once the block is removed from the block store.
+     * @param hashvalue SHA-256 hash of the block
+     */
+    public void remove(BlockHash hashvalue) {
+        Stripe stripe = stripe(hashvalue);
+        synchronized (stripe) {
+            byte[] previous = stripe.remove(hashvalue);
+            if (previous != null) stripe.bytes -= previous.length;
+        }
+    }
+
+    /**
+     * Returns the cache statistics. Byte counts are doubles, as XML-RPC has no 64-bit integers.
+     * @return Mapping of statistic name to value
+     */
+    public Hashtable<String, Object> stats() {
+        long bytes = 0;
+        int entries = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                bytes += stripe.bytes;
+                entries += stripe.size();
+            }
+        }
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        Hashtable<String, Object> stats = new Hashtable<String, Object>();
+        stats.put("capacity", (double) capacity);
+        stats.put("bytes", (double) bytes);
+        stats.put("entries", entries);
+        stats.put("hits", (double) hitCount);
+        stats.put("misses", (double) misses.sum());
+        stats.put("hitRate", lookups == 0 ? 0.0 : (double) hitCount / lookups);
+        stats.put("evictions", (double) evictions.sum());
+        stats.put("bytesServed", (double) bytesServed.sum());
+        return stats;
+    }
+
+    private Stripe stripe(BlockHash hashvalue) {
+        // Top bits of the hash, leaving the low bits to spread the blocks within the stripe's map
+        return stripes[hashvalue.hashCode() >>> 28];
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of single blocks.
+ * An encoded block is: codec id byte, int length of the raw block, then the codec's payload.
+ * Block hashes are always computed over the raw block, so the codec a block was stored
+ * or sent with never changes its identity.
+ *
+ * The codecs are the ones the JDK provides: "deflate" (zlib level 6) for ratio and
+ * "deflate-fast" (level 1) for speed, in place of an LZ4-style codec.
+ */
+public class BlockCodec {
+
+    public static final int NONE = 0;
+    public static final int DEFLATE = 1;
+    public static final int DEFLATE_FAST = 2;
+
+    public static final int HEADER_BYTES = 5;
+
+    private static final String[] NAMES = {"none", "deflate", "deflate-fast"};
+    private static final int[] LEVELS = {0, 6, 1};
+
+    private static final ThreadLocal<Deflater[]> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater[NAMES.length]);
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * Get the id of a codec.
+     * @param name Codec name
+     * @return Codec id, or -1 if there is no such codec
+     */
+    public static int id(String name) {
+        return Arrays.asList(NAMES).indexOf(name);
+    }
+
+    /**
+     * Get the name of a codec.
+     * @param codec Codec id
+     * @return Codec name
+     */
+    public static String name(int codec) {
+        return NAMES[codec];
+    }
+
+    /**
+     * Names of all codecs, as offered to the other side.
+     */
+    public static Vector<String> names() {
+        return new Vector<String>(Arrays.asList(NAMES));
+    }
+
+    /**
+     * Encode a block, falling back to NONE if the codec does not make it smaller.
+     * @param raw Raw block
+     * @param codec Codec to try
+     * @return Encoded block
+     */
+    public static byte[] encode(byte[] raw, int codec) {
+        if (codec != NONE) {
+            Deflater[] deflaters = DEFLATERS.get();
+            if (deflaters[codec] == null) {
+                deflaters[codec] = new Deflater(LEVELS[codec]);
+            }
+            Deflater deflater = deflaters[codec];
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            // Only worth keeping if it is smaller, so the output never needs more than raw.length
+            byte[] encoded = new byte[HEADER_BYTES + raw.length];
+            int length = HEADER_BYTES;
+            while (!deflater.finished() && length < encoded.length) {
+                length += deflater.deflate(encoded, length, encoded.length - length);
+            }
+            if (deflater.finished() && length < encoded.length) {
+                ByteBuffer.wrap(encoded).put((byte) codec).putInt(raw.length);
+                return Arrays.copyOf(encoded, length);
+            }
+        }
+        byte[] encoded = new byte[HEADER_BYTES + raw.length];
+        ByteBuffer.wrap(encoded).put((byte) NONE).putInt(raw.length).put(raw);
+        return encoded;
+    }
+
+    /**
+     * Get the codec of an encoded block.
+     */
+    public static int codec(byte[] encoded) {
+        return encoded[0];
+    }
+
+    /**
+     * Decode a block.
+     * @param encoded Encoded block
+     * @return Raw block
+     * @throws IOException If the block is not a valid encoded block
+     */
+    public static byte[] decode(byte[] encoded) throws IOException {
+        if (encoded.length < HEADER_BYTES) {
+            throw new IOException("Encoded block is too short");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        int codec = buffer.get();
+        int length = buffer.getInt();
+        if (codec == NONE) {
+            if (length != encoded.length - HEADER_BYTES) {
+                throw new IOException("Encoded block has the wrong length");
+            }
+            return Arrays.copyOfRange(encoded, HEADER_BYTES, encoded.length);
+        }
+        if (codec < 0 || codec >= NAMES.length || length < 0) {
+            throw new IOException("Unknown block codec " + codec);
+        }
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(encoded, HEADER_BYTES, encoded.length - HEADER_BYTES);
+        byte[] raw = new byte[length];
+        try {
+            int inflated = 0;
+            while (inflated < length && !inflater.finished() && !inflater.needsInput()) {
+                inflated += inflater.inflate(raw, inflated, length - inflated);
+            }
+            if (inflated != length || !inflater.finished()) {
+                throw new IOException("Encoded block is corrupt");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Encoded block is corrupt: " + e.getMessage());
+        }
+        return raw;
+    }
+}
@@ -0,0 +1,191 @@
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Garbage collector of the block store: removes the blocks that no hash list of the FileInfoMap
+ * refers to any more, such as the old blocks of changed files and the blocks of deleted files,
+ * and compacts the segments they leave mostly empty.
+ *
+ * A collection marks the hashes of every hash list, then sweeps the block index. A block found
+ * unreferenced becomes a candidate, and is only removed if it is still unreferenced once the
+ * grace period has passed, so clients can still download a version they just listed and upload
+ * blocks before their updatefile. A block reported as stored by hasblocks or sent again by a put
+ * stops being a candidate, so a client that skips uploading a block does not lose it meanwhile.
+ * A touch and the claim and removal of the same block hold the same lock stripe, so a touch
+ * either keeps the block or returns once it is gone, and the caller then finds it missing.
+ *
+ * The index snapshot is written after every sweep that removed blocks, so they stay removed after a crash.
+ *
+ * Collections run on a background thread. Gets never wait for them, and puts wait for at most
+ * one record copy or index removal at a time (see BlockStore.compact).
+ */
+public class BlockCollector {
+
+    private static final long MIN_PART_IDLE_MILLIS = 600000; // Parts of an upload are kept this long after their last write, whatever the grace
+    private static final int STRIPES = 64; // Locks serializing touches with removals, by hash
+
+    private final BlockStore store;
+    private final Callable<Map<String, Vector>> fileInfoMap; // Returns the current FileInfoMap
+    private final long graceMillis;
+    private final double garbageRatio;
+
+    // Map<hash, time the block was first found unreferenced>
+    private final Map<BlockHash, Long> candidates = new ConcurrentHashMap<BlockHash, Long>();
+    private final Object[] stripes = new Object[STRIPES];
+    private volatile boolean removing; // Set while candidates are claimed and removed
+
+    private final Metrics.Histogram pauses = Metrics.histogram("gc.pauseMicros");
+    private volatile Hashtable<String, Object> lastReport = new Hashtable<String, Object>();
+
+    /**
+     * Constructor.
+     * @param store Block store to collect
+     * @param fileInfoMap Returns the FileInfoMap, mapping filename to version number and hashlist;
+     *                    a collection is skipped if it throws
+     * @param graceMillis Milliseconds a block must stay unreferenced before it is removed
+     * @param garbageRatio Fraction of a segment's bytes that must be garbage for it to be compacted
+     */
+    public BlockCollector(BlockStore store, Callable<Map<String, Vector>> fileInfoMap, long graceMillis, double garbageRatio) {
+        this.store = store;
+        this.fileInfoMap = fileInfoMap;
+        this.graceMillis = graceMillis;
+        this.garbageRatio = garbageRatio;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    /**
+     * Start collecting on a background thread.
+     * @param intervalMillis Milliseconds between collections
+     */
+    public void start(long intervalMillis) {
+        Thread collector = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                    collect();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    Log.error("Block GC: %s", e);
+                }
+            }
+        }, "block-gc");
+        collector.setDaemon(true);
+        collector.start();
+    }
+
+    /**
+     * Keep blocks a client was just told are stored, or sent again.
+     * @param hashes Hashes of the blocks
+     */
+    public void touch(Collection<BlockHash> hashes) {
+        // Candidates are claimed after removing is set, so an empty map seen here with removing
+        // clear means no removal is in progress
+        if (candidates.isEmpty() && !removing) return;
+        for (BlockHash hashvalue : hashes) {
+            synchronized (stripe(hashvalue)) {
+                candidates.remove(hashvalue);
+            }
+        }
+    }
+
+    private Object stripe(BlockHash hashvalue) {
+        return stripes[hashvalue.hashCode() & (STRIPES - 1)];
+    }
+
+    /**
+     * Run a collection now.
+     * @return Statistics of the collection, as returned by stats
+     */
+    public synchronized Hashtable<String, Object> collect() throws Exception {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+
+        // Mark
+        Set<BlockHash> live = new HashSet<BlockHash>();
+        for (Vector fileinfo : fileInfoMap.call().values()) {
+            for (Object hashvalue : (Vector) fileinfo.get(1)) {
+                try {
+                    live.add(BlockHash.fromHex((String) hashvalue));
+                } catch (IllegalArgumentException e) {
+                    // Not a block hash, like the "0" hash list of a deleted file
+                }
+            }
+        }
+        long markNanos = System.nanoTime() - start;
+
+        // Sweep
+        List<BlockHash> expired = new ArrayList<BlockHash>();
+        store.forEachHash(hashvalue -> {
+            if (live.contains(hashvalue)) {
+                candidates.remove(hashvalue);
+            } else {
+                Long since = candidates.putIfAbsent(hashvalue, now);
+                if (since != null && now - since >= graceMillis) expired.add(hashvalue);
+            }
+        });
+        candidates.keySet().removeIf(hashvalue -> !store.contains(hashvalue));
+        int removed = 0;
+        long removedBytes = 0;
+        long maxPause = 0;
+        removing = true;
+        try {
+            for (BlockHash hashvalue : expired) {
+                long length;
+                long removeStart = System.nanoTime();
+                synchronized (stripe(hashvalue)) {
+                    // Claim the candidate first, so a block touched meanwhile is kept
+                    Long since = candidates.get(hashvalue);
+                    if (since == null || !candidates.remove(hashvalue, since)) continue;
+                    length = store.remove(hashvalue);
+                }
+                long pause = (System.nanoTime() - removeStart) / 1000;
+                pauses.record(pause);
+                maxPause = Math.max(maxPause, pause);
+                if (length >= 0) {
+                    removed++;
+                    removedBytes += length;
+                }
+            }
+        } finally {
+            removing = false;
+        }
+        // Without a new snapshot, a crash would bring the removed blocks back from their records
+        if (removed > 0) store.checkpoint();
+        Hashtable<String, Object> compaction = store.compact(garbageRatio, pauses);
+        long partBytes = store.removeStaleParts(Math.max(graceMillis, MIN_PART_IDLE_MILLIS));
+
+        double reclaimed = (Double) compaction.get("bytesReclaimed") + partBytes;
+        Hashtable<String, Object> report = new Hashtable<String, Object>(compaction);
+        report.put("time", (double) now);
+        report.put("liveHashes", live.size());
+        report.put("candidates", candidates.size());
+        report.put("blocksRemoved", removed);
+        report.put("bytesRemoved", (double) removedBytes);
+        report.put("partBytesRemoved", (double) partBytes);
+        report.put("bytesReclaimed", reclaimed);
+        report.put("maxPauseMicros", Math.max(maxPause, (Double) compaction.get("maxPauseMicros")));
+        report.put("markMillis", markNanos / 1e6);
+        report.put("totalMillis", (System.nanoTime() - start) / 1e6);
+        lastReport = report;
+        Metrics.count("gc.collections", 1);
+        Metrics.count("gc.blocksRemoved", removed);
+        Metrics.count("gc.bytesReclaimed", (long) reclaimed);
+        Log.info("Block GC: %d live hashes, removed %d blocks (%d bytes), %d waiting out the grace period,"
+                        + " compacted %s segments, reclaimed %.0f bytes, max pause %.0f us, %.1f ms",
+                live.size(), removed, removedBytes, candidates.size(), compaction.get("segmentsCompacted"),
+                reclaimed, report.get("maxPauseMicros"), report.get("totalMillis"));
+        return report;
+    }
+
+    /**
+     * Returns the statistics of the last collection. Byte counts are doubles, as XML-RPC has no 64-bit integers.
+     * @return Mapping of statistic name to value, empty before the first collection
+     */
+    public Hashtable<String, Object> stats() {
+        return lastReport;
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Bloom filter of the hashes of stored blocks, so hasblocks can answer most lookups of
+ * missing blocks without probing the block index.
+ *
+ * The filter is blocked: a hash sets K bits inside one 512-bit block, so every lookup
+ * touches a single cache line. Bits are taken straight from the hash words, which are
+ * already uniformly distributed: w2 picks the block and w3 the bits within it.
+ * At 10 bits per block hash about 1% of lookups of missing blocks are false positives.
+ *
+ * Bits are only ever set, by a single writer at a time. A lookup racing with the add of
+ * the same hash may miss it, like a lookup of the index racing with its insert.
+ */
+public class BlockFilter {
+
+    private static final int BITS_PER_HASH = 10;
+    private static final int K = 7; // Bits set per hash, 9 bits of w3 each
+    private static final int BLOCK_LONGS = 8; // 512 bits, a cache line
+    private static final int MIN_CAPACITY = 1 << 16;
+
+    private final long[] bits;
+    private final int blockMask;
+    private final long capacity;
+
+    /**
+     * Constructor.
+     * @param expected Number of hashes the filter is sized for at BITS_PER_HASH bits each
+     */
+    public BlockFilter(long expected) {
+        long blocks = Long.highestOneBit(Math.max(expected, MIN_CAPACITY) * BITS_PER_HASH / (64 * BLOCK_LONGS) - 1) << 1;
+        if (blocks * BLOCK_LONGS > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Filter for " + expected + " hashes is too large");
+        }
+        bits = new long[(int) blocks * BLOCK_LONGS];
+        blockMask = (int) blocks - 1;
+        capacity = blocks * BLOCK_LONGS * 64 / BITS_PER_HASH;
+    }
+
+    /**
+     * Add a hash.
+     * @param hash Hash of a stored block
+     */
+    public void add(BlockHash hash) {
+        int base = ((int) hash.w2 & blockMask) * BLOCK_LONGS;
+        long w3 = hash.w3;
+        for (int i = 0; i < K; i++, w3 >>>= 9) {
+            int bit = (int) w3 & 511;
+            bits[base + (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Check if a hash may have been added.
+     * @param hash Hash of a block
+     * @return False if the hash was definitely not added
+     */
+    public boolean mightContain(BlockHash hash) {
+        int base = ((int) hash.w2 & blockMask) * BLOCK_LONGS;
+        long w3 = hash.w3;
+        for (int i = 0; i < K; i++, w3 >>>= 9) {
+            int bit = (int) w3 & 511;
+            if ((bits[base + (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Number of hashes the filter holds at its intended false positive rate.
+     * @return Hash count, after which the filter should be rebuilt larger
+     */
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * Heap used by the filter bits.
+     * @return Byte count
+     */
+    public long bytes() {
+        return 8L * bits.length;
+    }
+}
@@ -0,0 +1,147 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * SHA-256 hash of a block, held as four longs instead of a 64-character hex string.
+ * The hex form is only built at the RPC and console boundaries, in the format hashes have
+ * always had: lowercase digits with leading zeros stripped, but never fewer than 32 digits.
+ */
+public final class BlockHash {
+
+    public static final int BYTES = 32;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final byte[] DIGIT_VALUES = new byte[128]; // Value of each ASCII hex digit, -1 for other characters
+
+    static {
+        Arrays.fill(DIGIT_VALUES, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            DIGIT_VALUES[HEX_DIGITS[i]] = (byte) i;
+            DIGIT_VALUES[Character.toUpperCase(HEX_DIGITS[i])] = (byte) i;
+        }
+    }
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Hash block data: " + e);
+        }
+    });
+
+    // Big-endian words of the hash, w0 holding the first 8 bytes
+    final long w0;
+    final long w1;
+    final long w2;
+    final long w3;
+
+    BlockHash(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    /**
+     * Hash a block.
+     * @param data Block data
+     * @return SHA-256 hash of the data
+     */
+    public static BlockHash of(byte[] data) {
+        return fromBytes(DIGEST.get().digest(data), 0);
+    }
+
+    /**
+     * Read a hash from its raw bytes.
+     * @param bytes Array holding the hash
+     * @param offset Position of the first byte
+     * @return The hash
+     */
+    public static BlockHash fromBytes(byte[] bytes, int offset) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, BYTES);
+        return new BlockHash(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * Parse a hash from its hex form, with or without leading zeros.
+     * @param hex Hex digits of the hash
+     * @return The hash
+     * @throws IllegalArgumentException If hex is not a hash value
+     */
+    public static BlockHash fromHex(String hex) {
+        int digits = hex.length();
+        if (digits == 0 || digits > 2 * BYTES) {
+            throw new IllegalArgumentException("Not a hash value: " + hex);
+        }
+        long[] words = new long[4];
+        // Digits are right-aligned: the last 16 digits form w3, the 16 before them w2, and so on
+        for (int word = 3, end = digits; end > 0; word--, end -= 16) {
+            long value = 0;
+            for (int i = Math.max(0, end - 16); i < end; i++) {
+                char c = hex.charAt(i);
+                int digit = c < 128 ? DIGIT_VALUES[c] : -1;
+                if (digit < 0) {
+                    throw new IllegalArgumentException("Not a hash value: " + hex);
+                }
+                value = (value << 4) | digit;
+            }
+            words[word] = value;
+        }
+        return new BlockHash(words[0], words[1], words[2], words[3]);
+    }
+
+    /**
+     * Write the raw bytes of the hash.
+     * @param bytes Array to write to
+     * @param offset Position of the first byte
+     */
+    public void toBytes(byte[] bytes, int offset) {
+        ByteBuffer.wrap(bytes, offset, BYTES).putLong(w0).putLong(w1).putLong(w2).putLong(w3);
+    }
+
+    /**
+     * Get the raw bytes of the hash.
+     * @return 32-byte array
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[BYTES];
+        toBytes(bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Format the hash as the hex string used on the wire and in the index.
+     * @return Hex digits without leading zeros, padded to at least 32 digits
+     */
+    public String toHex() {
+        char[] hex = new char[2 * BYTES];
+        long[] words = {w0, w1, w2, w3};
+        for (int i = 0; i < hex.length; i++) {
+            hex[i] = HEX_DIGITS[(int) (words[i / 16] >>> (60 - 4 * (i % 16))) & 0xf];
+        }
+        int start = 0;
+        while (start < BYTES && hex[start] == '0') {
+            start++;
+        }
+        return new String(hex, start, hex.length - start);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof BlockHash)) return false;
+        BlockHash hash = (BlockHash) other;
+        return w0 == hash.w0 && w1 == hash.w1 && w2 == hash.w2 && w3 == hash.w3;
+    }
+
+    @Override
+    public int hashCode() {
+        // The bits of a SHA-256 hash are already uniformly distributed
+        return (int) w1;
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+}
@@ -0,0 +1,301 @@
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Map of block hash to the location of the block record, packed into primitive arrays.
+ * Each slot of the open-addressing table takes six longs, so an entry costs 64 to 128 bytes
+ * depending on the load, instead of about 170 bytes for a hex String key, a location object
+ * and a map node.
+ *
+ * The table is split into stripes by the top bits of the hash. Lookups in a stripe run without
+ * locking and are retried under the read lock only if a writer changed the stripe meanwhile;
+ * writers of different stripes do not block each other.
+ */
+public class BlockIndex {
+
+    private static final int STRIPE_BITS = 6;
+    private static final int INITIAL_CAPACITY = 16; // Slots per stripe, a power of two
+    private static final double MAX_LOAD = 0.75;
+    private static final int CODEC_SHIFT = 56; // Offsets stay below 2^56
+
+    private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+    /**
+     * Position of a block record in a segment, and the codec of its data.
+     */
+    public static class Location {
+        final int segment;
+        final long offset;
+        final int length;
+        final int codec; // BlockCodec.NONE for raw data, otherwise the data is an encoded block
+
+        Location(int segment, long offset, int length) {
+            this(segment, offset, length, BlockCodec.NONE);
+        }
+
+        Location(int segment, long offset, int length, int codec) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.codec = codec;
+        }
+    }
+
+    /**
+     * Open-addressing table with linear probing.
+     * Slot i holds the hash words in keys[4i..4i+3], and in values[2i] the segment and
+     * length + 1 (0 marks an empty slot) and in values[2i+1] the codec in the top byte and the offset.
+     */
+    private static class Table {
+        final long[] keys;
+        final long[] values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new long[4 * capacity];
+            values = new long[2 * capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    private static class Stripe {
+        final StampedLock lock = new StampedLock();
+        volatile Table table = new Table(INITIAL_CAPACITY);
+        volatile int size;
+    }
+
+    public BlockIndex() {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe stripe(BlockHash hash) {
+        return stripes[(int) (hash.w0 >>> (64 - STRIPE_BITS))];
+    }
+
+    /**
+     * Find the location of a block.
+     * @param hash Hash of the block
+     * @return Location of the block record, or null if it is not indexed
+     */
+    public Location get(BlockHash hash) {
+        Stripe stripe = stripe(hash);
+        long stamp = stripe.lock.tryOptimisticRead();
+        Table table = stripe.table;
+        int slot = find(table, hash);
+        Location location = slot < 0 ? null : location(table, slot);
+        if (!stripe.lock.validate(stamp)) {
+            stamp = stripe.lock.readLock();
+            try {
+                table = stripe.table;
+                slot = find(table, hash);
+                location = slot < 0 ? null : location(table, slot);
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return location;
+    }
+
+    /**
+     * Check if a block is indexed.
+     * @param hash Hash of the block
+     * @return True if the block is indexed
+     */
+    public boolean contains(BlockHash hash) {
+        Stripe stripe = stripe(hash);
+        long stamp = stripe.lock.tryOptimisticRead();
+        boolean found = find(stripe.table, hash) >= 0;
+        if (!stripe.lock.validate(stamp)) {
+            stamp = stripe.lock.readLock();
+            try {
+                found = find(stripe.table, hash) >= 0;
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Index a block unless it is indexed already.
+     * @param hash Hash of the block
+     * @param location Location of the block record
+     * @return True if the block was added
+     */
+    public boolean putIfAbsent(BlockHash hash, Location location) {
+        Stripe stripe = stripe(hash);
+        long stamp = stripe.lock.writeLock();
+        try {
+            Table table = stripe.table;
+            if (find(table, hash) >= 0) return false;
+            if (stripe.size + 1 > MAX_LOAD * (table.mask + 1)) {
+                table = resize(table, 2 * (table.mask + 1));
+                stripe.table = table;
+            }
+            insert(table, hash.w0, hash.w1, hash.w2, hash.w3,
+                    pack(location.segment, location.length), (long) location.codec << CODEC_SHIFT | location.offset);
+            stripe.size++;
+            return true;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Move an indexed block to a new location, such as a copy of its record in another segment.
+     * @param hash Hash of the block
+     * @param location New location of the block record
+     * @return True if the block was indexed
+     */
+    public boolean replace(BlockHash hash, Location location) {
+        Stripe stripe = stripe(hash);
+        long stamp = stripe.lock.writeLock();
+        try {
+            Table table = stripe.table;
+            int slot = find(table, hash);
+            if (slot < 0) return false;
+            table.values[2 * slot + 1] = (long) location.codec << CODEC_SHIFT | location.offset;
+            table.values[2 * slot] = pack(location.segment, location.length);
+            return true;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Remove a block from the index.
+     * @param hash Hash of the block
+     * @return True if the block was indexed
+     */
+    public boolean remove(BlockHash hash) {
+        Stripe stripe = stripe(hash);
+        long stamp = stripe.lock.writeLock();
+        try {
+            Table table = stripe.table;
+            int hole = find(table, hash);
+            if (hole < 0) return false;
+            // Shift later entries of the probe run back into the hole, so lookups never stop early
+            int slot = hole;
+            while (true) {
+                slot = (slot + 1) & table.mask;
+                if (table.values[2 * slot] == 0) break;
+                int home = (int) table.keys[4 * slot + 1] & table.mask;
+                boolean stays = hole <= slot ? hole < home && home <= slot : hole < home || home <= slot;
+                if (!stays) {
+                    System.arraycopy(table.keys, 4 * slot, table.keys, 4 * hole, 4);
+                    System.arraycopy(table.values, 2 * slot, table.values, 2 * hole, 2);
+                    hole = slot;
+                }
+            }
+            table.values[2 * hole] = 0;
+            stripe.size--;
+            return true;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Number of indexed blocks.
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size;
+        }
+        return size;
+    }
+
+    /**
+     * Remove every block.
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.writeLock();
+            try {
+                stripe.table = new Table(INITIAL_CAPACITY);
+                stripe.size = 0;
+            } finally {
+                stripe.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Visit every indexed block, one stripe at a time.
+     * A stripe cannot be written while its blocks are visited.
+     * @param visitor Called with the hash and location of each block
+     */
+    public void forEach(BiConsumer<BlockHash, Location> visitor) {
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.readLock();
+            try {
+                Table table = stripe.table;
+                for (int slot = 0; slot <= table.mask; slot++) {
+                    if (table.values[2 * slot] == 0) continue;
+                    int k = 4 * slot;
+                    visitor.accept(new BlockHash(table.keys[k], table.keys[k + 1], table.keys[k + 2], table.keys[k + 3]),
+                            location(table, slot));
+                }
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * Find the slot of a hash.
+     * @return Slot index, or -1 if the hash is not in the table
+     */
+    private static int find(Table table, BlockHash hash) {
+        int slot = (int) hash.w1 & table.mask;
+        for (int probes = 0; probes <= table.mask; probes++) {
+            if (table.values[2 * slot] == 0) return -1;
+            int k = 4 * slot;
+            if (table.keys[k] == hash.w0 && table.keys[k + 1] == hash.w1
+                    && table.keys[k + 2] == hash.w2 && table.keys[k + 3] == hash.w3) {
+                return slot;
+            }
+            slot = (slot + 1) & table.mask;
+        }
+        return -1;
+    }
+
+    private static void insert(Table table, long w0, long w1, long w2, long w3, long meta, long offset) {
+        int slot = (int) w1 & table.mask;
+        while (table.values[2 * slot] != 0) {
+            slot = (slot + 1) & table.mask;
+        }
+        int k = 4 * slot;
+        table.keys[k] = w0;
+        table.keys[k + 1] = w1;
+        table.keys[k + 2] = w2;
+        table.keys[k + 3] = w3;
+        table.values[2 * slot + 1] = offset;
+        table.values[2 * slot] = meta;
+    }
+
+    private static Table resize(Table table, int capacity) {
+        Table resized = new Table(capacity);
+        for (int slot = 0; slot <= table.mask; slot++) {
+            long meta = table.values[2 * slot];
+            if (meta == 0) continue;
+            int k = 4 * slot;
+            insert(resized, table.keys[k], table.keys[k + 1], table.keys[k + 2], table.keys[k + 3],
+                    meta, table.values[2 * slot + 1]);
+        }
+        return resized;
+    }
+
+    private static long pack(int segment, int length) {
+        return ((long) segment << 32) | ((length + 1) & 0xffffffffL);
+    }
+
+    private static Location location(Table table, int slot) {
+        long meta = table.values[2 * slot];
+        long offset = table.values[2 * slot + 1];
+        return new Location((int) (meta >>> 32), offset & ((1L << CODEC_SHIFT) - 1), (int) meta - 1, (int) (offset >>> CODEC_SHIFT));
+    }
+}
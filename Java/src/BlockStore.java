@@ -0,0 +1,946 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Disk-backed store of blocks keyed by hash value.
+ * Blocks are appended to segment files in a data directory and located through an
+ * in-memory index of hash value to segment and offset, so block data never has to fit in the heap.
+ *
+ * Each record in a segment is: magic, data length, CRC32 of the data, 32-byte SHA-256 hash, data.
+ * The data of an "SBR1" record is the raw block, that of an "SBR2" record a compressed block
+ * as encoded by BlockCodec. The hash is always the hash of the raw block.
+ * On startup the index is loaded from the snapshot written by the last run, and only the
+ * records appended after that snapshot are scanned. A torn record at the end of a segment is truncated.
+ *
+ * Puts are made durable by sync, which is group-committed: the fsync runs without holding the
+ * store lock, so puts go on meanwhile, and callers arriving during an fsync share the next one.
+ */
+public class BlockStore {
+
+    private static final int RECORD_MAGIC = 0x53425231; // "SBR1"
+    private static final int ENCODED_RECORD_MAGIC = 0x53425232; // "SBR2"
+    private static final int OLD_INDEX_MAGIC = 0x53424931; // "SBI1", snapshot without codecs
+    private static final int INDEX_MAGIC = 0x53424932; // "SBI2"
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 32;
+    private static final String INDEX_FILE = "index.snapshot";
+    private static final String PARTS_DIR = "parts"; // Blocks being uploaded in parts, one file per block
+    private static final int COPY_BYTES = 1024 * 1024; // Buffer for hashing and copying uploaded parts
+    private static final long RETIRE_MILLIS = 60000; // Time compacted segments stay open for reads that located a block in them
+
+    private final File dir; // Directory holding the segments and the index snapshot
+    private final long segmentBytes; // Size after which a new segment is started
+
+    // Map<segment id, channel>
+    private final Map<Integer, FileChannel> segments = new ConcurrentHashMap<Integer, FileChannel>();
+
+    // Map<hash, location of the record>
+    private final BlockIndex index = new BlockIndex();
+
+    private final BlockCache cache; // Recently read block records, null if not caching
+
+    // Hashes of the stored blocks, rebuilt larger by append once full
+    private volatile BlockFilter filter;
+
+    private final Object partsLock = new Object(); // Held while a part file is written or committed
+    private final Object snapshotLock = new Object(); // Held while the index snapshot is written, taken before the store lock
+
+    // Map<segment id, time it was compacted>, segments whose records were all copied or removed
+    private final Map<Integer, Long> retired = new HashMap<Integer, Long>();
+    private long removedSinceFilter; // Blocks removed since the filter was built, still set in it
+
+    private final Object syncLock = new Object(); // Held by the thread running an fsync, others wait for it
+    private long writes; // Records written so far
+    private volatile long syncedWrites; // Records known to be on disk
+    private volatile long syncCount; // Calls of sync, counted holding the store lock
+    private volatile long fsyncCount; // Fsyncs run by sync
+
+    private int activeSegment; // Segment new blocks are appended to
+    private long activeSize; // Bytes written to the active segment
+    private long storedBytes; // Total size of stored blocks
+
+    /**
+     * Constructor. Opens the segments in the given directory and recovers the index.
+     * @param dir Directory holding the segments, created if it does not exist
+     * @param segmentBytes Size after which a new segment is started
+     */
+    public BlockStore(File dir, long segmentBytes) throws IOException {
+        this(dir, segmentBytes, 0);
+    }
+
+    /**
+     * Constructor. Opens the segments in the given directory and recovers the index.
+     * @param dir Directory holding the segments, created if it does not exist
+     * @param segmentBytes Size after which a new segment is started
+     * @param cacheBytes Bytes of recently read blocks kept in the heap, 0 for no cache
+     */
+    public BlockStore(File dir, long segmentBytes, long cacheBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.cache = cacheBytes > 0 ? new BlockCache(cacheBytes) : null;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create block store directory " + dir);
+        }
+        long start = System.nanoTime();
+        recover();
+        filter = buildFilter(2L * index.size());
+        Log.info("Recovered %d blocks (%d bytes) in %d segments in %.1f ms, filter %d bytes",
+                index.size(), storedBytes, segments.size(), (System.nanoTime() - start) / 1e6, filter.bytes());
+    }
+
+    /**
+     * Given a hash value, return the associated block.
+     * @param hashvalue SHA-256 hash of the block
+     * @return Byte array chunk, or null if the block is not stored
+     */
+    public byte[] get(BlockHash hashvalue) throws IOException {
+        BlockIndex.Location location = index.get(hashvalue);
+        while (location != null) {
+            try {
+                byte[] blockData = read(hashvalue, location);
+                return location.codec == BlockCodec.NONE ? blockData : BlockCodec.decode(blockData);
+            } catch (ClosedChannelException e) {
+                location = moved(hashvalue, location, e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Given a hash value, return the associated block in the form it is stored in,
+     * so a compressed block can be sent without decompressing it.
+     * @param hashvalue SHA-256 hash of the block
+     * @return Block encoded by BlockCodec, or null if the block is not stored
+     */
+    public byte[] getEncoded(BlockHash hashvalue) throws IOException {
+        BlockIndex.Location location = index.get(hashvalue);
+        while (location != null) {
+            try {
+                byte[] blockData = read(hashvalue, location);
+                return location.codec == BlockCodec.NONE ? BlockCodec.encode(blockData, BlockCodec.NONE) : blockData;
+            } catch (ClosedChannelException e) {
+                location = moved(hashvalue, location, e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read the data of a block record from the cache, or from its segment and cache it.
+     * Callers must not modify the returned array, as it may be shared through the cache.
+     */
+    private byte[] read(BlockHash hashvalue, BlockIndex.Location location) throws IOException {
+        if (cache == null) return read(location);
+        byte[] blockData = cache.get(hashvalue);
+        if (blockData == null) {
+            blockData = read(location);
+            cache.put(hashvalue, blockData);
+        }
+        return blockData;
+    }
+
+    /**
+     * Read the data of a block record from its segment.
+     */
+    private byte[] read(BlockIndex.Location location) throws IOException {
+        byte[] blockData = new byte[location.length];
+        ByteBuffer buffer = ByteBuffer.wrap(blockData);
+        FileChannel channel = segment(location.segment);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, location.offset + HEADER_BYTES + buffer.position()) < 0) {
+                throw new EOFException("Block record is truncated");
+            }
+        }
+        return blockData;
+    }
+
+    /**
+     * Get the channel of a segment.
+     * @throws ClosedChannelException If the segment was deleted, after compaction moved its records
+     */
+    private FileChannel segment(int id) throws ClosedChannelException {
+        FileChannel channel = segments.get(id);
+        if (channel == null) throw new ClosedChannelException();
+        return channel;
+    }
+
+    /**
+     * Look a block up again after reading it from a closed segment. A read that located the block
+     * before compaction moved it can find the old segment deleted RETIRE_MILLIS later.
+     * @param closed The exception of the read, thrown again if the block did not move
+     * @return The new location of the block, or null if it was removed since
+     */
+    private BlockIndex.Location moved(BlockHash hashvalue, BlockIndex.Location location, ClosedChannelException closed) throws ClosedChannelException {
+        BlockIndex.Location current = index.get(hashvalue);
+        if (current != null && current.segment == location.segment && current.offset == location.offset) throw closed;
+        return current;
+    }
+
+    /**
+     * Find where a block is stored, so it can be sent with transferTo.
+     * @param hashvalue SHA-256 hash of the block
+     * @return Location of the block record, or null if the block is not stored
+     */
+    public BlockIndex.Location locate(BlockHash hashvalue) {
+        return index.get(hashvalue);
+    }
+
+    /**
+     * Size of a stored block once decoded.
+     * @param hashvalue SHA-256 hash of the block
+     * @return Length of the raw block, or -1 if the block is not stored
+     */
+    public int rawLength(BlockHash hashvalue) throws IOException {
+        BlockIndex.Location location = index.get(hashvalue);
+        while (location != null) {
+            if (location.codec == BlockCodec.NONE) return location.length;
+            try {
+                ByteBuffer header = ByteBuffer.allocate(BlockCodec.HEADER_BYTES);
+                readFully(segment(location.segment), header, location.offset + HEADER_BYTES);
+                return header.getInt(1);
+            } catch (ClosedChannelException e) {
+                location = moved(hashvalue, location, e);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read part of a stored block. A raw block is read straight from its segment; a compressed
+     * block is decoded whole first, so large blocks are best stored raw.
+     * @param hashvalue SHA-256 hash of the block
+     * @param offset Offset in the raw block
+     * @param length Number of bytes to read, fewer are returned at the end of the block
+     * @return The bytes, or null if the block is not stored
+     */
+    public byte[] getRange(BlockHash hashvalue, long offset, int length) throws IOException {
+        BlockIndex.Location location = index.get(hashvalue);
+        while (location != null) {
+            if (location.codec != BlockCodec.NONE) {
+                byte[] blockData = get(hashvalue);
+                if (blockData == null) return null;
+                int from = (int) Math.min(offset, blockData.length);
+                return Arrays.copyOfRange(blockData, from, (int) Math.min(blockData.length, from + (long) length));
+            }
+            if (offset < 0 || offset > location.length) {
+                throw new IllegalArgumentException("Offset " + offset + " is outside the block of " + location.length + " bytes");
+            }
+            byte[] range = new byte[(int) Math.min(length, location.length - offset)];
+            try {
+                if (readFully(segment(location.segment), ByteBuffer.wrap(range), location.offset + HEADER_BYTES + offset) != range.length) {
+                    throw new EOFException("Block record is truncated");
+                }
+                return range;
+            } catch (ClosedChannelException e) {
+                location = moved(hashvalue, location, e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Number of bytes of a block received so far through writePart, so an interrupted upload can resume.
+     * @param hashvalue SHA-256 hash of the block
+     * @return Byte count, 0 if no part was received
+     */
+    public long partLength(BlockHash hashvalue) {
+        return partFile(hashvalue).length();
+    }
+
+    /**
+     * Write a part of a block being uploaded in parts. Parts are written in order: a part
+     * may start anywhere up to the bytes received so far, overwriting what was sent again.
+     * @param hashvalue SHA-256 hash of the whole block
+     * @param offset Offset of the part in the block
+     * @param data Bytes of the part
+     * @return Number of bytes of the block received so far
+     */
+    public long writePart(BlockHash hashvalue, long offset, byte[] data) throws IOException {
+        File part = partFile(hashvalue);
+        synchronized (partsLock) {
+            part.getParentFile().mkdirs();
+            try (FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                if (offset < 0 || offset > channel.size()) {
+                    throw new IllegalArgumentException("Part at offset " + offset + " leaves a gap after " + channel.size() + " bytes");
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, offset + buffer.position());
+                }
+                return channel.size();
+            }
+        }
+    }
+
+    /**
+     * Store a block uploaded in parts once its hash is verified, copying it from the part
+     * file into the active segment without holding it in the heap. The part file is removed,
+     * also if the hash does not match, so a failed upload starts over.
+     * @param hashvalue SHA-256 hash of the whole block
+     * @throws IllegalArgumentException If the bytes received do not hash to hashvalue
+     */
+    public void commitPart(BlockHash hashvalue) throws IOException {
+        File part = partFile(hashvalue);
+        synchronized (partsLock) {
+            if (!part.exists()) {
+                if (contains(hashvalue)) return; // Committed by an earlier call
+                throw new IllegalArgumentException("No parts received for block " + hashvalue);
+            }
+            try (FileChannel source = FileChannel.open(part.toPath(), StandardOpenOption.READ)) {
+                long length = source.size();
+                if (length > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Block of " + length + " bytes is too large");
+                }
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                CRC32 crc = new CRC32();
+                ByteBuffer buffer = ByteBuffer.allocate(COPY_BYTES);
+                for (long position = 0; position < length; position += buffer.limit()) {
+                    buffer.clear();
+                    readFully(source, buffer, position);
+                    buffer.flip();
+                    digest.update(buffer.array(), 0, buffer.limit());
+                    crc.update(buffer.array(), 0, buffer.limit());
+                }
+                BlockHash received = BlockHash.fromBytes(digest.digest(), 0);
+                if (!received.equals(hashvalue)) {
+                    throw new IllegalArgumentException("Block parts hash to " + received + ", not " + hashvalue);
+                }
+                appendFrom(hashvalue, source, (int) length, (int) crc.getValue());
+                sync();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            } finally {
+                part.delete();
+            }
+        }
+    }
+
+    private File partFile(BlockHash hashvalue) {
+        return new File(new File(dir, PARTS_DIR), hashvalue.toHex() + ".part");
+    }
+
+    /**
+     * Returns the statistics of the block cache.
+     * @return Mapping of statistic name to value, empty if not caching
+     */
+    public Hashtable<String, Object> cacheStats() {
+        return cache == null ? new Hashtable<String, Object>() : cache.stats();
+    }
+
+    /**
+     * Returns the number of sync calls and of the fsyncs they shared.
+     * Counts are doubles, as XML-RPC has no 64-bit integers.
+     * @return Mapping of statistic name to value
+     */
+    public Hashtable<String, Object> syncStats() {
+        Hashtable<String, Object> stats = new Hashtable<String, Object>();
+        stats.put("syncs", (double) syncCount);
+        stats.put("fsyncs", (double) fsyncCount);
+        return stats;
+    }
+
+    /**
+     * Send a block to a channel straight from its segment file, without copying it into the heap.
+     * If compaction moved the block and deleted its segment meanwhile, the rest is sent from the copy.
+     * @param hashvalue SHA-256 hash of the block
+     * @param location Location returned by locate
+     * @param target Channel to write the block data to
+     */
+    public void transferTo(BlockHash hashvalue, BlockIndex.Location location, WritableByteChannel target) throws IOException {
+        long sent = 0;
+        while (sent < location.length) {
+            try {
+                FileChannel channel = segment(location.segment);
+                long position = location.offset + HEADER_BYTES + sent;
+                long count = channel.transferTo(position, location.length - sent, target);
+                if (count <= 0 && position >= channel.size()) {
+                    throw new EOFException("Block record is truncated");
+                }
+                sent += count;
+            } catch (ClosedChannelException e) {
+                BlockIndex.Location current = moved(hashvalue, location, e);
+                // A copy made by compaction has the same data, a block stored again may not
+                if (current == null || current.length != location.length || current.codec != location.codec) throw e;
+                location = current;
+            }
+        }
+    }
+
+    /**
+     * Check if a block is stored.
+     * @param hashvalue SHA-256 hash of the block
+     * @return True if the block is stored
+     */
+    public boolean contains(BlockHash hashvalue) {
+        return filter.mightContain(hashvalue) && index.contains(hashvalue);
+    }
+
+    /**
+     * Check which of several blocks are stored. The filter is checked for all of them
+     * first, so the index is only probed for the blocks that may be stored.
+     * @param hashes SHA-256 hashes of the blocks
+     * @return For each hash, true if the block is stored
+     */
+    public boolean[] containsAll(List<BlockHash> hashes) {
+        BlockFilter current = filter;
+        boolean[] stored = new boolean[hashes.size()];
+        for (int i = 0; i < stored.length; i++) {
+            stored[i] = current.mightContain(hashes.get(i));
+        }
+        for (int i = 0; i < stored.length; i++) {
+            if (stored[i]) stored[i] = index.contains(hashes.get(i));
+        }
+        return stored;
+    }
+
+    /**
+     * Visit the hash of every stored block.
+     * @param visitor Called with each hash
+     */
+    public void forEachHash(Consumer<BlockHash> visitor) {
+        index.forEach((hashvalue, location) -> visitor.accept(hashvalue));
+    }
+
+    /**
+     * Append a block to the active segment unless it is already stored.
+     * The block is not durable until sync is called.
+     * @param hashvalue SHA-256 hash of the block
+     * @param blockData Byte array chunk
+     */
+    public synchronized void put(BlockHash hashvalue, byte[] blockData) throws IOException {
+        append(hashvalue, RECORD_MAGIC, blockData, BlockCodec.NONE);
+    }
+
+    /**
+     * Append a block in encoded form unless it is already stored.
+     * A compressed block is stored compressed, an uncompressed one as a raw block.
+     * The block is not durable until sync is called.
+     * @param hashvalue SHA-256 hash of the raw block
+     * @param encoded Block encoded by BlockCodec
+     */
+    public synchronized void putEncoded(BlockHash hashvalue, byte[] encoded) throws IOException {
+        int codec = BlockCodec.codec(encoded);
+        if (codec == BlockCodec.NONE) {
+            append(hashvalue, RECORD_MAGIC, BlockCodec.decode(encoded), codec);
+        } else {
+            append(hashvalue, ENCODED_RECORD_MAGIC, encoded, codec);
+        }
+    }
+
+    /**
+     * Append a raw block record whose data is copied from a file, unless the block is already stored.
+     */
+    private synchronized void appendFrom(BlockHash hashvalue, FileChannel source, int length, int crc) throws IOException {
+        if (contains(hashvalue)) return;
+        if (activeSize >= segmentBytes) {
+            segments.get(activeSegment).force(false);
+            openSegment(activeSegment + 1);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(RECORD_MAGIC).putInt(length).putInt(crc).put(hashvalue.toBytes()).flip();
+        FileChannel channel = segments.get(activeSegment);
+        long offset = activeSize;
+        writes++;
+        while (header.hasRemaining()) {
+            channel.write(header, offset + header.position());
+        }
+        source.position(0); // transferFrom reads from, and advances, the source's position
+        for (long copied = 0; copied < length; ) {
+            long sent = channel.transferFrom(source, offset + HEADER_BYTES + copied, length - copied);
+            if (sent <= 0) throw new EOFException("Part file is truncated");
+            copied += sent;
+        }
+        indexRecord(hashvalue, offset, HEADER_BYTES + length, length, BlockCodec.NONE);
+    }
+
+    /**
+     * Append a record to the active segment unless the block is already stored.
+     */
+    private void append(BlockHash hashvalue, int magic, byte[] blockData, int codec) throws IOException {
+        if (contains(hashvalue)) return;
+        long offset = writeRecord(hashvalue, magic, blockData);
+        indexRecord(hashvalue, offset, HEADER_BYTES + blockData.length, blockData.length, codec);
+    }
+
+    /**
+     * Write a record at the end of the active segment, starting a new segment first if it is full.
+     * @return Offset of the record in the active segment
+     */
+    private long writeRecord(BlockHash hashvalue, int magic, byte[] blockData) throws IOException {
+        if (activeSize >= segmentBytes) {
+            segments.get(activeSegment).force(false);
+            openSegment(activeSegment + 1);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(blockData);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + blockData.length);
+        record.putInt(magic).putInt(blockData.length).putInt((int) crc.getValue());
+        record.put(hashvalue.toBytes()).put(blockData).flip();
+        FileChannel channel = segments.get(activeSegment);
+        long offset = activeSize;
+        writes++;
+        while (record.hasRemaining()) {
+            channel.write(record, offset + record.position());
+        }
+        return offset;
+    }
+
+    /**
+     * Account for a record just written at the end of the active segment and index it.
+     */
+    private void indexRecord(BlockHash hashvalue, long offset, int recordBytes, int length, int codec) {
+        activeSize += recordBytes;
+        storedBytes += length;
+        // Filter first, so a lookup that finds the block in the index also passes the filter
+        if (index.size() >= filter.capacity()) {
+            filter = buildFilter(2 * filter.capacity());
+        }
+        filter.add(hashvalue);
+        index.putIfAbsent(hashvalue, new BlockIndex.Location(activeSegment, offset, length, codec));
+    }
+
+    /**
+     * Remove a block. Its record stays in its segment until compact rewrites the segment,
+     * and the removal is only durable once checkpoint writes the index snapshot.
+     * @param hashvalue SHA-256 hash of the block
+     * @return Size of the removed block data, or -1 if the block was not stored
+     */
+    public synchronized long remove(BlockHash hashvalue) {
+        BlockIndex.Location location = index.get(hashvalue);
+        if (location == null || !index.remove(hashvalue)) return -1;
+        storedBytes -= location.length;
+        removedSinceFilter++;
+        if (cache != null) cache.remove(hashvalue);
+        return location.length;
+    }
+
+    /**
+     * Reclaim the space of removed blocks and of duplicate records. Every sealed segment in which
+     * at least garbageRatio of the bytes are no longer indexed has its indexed records copied to the
+     * active segment, one record per hold of the store lock, so puts wait for at most one record copy
+     * and gets never wait. Compacted segments stay open for reads that located a block in them just
+     * before it moved, and are deleted by the first call RETIRE_MILLIS later.
+     * @param garbageRatio Fraction of a segment's bytes that must be garbage for it to be compacted
+     * @param pauses Receives how long, in microseconds, each step held the store lock
+     * @return Mapping of statistic name to value: segmentsCompacted, segmentsDeleted, bytesCopied,
+     *         bytesReclaimed (size of the compacted segments less the bytes copied) and maxPauseMicros
+     */
+    public Hashtable<String, Object> compact(double garbageRatio, Metrics.Histogram pauses) throws IOException {
+        long maxPause = 0;
+        long start = System.nanoTime();
+        int deleted = deleteRetired();
+        if (deleted > 0) maxPause = record(pauses, start);
+        // Drop the removed blocks from the filter once they are worth a rebuild
+        start = System.nanoTime();
+        boolean rebuilt = false;
+        synchronized (this) {
+            if (removedSinceFilter > 0 && removedSinceFilter >= filter.capacity() / 8) {
+                filter = buildFilter(2L * index.size());
+                removedSinceFilter = 0;
+                rebuilt = true;
+            }
+        }
+        if (rebuilt) maxPause = Math.max(maxPause, record(pauses, start));
+
+        // Bytes of each segment still referenced by the index
+        Map<Integer, Long> liveBytes = new HashMap<Integer, Long>();
+        index.forEach((hashvalue, location) -> liveBytes.merge(location.segment, (long) HEADER_BYTES + location.length, Long::sum));
+        Set<Integer> selected = new HashSet<Integer>();
+        long reclaimed = 0;
+        synchronized (this) {
+            for (Map.Entry<Integer, FileChannel> segment : segments.entrySet()) {
+                int id = segment.getKey();
+                if (id == activeSegment || retired.containsKey(id)) continue;
+                long size = segment.getValue().size();
+                long garbage = size - liveBytes.getOrDefault(id, 0L);
+                if (size > 0 && garbage >= garbageRatio * size) {
+                    selected.add(id);
+                    reclaimed += garbage;
+                }
+            }
+        }
+        Map<BlockHash, BlockIndex.Location> moving = new LinkedHashMap<BlockHash, BlockIndex.Location>();
+        if (!selected.isEmpty()) {
+            index.forEach((hashvalue, location) -> {
+                if (selected.contains(location.segment)) moving.put(hashvalue, location);
+            });
+        }
+
+        long copied = 0;
+        for (Map.Entry<BlockHash, BlockIndex.Location> record : moving.entrySet()) {
+            BlockIndex.Location location = record.getValue();
+            // Sealed segments never change, so the record is read without the lock
+            byte[] data = read(location);
+            start = System.nanoTime();
+            if (relocate(record.getKey(), location, data)) {
+                copied += HEADER_BYTES + data.length;
+            }
+            maxPause = Math.max(maxPause, record(pauses, start));
+        }
+        if (!selected.isEmpty()) {
+            sync();
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                for (int id : selected) {
+                    retired.put(id, now);
+                }
+            }
+        }
+
+        Hashtable<String, Object> result = new Hashtable<String, Object>();
+        result.put("segmentsCompacted", selected.size());
+        result.put("segmentsDeleted", deleted);
+        result.put("bytesCopied", (double) copied);
+        result.put("bytesReclaimed", (double) reclaimed);
+        result.put("maxPauseMicros", (double) maxPause);
+        return result;
+    }
+
+    /**
+     * Delete the part files of uploads abandoned for longer than the given time.
+     * @param idleMillis Milliseconds since a part was last written
+     * @return Bytes deleted
+     */
+    public long removeStaleParts(long idleMillis) {
+        File[] parts = new File(dir, PARTS_DIR).listFiles();
+        if (parts == null) return 0;
+        long removedBytes = 0;
+        long cutoff = System.currentTimeMillis() - idleMillis;
+        synchronized (partsLock) {
+            for (File part : parts) {
+                long length = part.length();
+                if (part.lastModified() < cutoff && part.delete()) {
+                    removedBytes += length;
+                }
+            }
+        }
+        return removedBytes;
+    }
+
+    /**
+     * Copy a record of a sealed segment to the active segment and point the index at the copy,
+     * unless the block was removed or moved since it was located.
+     * @return True if the record was copied
+     */
+    private synchronized boolean relocate(BlockHash hashvalue, BlockIndex.Location from, byte[] data) throws IOException {
+        BlockIndex.Location current = index.get(hashvalue);
+        if (current == null || current.segment != from.segment || current.offset != from.offset) return false;
+        long offset = writeRecord(hashvalue, from.codec == BlockCodec.NONE ? RECORD_MAGIC : ENCODED_RECORD_MAGIC, data);
+        activeSize += HEADER_BYTES + data.length;
+        index.replace(hashvalue, new BlockIndex.Location(activeSegment, offset, data.length, from.codec));
+        return true;
+    }
+
+    /**
+     * Close and delete the segments compacted at least RETIRE_MILLIS ago. The snapshot is
+     * rewritten without them first; until then a restart finds the index snapshot pointing
+     * into them, and after it a crash before the delete only leaves garbage to rescan.
+     * @return Number of segments deleted
+     */
+    private int deleteRetired() throws IOException {
+        List<File> files = new ArrayList<File>();
+        synchronized (this) {
+            long cutoff = System.currentTimeMillis() - RETIRE_MILLIS;
+            Iterator<Map.Entry<Integer, Long>> segment = retired.entrySet().iterator();
+            while (segment.hasNext()) {
+                Map.Entry<Integer, Long> compacted = segment.next();
+                if (compacted.getValue() > cutoff) continue;
+                segments.remove(compacted.getKey()).close();
+                files.add(segmentFile(compacted.getKey()));
+                segment.remove();
+            }
+            if (files.isEmpty()) return 0;
+        }
+        writeSnapshot();
+        for (File file : files) {
+            if (!file.delete()) Log.warn("Block store: cannot delete %s", file);
+        }
+        return files.size();
+    }
+
+    private static long record(Metrics.Histogram pauses, long startNanos) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        pauses.record(micros);
+        return micros;
+    }
+
+    /**
+     * Flush the blocks appended so far to disk. Returns without an fsync if the blocks the
+     * caller could have appended were covered by an fsync that started after them.
+     */
+    public void sync() throws IOException {
+        long target;
+        synchronized (this) {
+            target = writes;
+            syncCount++;
+        }
+        if (syncedWrites >= target) return;
+        synchronized (syncLock) {
+            // The fsync this caller waited for may have covered its blocks
+            if (syncedWrites >= target) return;
+            long covered;
+            FileChannel channel;
+            synchronized (this) {
+                covered = writes;
+                channel = segments.get(activeSegment); // Earlier segments were forced when they were sealed
+            }
+            channel.force(false);
+            syncedWrites = covered;
+            fsyncCount++;
+        }
+    }
+
+    /**
+     * Number of blocks stored.
+     * @return Block count
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Total size of the stored blocks, without record headers.
+     * @return Byte count
+     */
+    public synchronized long bytes() {
+        return storedBytes;
+    }
+
+    /**
+     * Write the index snapshot, so blocks removed since the last one stay removed after a crash
+     * instead of being found again in the records the previous snapshot covers.
+     */
+    public void checkpoint() throws IOException {
+        writeSnapshot();
+    }
+
+    /**
+     * Flush the segments, write the index snapshot and close the store.
+     */
+    public void close() throws IOException {
+        writeSnapshot(); // Flushes the active segment first
+        synchronized (this) {
+            for (FileChannel channel : segments.values()) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Build a filter of the hashes of all stored blocks.
+     * @param expected Number of blocks the filter is sized for
+     */
+    private BlockFilter buildFilter(long expected) {
+        BlockFilter rebuilt = new BlockFilter(expected);
+        index.forEach((hashvalue, location) -> rebuilt.add(hashvalue));
+        return rebuilt;
+    }
+
+    /**
+     * Open every segment and rebuild the index from the snapshot and the records after it.
+     */
+    private void recover() throws IOException {
+        TreeMap<Integer, File> files = new TreeMap<Integer, File>();
+        File[] listing = dir.listFiles();
+        for (File file : listing) {
+            String name = file.getName();
+            if (name.startsWith("segment-") && name.endsWith(".log")) {
+                files.put(Integer.parseInt(name.substring(8, name.length() - 4)), file);
+            }
+        }
+        for (Map.Entry<Integer, File> file : files.entrySet()) {
+            segments.put(file.getKey(), FileChannel.open(file.getValue().toPath(),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE));
+        }
+        Map<Integer, Long> scanned = readSnapshot();
+        for (int segment : files.keySet()) {
+            long from = scanned.containsKey(segment) ? scanned.get(segment) : 0;
+            scanSegment(segment, from, segment == files.lastKey());
+        }
+        if (files.isEmpty()) {
+            openSegment(0);
+        } else {
+            activeSegment = files.lastKey();
+            activeSize = segments.get(activeSegment).size();
+        }
+        // Save the recovered index right away so the next startup does not rescan
+        writeSnapshot();
+    }
+
+    /**
+     * Add the records of a segment after the given offset to the index.
+     * @param segment Segment id
+     * @param from Offset of the first record to scan
+     * @param last True if this is the newest segment, whose torn tail is truncated
+     */
+    private void scanSegment(int segment, long from, boolean last) throws IOException {
+        FileChannel channel = segments.get(segment);
+        long size = channel.size();
+        long offset = from;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (offset < size) {
+            header.clear();
+            if (readFully(channel, header, offset) < HEADER_BYTES) break;
+            int magic = header.getInt(0);
+            if (magic != RECORD_MAGIC && magic != ENCODED_RECORD_MAGIC) break;
+            int length = header.getInt(4);
+            if (length < 0 || offset + HEADER_BYTES + length > size) break;
+            ByteBuffer data = ByteBuffer.allocate(length);
+            readFully(channel, data, offset + HEADER_BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(data.array());
+            if ((int) crc.getValue() != header.getInt(8)) break;
+            byte[] hash = new byte[32];
+            header.position(12);
+            header.get(hash);
+            int codec = magic == ENCODED_RECORD_MAGIC && length > 0 ? data.get(0) : BlockCodec.NONE;
+            if (index.putIfAbsent(BlockHash.fromBytes(hash, 0), new BlockIndex.Location(segment, offset, length, codec))) {
+                storedBytes += length;
+            }
+            offset += HEADER_BYTES + length;
+        }
+        if (offset < size) {
+            Log.warn("Block store: segment %d is corrupt after offset %d", segment, offset);
+            if (last) {
+                channel.truncate(offset);
+            }
+        }
+    }
+
+    /**
+     * Create a new segment and make it the active one.
+     * @param segment Segment id
+     */
+    private void openSegment(int segment) throws IOException {
+        File file = segmentFile(segment);
+        segments.put(segment, FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        activeSegment = segment;
+        activeSize = 0;
+    }
+
+    private File segmentFile(int segment) {
+        return new File(dir, String.format("segment-%06d.log", segment));
+    }
+
+    /**
+     * Write the index and the scanned length of every segment to the snapshot file.
+     * The lengths are taken holding the store lock and the index is walked without it, so puts
+     * go on meanwhile; blocks written after the lengths were taken are left out, as the next
+     * recovery scans their records. The file is replaced atomically, so a crash leaves either
+     * the old or the new snapshot.
+     */
+    private void writeSnapshot() throws IOException {
+        synchronized (snapshotLock) {
+            Map<Integer, Long> scanned = new TreeMap<Integer, Long>();
+            FileChannel active;
+            synchronized (this) {
+                for (Map.Entry<Integer, FileChannel> segment : segments.entrySet()) {
+                    scanned.put(segment.getKey(), segment.getKey() == activeSegment ? activeSize : segment.getValue().size());
+                }
+                active = segments.get(activeSegment);
+            }
+            // Earlier segments were forced when they were sealed
+            active.force(false);
+            File tmp = new File(dir, INDEX_FILE + ".tmp");
+            FileOutputStream file = new FileOutputStream(tmp);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(scanned.size());
+                for (Map.Entry<Integer, Long> segment : scanned.entrySet()) {
+                    out.writeInt(segment.getKey());
+                    out.writeLong(segment.getValue());
+                }
+                long countOffset = out.size();
+                out.writeInt(0); // Entry count, written once the entries are
+                byte[] hash = new byte[BlockHash.BYTES];
+                int[] count = new int[1];
+                IOException[] failure = new IOException[1];
+                index.forEach((hashvalue, location) -> {
+                    Long length = scanned.get(location.segment);
+                    if (length == null || location.offset >= length) return;
+                    try {
+                        hashvalue.toBytes(hash, 0);
+                        out.write(hash);
+                        out.writeInt(location.segment);
+                        out.writeLong(location.offset);
+                        out.writeInt(location.length);
+                        out.writeByte(location.codec);
+                        count[0]++;
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                });
+                if (failure[0] != null) throw failure[0];
+                out.flush();
+                file.getChannel().write(ByteBuffer.allocate(4).putInt(0, count[0]), countOffset);
+                file.getFD().sync();
+            }
+            Files.move(tmp.toPath(), new File(dir, INDEX_FILE).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Load the index snapshot, if there is a valid one.
+     * @return Mapping of segment id to the length covered by the snapshot
+     */
+    private Map<Integer, Long> readSnapshot() {
+        Map<Integer, Long> scanned = new HashMap<Integer, Long>();
+        File file = new File(dir, INDEX_FILE);
+        if (!file.exists()) return scanned;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int magic = in.readInt();
+            if (magic != INDEX_MAGIC && magic != OLD_INDEX_MAGIC) throw new IOException("Bad magic");
+            int segmentCount = in.readInt();
+            for (int i = 0; i < segmentCount; i++) {
+                int segment = in.readInt();
+                long length = in.readLong();
+                // A segment shorter than the snapshot says was truncated, rescan everything
+                if (!segments.containsKey(segment) || segments.get(segment).size() < length) {
+                    throw new IOException("Segment " + segment + " does not match the snapshot");
+                }
+                scanned.put(segment, length);
+            }
+            int entries = in.readInt();
+            byte[] hash = new byte[32];
+            for (int i = 0; i < entries; i++) {
+                in.readFully(hash);
+                BlockIndex.Location location = new BlockIndex.Location(in.readInt(), in.readLong(), in.readInt(),
+                        magic == INDEX_MAGIC ? in.readByte() : BlockCodec.NONE);
+                if (index.putIfAbsent(BlockHash.fromBytes(hash, 0), location)) {
+                    storedBytes += location.length;
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("Block store: ignoring index snapshot: %s", e);
+            index.clear();
+            storedBytes = 0;
+            scanned.clear();
+        }
+        return scanned;
+    }
+
+    /**
+     * Read from the channel at the given position until the buffer is full or the file ends.
+     * @return Number of bytes read
+     */
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position + total);
+            if (bytesRead < 0) break;
+            total += bytesRead;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,153 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Splits files into blocks.
+ * Fixed chunking cuts a file every blockSize bytes. Content-defined chunking cuts it where a
+ * gear rolling hash of the last bytes matches a mask (FastCDC), so cut points move with the
+ * content: inserting a byte only changes the blocks around the insertion instead of every
+ * block after it.
+ *
+ * Blocks are at least min bytes, at most max bytes, and about avg bytes on average. Below avg
+ * a cut needs two more matching hash bits than above it, which narrows the spread of block sizes.
+ */
+public class Chunker {
+
+    // Random value per byte value, fixed so every client cuts the same content at the same points
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x53757266L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private static final int READ_BYTES = 1024 * 1024; // Minimum bytes read from the file at a time
+
+    private final boolean contentDefined;
+    private final int min; // Minimum block size
+    private final int avg; // Average block size
+    private final int max; // Maximum block size
+    private final long smallMask; // Cut mask before avg bytes, harder to match
+    private final long largeMask; // Cut mask after avg bytes, easier to match
+
+    private Chunker(boolean contentDefined, int min, int avg, int max) {
+        if (min < 1 || min > avg || avg > max) {
+            throw new IllegalArgumentException("Block sizes must satisfy 1 <= min <= avg <= max");
+        }
+        this.contentDefined = contentDefined;
+        this.min = min;
+        this.avg = avg;
+        this.max = max;
+        int bits = 31 - Integer.numberOfLeadingZeros(Math.max(avg - min, 1));
+        smallMask = mask(bits + 2);
+        largeMask = mask(Math.max(bits - 2, 1));
+    }
+
+    /**
+     * Chunker cutting every blockSize bytes.
+     */
+    public static Chunker fixed(int blockSize) {
+        return new Chunker(false, blockSize, blockSize, blockSize);
+    }
+
+    /**
+     * Content-defined chunker.
+     * @param min Minimum block size
+     * @param avg Average block size
+     * @param max Maximum block size
+     */
+    public static Chunker contentDefined(int min, int avg, int max) {
+        return new Chunker(true, min, avg, max);
+    }
+
+    /**
+     * Mask of the given number of top bits, the bits of the gear hash that depend on the most bytes.
+     */
+    private static long mask(int bits) {
+        return -1L << (64 - Math.min(bits, 63));
+    }
+
+    public int maxBlockSize() {
+        return max;
+    }
+
+    public int averageBlockSize() {
+        return avg;
+    }
+
+    /**
+     * Describe the chunking parameters, so cached block lists made with other ones can be detected.
+     */
+    @Override
+    public String toString() {
+        return contentDefined ? "cdc:" + min + ":" + avg + ":" + max : "fixed:" + max;
+    }
+
+    /**
+     * Find the block boundaries of a file.
+     * @param channel Open channel of the file
+     * @return Block offsets, starting with 0 and ending with the file size
+     */
+    public long[] offsets(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (!contentDefined) {
+            int count = (int) ((size + max - 1) / max);
+            long[] offsets = new long[count + 1];
+            for (int i = 0; i <= count; i++) {
+                offsets[i] = Math.min((long) i * max, size);
+            }
+            return offsets;
+        }
+        long[] offsets = new long[(int) Math.min(size / avg + 16, Integer.MAX_VALUE - 8)];
+        int count = 1;
+        byte[] buffer = new byte[Math.max(2 * max, READ_BYTES)];
+        long position = 0; // File position of buffer[0]
+        int start = 0; // Start of the next block in the buffer
+        int end = 0; // End of the data read into the buffer
+        while (true) {
+            if (end - start < max && position + end < size) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                position += start;
+                end -= start;
+                start = 0;
+                end += Client.readFully(channel, ByteBuffer.wrap(buffer, end, buffer.length - end), position + end);
+            }
+            if (start == end) break;
+            start += cut(buffer, start, end - start);
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = position + start;
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    /**
+     * Find the length of the block starting at the given position.
+     * @param data Data following the block start
+     * @param offset Position of the block start in data
+     * @param length Bytes available, at least max unless the file ends sooner
+     * @return Length of the block
+     */
+    public int cut(byte[] data, int offset, int length) {
+        if (length <= min) return length;
+        int limit = Math.min(length, max);
+        int normal = Math.min(avg, limit);
+        long hash = 0;
+        int i = min;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & smallMask) == 0) return i + 1;
+        }
+        for (; i < limit; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & largeMask) == 0) return i + 1;
+        }
+        return limit;
+    }
+}
@@ -1,38 +1,97 @@
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import org.apache.xmlrpc.*;
-import java.math.BigInteger;
 
 public class Client {
 
-    private static String serverAddress; // ip:port
-    private static String ipAddress; // ip
-    private static int port; // port
+    private static ClusterClient cluster; // Routes metadata calls to the Raft leader and blocks to their block server
+    private static ServerFeatures features; // Optional RPCs the servers support and the codec blocks are uploaded with
     private static String baseDir; // Base directory
     private static int blockSize; // Block size
+    private static Chunker chunker; // Splits files into blocks of blockSize or at content-defined points
+    private static int batchBytes = 4 * 1024 * 1024; // Byte budget of a putblocks/getblocks call
+    private static int partBytes = 4 * 1024 * 1024; // Blocks larger than this are moved in parts of this size
+    private static int parallelism = Runtime.getRuntime().availableProcessors(); // Threads hashing the base directory
+    private static int transferWorkers = 8; // Threads moving blocks to and from the server
+    private static int maxInFlightBytes = 64 * 1024 * 1024; // Cap on block bytes held by queued and running transfers
+    private static TransferPool transfers;
+    private static boolean verify; // True to hash every file even if its stat data is unchanged
+    private static WatchMode watchMode; // Keeps syncing whenever the base directory or the server changes, null to sync once
+    private static File indexFile; // Local index file
+    private static File statCacheFile; // Stat cache of the files hashed so far
+
+    // Bytes of a file hashed by one scan task, so large files are spread over all scan threads
+    private static final int SCAN_TASK_BYTES = 8 * 1024 * 1024;
+    // Prefix of the files downloads are written to before they replace the synced file
+    private static final String DOWNLOAD_PREFIX = ".surfstore-download-";
+    private static final String INDEX_FILE = "index.bin";
+    private static final String TEXT_INDEX_FILE = "index.txt"; // Index format of earlier clients, migrated on first run
+    private static final int INDEX_MAGIC = 0x53495831; // "SIX1"
+    private static final int INDEX_FORMAT = 1;
+    // Sidecar of the index recording the stat data and blocks of every hashed file
+    private static final String STAT_CACHE_FILE = "index.stat";
+    private static final ThreadLocal<Hasher> HASHER = ThreadLocal.withInitial(Hasher::new);
 
     // Index and metadata: Map<filename, Vector<version, Vector<hashlist>>>
     private static Map<String, Vector> localIndex; // Local index file
     private static Map<String, Vector> metadata; // Base Directory files metadata
     private static Map<String, Vector> remoteIndex; // Remote index
     private static Map<String, Vector> newIndex; // New index to write to file
+    private static String indexCursor = ""; // Server change cursor the local index is current to
+    private static String remoteCursor = ""; // Server change cursor of the remote index of this sync
+    private static volatile boolean syncFailed; // True if a file of this sync could not be transferred
 
-    // Map<filename, Vector<Vector<hashlist>, Vector<blocks>>>
+    // Map<filename, Vector<Vector<hashlist>, long[] block offsets, FileStat>>
+    // Blocks are not kept in memory, they are re-read from the file at these offsets when needed
     private static Map<String, Vector> filesData;
+    private static Map<String, Vector> statCache; // Files data of the last sync, to skip hashing unchanged files
+
+    // Map<hash, batch sending the block> of the blocks uploaded this sync, used by the main thread only
+    private static final Map<String, Future<Void>> sentBlocks = new HashMap<String, Future<Void>>();
+
+    // Map<hash, where a block with that hash is in the base directory>, so downloads can copy it instead of fetching it
+    private static Map<String, BlockLocation> localBlocks;
 
     /**
      * Get the local index file or create if it does not exists.
+     * An index.txt written by an earlier client is converted to the binary format and removed.
      * @return Local index file
      */
     public static File getOrCreateIndexFile() {
-        File indexFile = new File(baseDir + "/index.txt");
+        File indexFile = new File(baseDir + "/" + INDEX_FILE);
+        File textIndexFile = new File(baseDir + "/" + TEXT_INDEX_FILE);
         try {
             if (!indexFile.exists()) {
-                indexFile.createNewFile();
+                Map<String, Vector> index = new Hashtable<String, Vector>();
+                if (textIndexFile.exists()) {
+                    System.out.println("Migrating " + TEXT_INDEX_FILE + " to " + INDEX_FILE);
+                    index = getTextIndexMetadata(textIndexFile);
+                }
+                writeIndex(index, indexFile);
+                if (indexFile.exists()) {
+                    textIndexFile.delete();
+                }
             }
-        } catch (IOException e) {
+        } catch (Exception e) {
             System.err.println("Index file creation error: " + e);
         }
         return indexFile;
@@ -40,18 +99,72 @@ public class Client {
 
     /**
      * Get the index metadata of contents in the index file.
+     * The file is memory mapped and parsed in place.
      * @param indexFile Local index file
      * @return Index metadata
      */
     public static Map<String, Vector> getIndexMetadata(File indexFile) {
         Map<String, Vector> index = new Hashtable<String, Vector>();
-        try {
-            BufferedReader br = new BufferedReader(new FileReader(indexFile));
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            // magic, format, cursor, file count, entries, CRC32 of everything before it
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate().limit(buffer.limit() - 4));
+            if (buffer.getInt() != INDEX_MAGIC || buffer.getInt() != INDEX_FORMAT) {
+                throw new IOException("not a version " + INDEX_FORMAT + " index");
+            }
+            if (buffer.getInt(buffer.limit() - 4) != (int) crc.getValue()) {
+                throw new IOException("checksum mismatch");
+            }
+            indexCursor = readString(buffer);
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                // filename, version, hash count, raw hashes
+                String filename = readString(buffer);
+                int version = buffer.getInt();
+                int hashCount = buffer.getInt();
+                Vector<String> hashlist = new Vector<String>(hashCount);
+                for (int j = 0; j < hashCount; j++) {
+                    hashlist.add(new BlockHash(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong()).toHex());
+                }
+                Vector fileinfo = new Vector();
+                fileinfo.add(version);
+                fileinfo.add(hashlist);
+                index.put(filename, fileinfo);
+            }
+        } catch (Exception e) {
+            System.err.println("Get local index metadata: " + e);
+            index.clear();
+        }
+        return index;
+    }
+
+    /**
+     * Read a length-prefixed UTF-8 string of the binary index.
+     */
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the index metadata of contents in an index.txt written by an earlier client.
+     * @param indexFile Text index file
+     * @return Index metadata
+     */
+    public static Map<String, Vector> getTextIndexMetadata(File indexFile) throws IOException {
+        Map<String, Vector> index = new Hashtable<String, Vector>();
+        try (BufferedReader br = new BufferedReader(new FileReader(indexFile))) {
             String line;
             while ((line = br.readLine()) != null) {
+                if (line.startsWith("#cursor,")) {
+                    indexCursor = line.substring("#cursor,".length());
+                    continue;
+                }
                 String[] strs = line.split(",");
                 String filename = strs[0];
-                Integer version = new Integer(strs[1]);
+                Integer version = Integer.valueOf(strs[1]);
                 String[] hashstring = strs[2].split(" ");
                 Vector<String> hashlist = new Vector<String>();
                 for (int i = 0; i < hashstring.length; i++) {
@@ -63,9 +176,6 @@ public class Client {
                 fileinfo.add(hashlist);
                 index.put(filename, fileinfo);
             }
-            br.close();
-        } catch (Exception e) {
-            System.err.println("Get local index metadata: " + e);
         }
         return index;
     }
@@ -105,7 +215,7 @@ public class Client {
                 metadata.put(filename, fileinfo);
                 Vector hashlistblocks = new Vector();
                 hashlistblocks.add(new Vector<String>());
-                hashlistblocks.add(new Vector<byte[]>());
+                hashlistblocks.add(new long[] {0});
                 filesData.put(filename, hashlistblocks);
             }
         }
@@ -114,46 +224,157 @@ public class Client {
 
     /**
      * Get the remote index on the server using RPC.
+     * Only the entries changed since the given cursor are fetched, the others are taken from the local index.
+     * Falls back to the full map if the server does not support getfileinfomapsince.
+     * @param cursor Server change cursor the local index is current to, or "" to get the full map
      * @return Mapping of filename to version number
      */
-    public static Map<String, Vector> getRemoteIndex() {
+    public static Map<String, Vector> getRemoteIndex(String cursor) {
         remoteIndex = new Hashtable<String, Vector>();
         try {
-            String address = "http://" + serverAddress + "/RPC2";
-            XmlRpcClient client = new XmlRpcClient(address);
             Vector params = new Vector();
-            remoteIndex = (Map<String, Vector>) client.execute("surfstore.getfileinfomap", params);
+            if (features.cursors()) {
+                try {
+                    params.add(cursor);
+                    Hashtable changes = (Hashtable) cluster.executeMetadata("surfstore.getfileinfomapsince", params);
+                    // Entries not changed since the cursor are still as the local index recorded them
+                    if (!(boolean) changes.get("full")) {
+                        remoteIndex.putAll(localIndex);
+                    }
+                    remoteIndex.putAll((Map<String, Vector>) changes.get("files"));
+                    remoteCursor = (String) changes.get("cursor");
+                    return remoteIndex;
+                } catch (XmlRpcException e) {
+                    if (!ServerFeatures.isMissingMethod(e)) throw e;
+                    features.noCursors();
+                    params = new Vector();
+                }
+            }
+            remoteIndex = (Map<String, Vector>) cluster.executeMetadata("surfstore.getfileinfomap", params);
         } catch (Exception e) {
             System.err.println("Get remote index: " + e);
+            syncFailed = true;
         }
         return remoteIndex;
     }
 
     /**
      * Write given index to a file.
+     * The index is written to a temporary file that then replaces the index, so a crash leaves the old one intact.
      * @param index Mapping of filename to version number and hashlist
      * @param indexFile File object to write the index to
      */
     public static void writeIndex(Map<String, Vector> index, File indexFile) {
+        File tmp = new File(indexFile.getPath() + ".tmp");
         try {
-            BufferedWriter bw = new BufferedWriter(new FileWriter(indexFile));
-            for (String filename : index.keySet()) {
-                String line = filename;
-                int version = (int) index.get(filename).get(0);
-                line = line + "," + version + ",";
-                Vector<String> hashlist = (Vector<String>) index.get(filename).get(1);
-                if (hashlist.isEmpty()) {
-                    line = line + "0 ";
-                }
-                for (String hash : hashlist) {
-                    line = line + hash + " ";
-                }
-                line = line.substring(0, line.length() - 1); // Remove last space
-                bw.write(line + "\n");
-            }
-            bw.close();
+            FileOutputStream file = new FileOutputStream(tmp);
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file), new CRC32());
+            try (DataOutputStream out = new DataOutputStream(checked)) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_FORMAT);
+                writeString(out, indexCursor);
+                out.writeInt(index.size());
+                for (Map.Entry<String, Vector> entry : index.entrySet()) {
+                    Vector<String> hashlist = (Vector<String>) entry.getValue().get(1);
+                    writeString(out, entry.getKey());
+                    out.writeInt((int) entry.getValue().get(0));
+                    out.writeInt(hashlist.size());
+                    for (String hash : hashlist) {
+                        out.write(BlockHash.fromHex(hash).toBytes());
+                    }
+                }
+                out.writeInt((int) checked.getChecksum().getValue());
+                out.flush();
+                file.getFD().sync();
+            }
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (Exception e) {
             System.err.println("Write to index file: " + e);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Write a length-prefixed UTF-8 string of the binary index.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Get the files data recorded in the stat cache by the last sync.
+     * The cache is ignored if it was made with other chunking parameters.
+     * @param cacheFile Stat cache file
+     * @return Mapping of filename to hashlist, block offsets and stat data
+     */
+    public static Map<String, Vector> getStatCache(File cacheFile) {
+        Map<String, Vector> cache = new HashMap<String, Vector>();
+        if (!cacheFile.exists()) return cache;
+        try (BufferedReader br = new BufferedReader(new FileReader(cacheFile))) {
+            String line = br.readLine();
+            if (line == null || !line.equals("#chunker," + chunker)) return cache;
+            while ((line = br.readLine()) != null) {
+                // filename,size,mtime,hashes,block lengths,file key
+                String[] strs = line.split(",", 6);
+                Vector<String> hashlist = new Vector<String>();
+                long[] offsets = {0};
+                if (!strs[3].isEmpty()) {
+                    hashlist.addAll(Arrays.asList(strs[3].split(" ")));
+                    String[] lengths = strs[4].split(" ");
+                    offsets = new long[lengths.length + 1];
+                    for (int i = 0; i < lengths.length; i++) {
+                        offsets[i + 1] = offsets[i] + Integer.parseInt(lengths[i]);
+                    }
+                }
+                Vector hashlistblocks = new Vector();
+                hashlistblocks.add(hashlist);
+                hashlistblocks.add(offsets);
+                hashlistblocks.add(new FileStat(Long.parseLong(strs[1]), Long.parseLong(strs[2]), strs[5], 0));
+                cache.put(strs[0], hashlistblocks);
+            }
+        } catch (Exception e) {
+            System.err.println("Read stat cache: " + e);
+            cache.clear();
+        }
+        return cache;
+    }
+
+    /**
+     * Write the stat data and blocks of the hashed files to the stat cache.
+     * Files modified too recently to trust their mtime are left out, so the next sync hashes them.
+     * @param filesData Mapping of filename to hashlist, block offsets and stat data
+     * @param cacheFile Stat cache file
+     */
+    public static void writeStatCache(Map<String, Vector> filesData, File cacheFile) {
+        File tmp = new File(cacheFile.getPath() + ".tmp");
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(tmp))) {
+            bw.write("#chunker," + chunker + "\n");
+            for (Map.Entry<String, Vector> file : filesData.entrySet()) {
+                if (file.getValue().size() < 3) continue; // Deleted file
+                FileStat stat = (FileStat) file.getValue().get(2);
+                if (stat == null || stat.isRacy()) continue;
+                Vector<String> hashlist = (Vector<String>) file.getValue().get(0);
+                long[] offsets = (long[]) file.getValue().get(1);
+                StringBuilder line = new StringBuilder(file.getKey());
+                line.append(',').append(stat.size).append(',').append(stat.mtimeNanos).append(',');
+                line.append(String.join(" ", hashlist)).append(',');
+                for (int i = 0; i < hashlist.size(); i++) {
+                    if (i > 0) line.append(' ');
+                    line.append(offsets[i + 1] - offsets[i]);
+                }
+                line.append(',').append(stat.fileKey).append('\n');
+                bw.write(line.toString());
+            }
+        } catch (Exception e) {
+            System.err.println("Write stat cache: " + e);
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Write stat cache: " + e);
         }
     }
 
@@ -163,12 +384,10 @@ public class Client {
      */
     public static void printIndex(Map<String, Vector> index) {
         for (String filename : index.keySet()) {
-            String line = filename;
-            int version = (int) index.get(filename).get(0);
-            line = line + " " + version;
-            Vector<String> hashlist = (Vector<String>) index.get(filename).get(1);
-            for (String hash : hashlist) {
-                line = line + " " + hash;
+            StringBuilder line = new StringBuilder(filename);
+            line.append(' ').append((int) index.get(filename).get(0));
+            for (String hash : (Vector<String>) index.get(filename).get(1)) {
+                line.append(' ').append(hash);
             }
             System.out.println(line);
         }
@@ -176,50 +395,222 @@ public class Client {
 
     /**
      * Get the files in the base directory.
-     * @return Mapping of filename to hashlist and blocklist
+     * Files whose stat data matches the stat cache are not hashed again, unless --verify is given.
+     * @return Mapping of filename to hashlist, block offsets and stat data
      */
     public static Map<String, Vector> getFilesData() {
+        return getFilesData(null);
+    }
+
+    /**
+     * Get the files in the base directory, looking only at the given files if known.
+     * The other files are taken from the stat cache as they were last synced.
+     * @param changed Names of the files that may have changed, or null to list the base directory
+     * @return Mapping of filename to hashlist, block offsets and stat data
+     */
+    public static Map<String, Vector> getFilesData(Collection<String> changed) {
         Map<String, Vector> filesData = new Hashtable<String, Vector>();
         File dir = new File(baseDir);
-        File[] files = dir.listFiles();
-        for (File file : files) {
-            if (file.getName().equals("index.txt")) continue;
-            Vector<byte[]> blocks = splitFile(file);
-            Vector<String> hashlist = new Vector<String>();
-            for (byte[] block : blocks) {
-                hashlist.add(hash(block));
+        File[] files;
+        if (changed == null) {
+            files = dir.listFiles();
+        } else {
+            for (Map.Entry<String, Vector> cached : statCache.entrySet()) {
+                // Files deleted in the last sync have no stat data
+                if (cached.getValue().size() > 2 && !changed.contains(cached.getKey())) {
+                    filesData.put(cached.getKey(), cached.getValue());
+                }
+            }
+            files = new File[changed.size()];
+            int i = 0;
+            for (String filename : changed) {
+                files[i++] = new File(dir, filename);
             }
-            Vector hashlistblocks = new Vector();
-            hashlistblocks.add(hashlist);
-            hashlistblocks.add(blocks);
-            filesData.put(file.getName(), hashlistblocks);
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Map<String, ForkJoinTask<Vector>> scans = new HashMap<String, ForkJoinTask<Vector>>();
+            Map<String, FileStat> stats = new HashMap<String, FileStat>();
+            for (File file : files) {
+                String filename = file.getName();
+                if (isIndexFile(filename) || !file.isFile()) continue;
+                FileStat stat = null;
+                try {
+                    stat = FileStat.of(file.toPath());
+                } catch (IOException e) {
+                    System.err.println("Stat file: " + e);
+                }
+                Vector cached = statCache.get(filename);
+                if (!verify && stat != null && cached != null && stat.matches((FileStat) cached.get(2))) {
+                    cached.set(2, stat);
+                    filesData.put(filename, cached);
+                    continue;
+                }
+                // The stat is taken before hashing, so a change during hashing shows up next time
+                stats.put(filename, stat);
+                scans.put(filename, pool.submit(() -> splitFile(file)));
+            }
+            for (Map.Entry<String, ForkJoinTask<Vector>> scan : scans.entrySet()) {
+                Vector hashlistblocks = scan.getValue().join();
+                hashlistblocks.add(stats.get(scan.getKey()));
+                filesData.put(scan.getKey(), hashlistblocks);
+            }
+            if (changed == null || !scans.isEmpty()) {
+                System.out.println("Hashed " + scans.size() + " files, " + (filesData.size() - scans.size()) + " unchanged since the last sync");
+            }
+        } finally {
+            pool.shutdown();
         }
         return filesData;
     }
+
     /**
-     * Split a file into byte array chunks of size at most blockSize.
-     * @param file The file to split
-     * @return Vector containing byte array chunks of the file
+     * Location of a block in a file of the base directory.
+     */
+    private static class BlockLocation {
+        final String filename;
+        final long offset;
+        final int length;
+
+        BlockLocation(String filename, long offset, int length) {
+            this.filename = filename;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Map every block hashed in the base directory to one place it can be read from.
+     * @return Mapping of hash value to block location
+     */
+    public static Map<String, BlockLocation> getLocalBlocks() {
+        Map<String, BlockLocation> blocks = new HashMap<String, BlockLocation>();
+        for (Map.Entry<String, Vector> file : filesData.entrySet()) {
+            Vector<String> hashlist = (Vector<String>) file.getValue().get(0);
+            long[] offsets = (long[]) file.getValue().get(1);
+            for (int i = 0; i < hashlist.size(); i++) {
+                blocks.putIfAbsent(hashlist.get(i), new BlockLocation(file.getKey(), offsets[i], (int) (offsets[i + 1] - offsets[i])));
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Read a block from the base directory if a file there holds it.
+     * The block is hashed again, since the file may have changed since it was scanned.
+     * @param hash Hash value of the block
+     * @param channels Channels opened so far by the caller, by filename
+     * @return The block, or null if it is not available locally
      */
-    public static Vector<byte[]> splitFile(File file) {
-        Vector<byte[]> listOfBlocks = new Vector<byte[]>();
-        int fileSize = (int) file.length();
+    private static byte[] readLocalBlock(String hash, Map<String, FileChannel> channels) {
+        BlockLocation location = localBlocks.get(hash);
+        if (location == null) return null;
         try {
-            int currBlockSize = Math.min(blockSize, fileSize);
-            byte[] buffer = new byte[currBlockSize];
-            FileInputStream fis = new FileInputStream(file);
-            BufferedInputStream bis = new BufferedInputStream(fis);
-            int bytesRead = 0;
-            while ((bytesRead = bis.read(buffer)) > 0) {
-                listOfBlocks.add(buffer);
-                fileSize -= bytesRead;
-                currBlockSize = Math.min(blockSize, fileSize);
-                buffer = new byte[currBlockSize];
+            FileChannel channel = channels.get(location.filename);
+            if (channel == null) {
+                channel = FileChannel.open(Paths.get(baseDir, location.filename), StandardOpenOption.READ);
+                channels.put(location.filename, channel);
+            }
+            byte[] block = new byte[location.length];
+            if (readFully(channel, ByteBuffer.wrap(block), location.offset) != block.length || !hash(block).equals(hash)) {
+                return null;
             }
+            return block;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Split a file into blocks with the chunker and hash them.
+     * Only the hashes are kept in memory. Large files are hashed in ranges of
+     * about SCAN_TASK_BYTES by the fork-join pool the call runs in.
+     * @param file The file to split
+     * @return Vector containing the hashlist and the block offsets of the file
+     */
+    public static Vector splitFile(File file) {
+        Vector<String> hashlist = new Vector<String>();
+        long[] offsets = {0};
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long[] blockOffsets = chunker.offsets(channel);
+            int blockCount = blockOffsets.length - 1;
+            String[] hashes = new String[blockCount];
+            List<ForkJoinTask<Void>> tasks = new ArrayList<ForkJoinTask<Void>>();
+            int first = 0;
+            while (first < blockCount) {
+                int start = first;
+                int last = start + 1;
+                while (last < blockCount && blockOffsets[last + 1] - blockOffsets[start] <= SCAN_TASK_BYTES) {
+                    last++;
+                }
+                int end = last;
+                tasks.add(ForkJoinTask.adapt(() -> hashBlocks(channel, blockOffsets, start, end, hashes)));
+                first = last;
+            }
+            ForkJoinTask.invokeAll(tasks);
+            hashlist.addAll(Arrays.asList(hashes));
+            offsets = blockOffsets;
         } catch (Exception e) {
             System.err.println("Split File Exception: " + e);
         }
-        return listOfBlocks;
+        Vector hashlistblocks = new Vector();
+        hashlistblocks.add(hashlist);
+        hashlistblocks.add(offsets);
+        return hashlistblocks;
+    }
+
+    /**
+     * Hash a range of blocks of a file using the calling thread's buffer.
+     * @param channel Open channel of the file
+     * @param offsets Block offsets of the file
+     * @param first Index of the first block to hash
+     * @param last Index after the last block to hash
+     * @param hashes Array the hash values are stored in, by block index
+     * @return Nothing, returns so it can be used as a Callable
+     */
+    private static Void hashBlocks(FileChannel channel, long[] offsets, int first, int last, String[] hashes) throws IOException {
+        Hasher hasher = HASHER.get();
+        byte[] buffer = hasher.buffer(chunker.maxBlockSize());
+        for (int i = first; i < last; i++) {
+            int length = (int) (offsets[i + 1] - offsets[i]);
+            if (readFully(channel, ByteBuffer.wrap(buffer, 0, length), offsets[i]) != length) {
+                throw new EOFException("File is shorter than when it was scanned");
+            }
+            hashes[i] = hasher.hash(buffer, 0, length);
+        }
+        return null;
+    }
+
+    /**
+     * Read from the channel at the given position until the buffer is full or the file ends.
+     * @param channel File channel to read from
+     * @param buffer Buffer to fill
+     * @param position File position of the first byte to read
+     * @return Number of bytes read, 0 at the end of the file
+     */
+    public static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position + total);
+            if (bytesRead < 0) break;
+            total += bytesRead;
+        }
+        return total;
+    }
+
+    /**
+     * Read one block of a file in the base directory from disk.
+     * @param channel Open channel of the file
+     * @param offsets Block offsets of the file
+     * @param index Index of the block in the hashlist
+     * @return Byte array chunk
+     */
+    public static byte[] readBlock(FileChannel channel, long[] offsets, int index) throws IOException {
+        byte[] block = new byte[(int) (offsets[index + 1] - offsets[index])];
+        if (readFully(channel, ByteBuffer.wrap(block), offsets[index]) != block.length) {
+            throw new EOFException("File is shorter than when it was scanned");
+        }
+        return block;
     }
 
     /**
@@ -228,20 +619,83 @@ public class Client {
      * @return SHA-256 hash value in string format
      */
     public static String hash(byte[] blockData) {
-        String hashvalue = "";
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] hash = md.digest(blockData);
-            BigInteger number = new BigInteger(1, hash);
-            StringBuilder hexString = new StringBuilder(number.toString(16));
-            while (hexString.length() < 32) {
-                hexString.insert(0, '0');
+        return hash(blockData, 0, blockData.length);
+    }
+
+    /**
+     * Calculate hash value of a range of a byte array.
+     * @param data The byte array
+     * @param offset Start of the chunk in the array
+     * @param length Length of the chunk
+     * @return SHA-256 hash value in string format
+     */
+    public static String hash(byte[] data, int offset, int length) {
+        return HASHER.get().hash(data, offset, length);
+    }
+
+    /**
+     * Hashing state owned by one thread, reused for every block that thread hashes.
+     */
+    private static class Hasher {
+        private final MessageDigest md;
+        private final byte[] digest = new byte[BlockHash.BYTES];
+        private byte[] buffer = new byte[0];
+
+        Hasher() {
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Hash block data: " + e);
+            }
+        }
+
+        /**
+         * Get this thread's read buffer, growing it if needed.
+         * @param size Minimum size of the buffer
+         * @return Buffer of at least size bytes
+         */
+        byte[] buffer(int size) {
+            if (buffer.length < size) {
+                buffer = new byte[size];
+            }
+            return buffer;
+        }
+
+        /**
+         * Calculate the hash value of a range of a byte array.
+         * The value is formatted like BigInteger.toString(16) padded to 32 digits, as hashes always were.
+         * @param data The byte array
+         * @param offset Start of the chunk in the array
+         * @param length Length of the chunk
+         * @return SHA-256 hash value in string format
+         */
+        String hash(byte[] data, int offset, int length) {
+            update(data, offset, length);
+            return digest();
+        }
+
+        /**
+         * Add a range of a byte array to the data being hashed.
+         * @param data The byte array
+         * @param offset Start of the range in the array
+         * @param length Length of the range
+         */
+        void update(byte[] data, int offset, int length) {
+            md.update(data, offset, length);
+        }
+
+        /**
+         * Calculate the hash value of the data added since the last hash value, formatted like hash.
+         * @return SHA-256 hash value in string format, as formatted by BlockHash.toHex
+         */
+        String digest() {
+            try {
+                md.digest(digest, 0, digest.length);
+            } catch (DigestException e) {
+                throw new IllegalStateException("Hash block data: " + e);
             }
-            hashvalue = hexString.toString();
-        } catch (NoSuchAlgorithmException e) {
-            System.err.println("Hash block data: " + e);
+            return BlockHash.fromBytes(digest, 0).toHex();
         }
-        return hashvalue;
     }
 
     /**
@@ -259,187 +713,1009 @@ public class Client {
     }
 
     /**
-     * Upload the given filename to the server using RPC.
-     * It will first update metadata of the server's index and then put the blocks on the server.
-     * @param filename Name of the file to upload
+     * Update the server's entry of the given filename using RPC.
+     * @param filename Name of the file to update
+     * @return True if the remote index update is successful
      */
-    public static void uploadFile(String filename) {
-        try {
-            String address = "http://" + serverAddress + "/RPC2";
-            XmlRpcClient client = new XmlRpcClient(address);
-            Vector params = new Vector();
-            params.add(filename); // filename
-            params.add(metadata.get(filename).get(0)); // Version number
-            params.add(metadata.get(filename).get(1)); // Hashlist
-            boolean status = (boolean) client.execute("surfstore.updatefile", params);
-            // Only upload blocks if the remote index update is successful
-            if (status) {
-                System.out.println("Uploading: " + filename);
-                Vector<byte[]> blocks = (Vector<byte[]>) filesData.get(filename).get(1);
-                for (byte[] block : blocks) {
+    public static boolean updateFile(String filename) throws XmlRpcException, IOException {
+        Vector params = new Vector();
+        params.add(filename); // filename
+        params.add(metadata.get(filename).get(0)); // Version number
+        params.add(metadata.get(filename).get(1)); // Hashlist
+        return (boolean) cluster.executeMetadata("surfstore.updatefile", params);
+    }
+
+    /**
+     * Put the blocks of the given file on the server, grouped into batches of at most batchBytes.
+     * Blocks the server already has, and blocks already sent for another file or offset in this
+     * sync, are skipped; the batches sending the latter are waited for like the file's own.
+     * Blocks are read from disk one batch at a time on the calling thread and sent by the transfer pool.
+     * @param filename Name of the file in the base directory
+     * @param available Hashes of the file's blocks the block servers already have
+     * @return Futures of the batches, all complete once the whole file is on the server
+     */
+    public static List<Future<Void>> putBlocks(String filename, Collection<String> available) throws IOException, InterruptedException {
+        List<Future<Void>> batches = new ArrayList<Future<Void>>();
+        Vector<String> hashlist = (Vector<String>) filesData.get(filename).get(0);
+        long[] offsets = (long[]) filesData.get(filename).get(1);
+        if (hashlist.isEmpty()) return batches; // Deleted file
+        Set<String> onServer = new HashSet<String>(available);
+        Set<String> scheduled = new HashSet<String>();
+        List<Integer> missing = new ArrayList<Integer>();
+        List<Integer> large = new ArrayList<Integer>(); // Missing blocks sent in parts
+        for (int i = 0; i < hashlist.size(); i++) {
+            String hash = hashlist.get(i);
+            long size = offsets[i + 1] - offsets[i];
+            Future<Void> sending = sentBlocks.get(hash);
+            if (onServer.contains(hash)) {
+                transfers.recordOnServer(1, size);
+            } else if (sending != null || !scheduled.add(hash)) {
+                if (sending != null) batches.add(sending);
+                transfers.recordRepeated(1, size);
+            } else if (size > partBytes && features.parts()) {
+                large.add(i);
+            } else {
+                missing.add(i);
+            }
+        }
+        for (int i : large) {
+            String hash = hashlist.get(i);
+            long offset = offsets[i];
+            int length = (int) blockSize(offsets, i);
+            Future<Void> sent = transfers.submit(() -> putLargeBlock(filename, hash, offset, length));
+            sentBlocks.put(hash, sent);
+            batches.add(sent);
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(baseDir, filename), StandardOpenOption.READ)) {
+            int next = 0;
+            while (next < missing.size()) {
+                // Reserve room before reading, so no more than maxInFlightBytes are held in memory
+                int first = next;
+                long batchSize = blockSize(offsets, missing.get(next));
+                next++;
+                while (next < missing.size() && batchSize + blockSize(offsets, missing.get(next)) <= batchBytes) {
+                    batchSize += blockSize(offsets, missing.get(next));
+                    next++;
+                }
+                int permits = transfers.acquire(batchSize);
+                Vector<byte[]> batch = new Vector<byte[]>();
+                List<String> batchHashes = new ArrayList<String>();
+                try {
+                    for (int i : missing.subList(first, next)) {
+                        byte[] block = readBlock(channel, offsets, i);
+                        if (!hash(block).equals(hashlist.get(i))) {
+                            throw new IOException("File changed since it was scanned: " + filename);
+                        }
+                        batch.add(block);
+                        batchHashes.add(hashlist.get(i));
+                    }
+                } catch (IOException e) {
+                    transfers.release(permits);
+                    throw e;
+                }
+                long size = batchSize;
+                Future<Void> sent = transfers.submit(() -> {
+                    try {
+                        // Each block goes to the block server the hash ring assigns it to
+                        Map<String, Vector<byte[]>> nodeBatches = new LinkedHashMap<String, Vector<byte[]>>();
+                        for (int i = 0; i < batch.size(); i++) {
+                            nodeBatches.computeIfAbsent(cluster.ring().node(batchHashes.get(i)), node -> new Vector<byte[]>()).add(batch.get(i));
+                        }
+                        for (Map.Entry<String, Vector<byte[]>> nodeBatch : nodeBatches.entrySet()) {
+                            putBatch(cluster.rpcClient(nodeBatch.getKey()), nodeBatch.getValue());
+                        }
+                        transfers.recordUpload(batch.size(), size);
+                    } finally {
+                        transfers.release(permits);
+                    }
+                    return null;
+                });
+                for (String hash : batchHashes) {
+                    sentBlocks.put(hash, sent);
+                }
+                batches.add(sent);
+            }
+        }
+        return batches;
+    }
+
+    private static long blockSize(long[] offsets, int index) {
+        return offsets[index + 1] - offsets[index];
+    }
+
+    /**
+     * Put a block larger than partBytes on its block server in parts, each read from the file
+     * just before it is sent, so the block is never held in memory whole. An upload interrupted
+     * earlier resumes from the bytes the server has; the server checks the hash of the whole block.
+     * Falls back to sending the whole block if the server does not support parts.
+     * @param filename Name of the file in the base directory
+     * @param hash Hash value of the block
+     * @param offset Offset of the block in the file
+     * @param length Size of the block
+     */
+    private static Void putLargeBlock(String filename, String hash, long offset, int length) throws XmlRpcException, IOException, InterruptedException {
+        RpcClient client = cluster.blockClient(hash);
+        try (FileChannel channel = FileChannel.open(Paths.get(baseDir, filename), StandardOpenOption.READ)) {
+            if (features.parts()) {
+                try {
+                    Vector params = new Vector();
+                    params.add(hash);
+                    int received = (int) client.execute("surfstore.blockpartlength", params);
+                    if (received < 0) {
+                        transfers.recordOnServer(1, length);
+                        return null;
+                    }
+                    for (int sent = received; sent < length; ) {
+                        int partLength = Math.min(partBytes, length - sent);
+                        int permits = transfers.acquirePart(partLength);
+                        try {
+                            byte[] part = new byte[partLength];
+                            if (readFully(channel, ByteBuffer.wrap(part), offset + sent) != partLength) {
+                                throw new IOException("File changed since it was scanned: " + filename);
+                            }
+                            params = new Vector();
+                            params.add(hash);
+                            params.add(sent);
+                            params.add(part);
+                            client.execute("surfstore.putblockpart", params);
+                        } finally {
+                            transfers.releasePart(permits);
+                        }
+                        sent += partLength;
+                    }
                     params = new Vector();
-                    params.add(block);
-                    client.execute("surfstore.putblock", params);
+                    params.add(hash);
+                    client.execute("surfstore.putblockcommit", params);
+                    transfers.recordUpload(1, length - received);
+                    return null;
+                } catch (XmlRpcException e) {
+                    if (!ServerFeatures.isMissingMethod(e)) throw e;
+                    features.noParts();
                 }
-                Vector fileinfo = new Vector();
-                // Update the new local index
-                newIndex.put(filename, metadata.get(filename));
             }
-        } catch (Exception e) {
-            System.err.println("Upload file: " + e);
+            int permits = transfers.acquirePart(length);
+            try {
+                byte[] block = new byte[length];
+                if (readFully(channel, ByteBuffer.wrap(block), offset) != length || !hash(block).equals(hash)) {
+                    throw new IOException("File changed since it was scanned: " + filename);
+                }
+                Vector<byte[]> batch = new Vector<byte[]>();
+                batch.add(block);
+                putBatch(client, batch);
+                transfers.recordUpload(1, length);
+            } finally {
+                transfers.releasePart(permits);
+            }
         }
+        return null;
     }
 
     /**
-     * Download the given filename.
-     * @param filename Name of the file to download
-     * @param version Version number of the file to download
-     * @param hashlist List of hashes of the blocks corresponding to this file
+     * Put a single batch of blocks on the server.
+     * Falls back to one putblock call per block if the server does not support putblocks.
+     * @param client RPC client connected to the server
+     * @param batch Byte array chunks that fit in the batch budget
      */
-    public static void downloadFile(String filename, int version, Vector<String> hashlist) {
-        try {
-            String address = "http://" + serverAddress + "/RPC2";
-            XmlRpcClient client = new XmlRpcClient(address);
+    private static void putBatch(RpcClient client, Vector<byte[]> batch) throws XmlRpcException, IOException {
+        Vector params = new Vector();
+        if (features.batches() && features.compression() && features.codec() != BlockCodec.NONE) {
+            Vector<byte[]> encodedBatch = new Vector<byte[]>(batch.size());
+            long rawBytes = 0;
+            long encodedBytes = 0;
+            for (byte[] block : batch) {
+                byte[] encoded = BlockCodec.encode(block, features.codec());
+                encodedBatch.add(encoded);
+                rawBytes += block.length;
+                encodedBytes += encoded.length;
+            }
+            params.add(encodedBatch);
+            client.execute("surfstore.putblockscompressed", params);
+            transfers.recordCompression(rawBytes, encodedBytes);
+            return;
+        }
+        if (features.batches()) {
+            try {
+                params.add(batch);
+                client.execute("surfstore.putblocks", params);
+                return;
+            } catch (XmlRpcException e) {
+                if (!ServerFeatures.isMissingMethod(e)) throw e;
+                features.noBatches();
+            }
+        }
+        for (byte[] block : batch) {
+            params = new Vector();
+            params.add(block);
+            client.execute("surfstore.putblock", params);
+        }
+    }
+
+    /**
+     * Get the blocks of the given hashlist from the server in as few batched calls as the server allows.
+     * Falls back to one getblock call per hash if the server does not support getblocks.
+     * @param client RPC client connected to the server
+     * @param hashlist List of hashes of the blocks to get
+     * @return Byte array chunks in hashlist order
+     */
+    public static Vector<byte[]> getBlocks(RpcClient client, List<String> hashlist) throws XmlRpcException, IOException {
+        Vector<byte[]> blocks = new Vector<byte[]>();
+        while (blocks.size() < hashlist.size()) {
             Vector params = new Vector();
-            params.add(hashlist); // hashlist
-            Vector<String> availableHash = (Vector<String>) client.execute("surfstore.hasblocks", params);
-            // Check if all required hashes are available on the server
-            if (availableHash.size() == hashlist.size()) {
-                Vector<byte[]> blocks = new Vector<byte[]>();
-                for (String hashvalue : hashlist) {
+            if (features.batches()) {
+                try {
+                    // The server may return fewer blocks than asked for if they exceed its own limit
+                    params.add(new Vector<String>(hashlist.subList(blocks.size(), hashlist.size())));
+                    if (features.compression()) {
+                        params.add(BlockCodec.names());
+                        Vector<byte[]> batch = (Vector<byte[]>) client.execute("surfstore.getblockscompressed", params);
+                        if (batch.isEmpty()) {
+                            throw new IOException("Server returned an empty batch");
+                        }
+                        long rawBytes = 0;
+                        long encodedBytes = 0;
+                        for (byte[] encoded : batch) {
+                            byte[] block = BlockCodec.decode(encoded);
+                            blocks.add(block);
+                            rawBytes += block.length;
+                            encodedBytes += encoded.length;
+                        }
+                        transfers.recordCompression(rawBytes, encodedBytes);
+                        continue;
+                    }
+                    Vector<byte[]> batch = (Vector<byte[]>) client.execute("surfstore.getblocks", params);
+                    if (batch.isEmpty()) {
+                        throw new IOException("Server returned an empty batch");
+                    }
+                    blocks.addAll(batch);
+                    continue;
+                } catch (XmlRpcException e) {
+                    if (!ServerFeatures.isMissingMethod(e)) throw e;
+                    features.noBatches();
                     params = new Vector();
-                    params.add(hashvalue);
-                    byte[] block = (byte[]) client.execute("surfstore.getblock", params);
-                    blocks.add(block);
                 }
-                // Update filesData
-                Vector hashlistblocks = new Vector();
-                hashlistblocks.add(hashlist);
-                hashlistblocks.add(blocks);
-                filesData.put(filename, hashlistblocks);
-                // Create file from blocks
-                constructFile(filename);
-                // Update new local index
-                Vector fileinfo = new Vector();
-                fileinfo.add(version);
-                fileinfo.add(hashlist);
-                newIndex.put(filename, fileinfo);
-            } else {
-                System.out.println("Download file: Server does not have those hashlist");
             }
-        } catch (Exception e) {
-            System.err.println("Upload file: " + e);
+            params.add(hashlist.get(blocks.size()));
+            blocks.add((byte[]) client.execute("surfstore.getblock", params));
         }
+        return blocks;
+    }
 
+    /**
+     * Determine which of the given blocks are on the block servers using RPC.
+     * @param hashlist List of hash values
+     * @return List of hash values that are available on the block servers they belong to
+     */
+    public static Vector<String> hasBlocks(Vector<String> hashlist) throws XmlRpcException, IOException {
+        Vector<String> available = new Vector<String>();
+        for (Map.Entry<String, List<String>> nodeHashes : cluster.ring().partition(hashlist).entrySet()) {
+            Vector params = new Vector();
+            params.add(new Vector<String>(nodeHashes.getValue())); // hashlist
+            available.addAll((Vector<String>) cluster.rpcClient(nodeHashes.getKey()).execute("surfstore.hasblocks", params));
+        }
+        return available;
     }
 
     /**
-     * Construct file using the blocks.
-     * @param filename Name of file to construct
+     * Download the given filename.
+     * Batches of blocks are fetched by the transfer pool and written to the file in order as they arrive.
+     * @param filename Name of the file to download
+     * @param version Version number of the file to download
+     * @param hashlist List of hashes of the blocks corresponding to this file
+     * @return The download in progress
      */
-    public static void constructFile(String filename) {
+    public static FileDownload downloadFile(String filename, int version, Vector<String> hashlist) throws XmlRpcException, IOException, InterruptedException {
+        FileDownload download = new FileDownload(filename, version, hashlist);
         // Delete file if hashlist is empty
-        Vector<String> hashlist = (Vector<String>) remoteIndex.get(filename).get(1);
         if (hashlist.isEmpty()) {
             // Check if file exists and delete if it does.
+            // If file does not exists (already deleted locally) and not construct file.
             File file = new File(baseDir + "/" + filename);
             if (file.exists()) {
                 file.delete();
-                return;
             }
-            // If file does not exists (already deleted locally) and not construct file.
-            return;
+            return download;
+        }
+        // With the sizes of the blocks, batches reserve their actual bytes and large blocks
+        // are written in place as their ranges arrive, if the server can send them
+        if (features.parts()) {
+            long[] offsets = blockOffsets(hashlist);
+            if (offsets != null) {
+                downloadInPlace(download, hashlist, offsets);
+                return download;
+            }
         }
-        // Create file
+        // Create file from blocks
+        download.open();
+        // Without the sizes, batches are sized and reserved as if every block were the largest the chunker makes
+        int hashesPerBatch = Math.max(1, batchBytes / chunker.maxBlockSize());
+        for (int first = 0; first < hashlist.size(); first += hashesPerBatch) {
+            int batch = first / hashesPerBatch;
+            List<String> hashes = hashlist.subList(first, Math.min(first + hashesPerBatch, hashlist.size()));
+            int permits = transfers.acquire((long) hashes.size() * chunker.maxBlockSize());
+            download.add(transfers.submit(() -> {
+                Vector<byte[]> blocks;
+                try {
+                    blocks = getBatch(hashes);
+                } catch (Exception e) {
+                    transfers.release(permits);
+                    download.fail(e);
+                    throw e;
+                }
+                download.write(batch, blocks, permits);
+                return null;
+            }));
+        }
+        return download;
+    }
+
+    /**
+     * Get the offsets of the blocks of a file from the sizes of the blocks on the block servers.
+     * @param hashlist List of hashes of the blocks of the file
+     * @return Offsets of the blocks followed by the file size, or null if the servers do not support blocksizes
+     */
+    private static long[] blockOffsets(Vector<String> hashlist) throws XmlRpcException, IOException {
+        Map<String, Integer> sizes = new HashMap<String, Integer>();
+        List<String> unique = new ArrayList<String>(new LinkedHashSet<String>(hashlist));
         try {
-            File file = new File(baseDir + "/" + filename);
-            FileOutputStream fos = new FileOutputStream(file);
-            BufferedOutputStream bos = new BufferedOutputStream(fos);
-            for (byte[] block : (Vector<byte[]>) filesData.get(filename).get(1)) {
-                bos.write(block);
+            for (Map.Entry<String, List<String>> nodeHashes : cluster.ring().partition(unique).entrySet()) {
+                Vector params = new Vector();
+                params.add(new Vector<String>(nodeHashes.getValue())); // hashlist
+                Vector<Integer> nodeSizes = (Vector<Integer>) cluster.rpcClient(nodeHashes.getKey()).execute("surfstore.blocksizes", params);
+                for (int i = 0; i < nodeSizes.size(); i++) {
+                    if (nodeSizes.get(i) < 0) {
+                        throw new IOException("Block not found: " + nodeHashes.getValue().get(i));
+                    }
+                    sizes.put(nodeHashes.getValue().get(i), nodeSizes.get(i));
+                }
+            }
+        } catch (XmlRpcException e) {
+            if (!ServerFeatures.isMissingMethod(e)) throw e;
+            features.noParts();
+            return null;
+        }
+        long[] offsets = new long[hashlist.size() + 1];
+        for (int i = 0; i < hashlist.size(); i++) {
+            offsets[i + 1] = offsets[i] + sizes.get(hashlist.get(i));
+        }
+        return offsets;
+    }
+
+    /**
+     * Download a file with positioned writes into its temporary file. Blocks larger than
+     * partBytes are fetched in ranges by getLargeBlock, runs of smaller blocks in batches
+     * like downloadFile does, and every batch or range is written at its offset as soon as it arrives.
+     * @param download The download, not yet opened
+     * @param hashlist List of hashes of the blocks of the file
+     * @param offsets Offsets of the blocks followed by the file size
+     */
+    private static void downloadInPlace(FileDownload download, Vector<String> hashlist, long[] offsets) throws IOException, InterruptedException {
+        download.openInPlace(offsets);
+        int first = 0;
+        while (first < hashlist.size()) {
+            if (blockSize(offsets, first) > partBytes) {
+                String hash = hashlist.get(first);
+                long position = offsets[first];
+                int length = (int) blockSize(offsets, first);
+                download.add(transfers.submit(() -> {
+                    try {
+                        getLargeBlock(download, hash, position, length);
+                    } catch (Exception e) {
+                        download.fail(e);
+                        throw e;
+                    }
+                    return null;
+                }));
+                first++;
+                continue;
+            }
+            int last = first + 1;
+            while (last < hashlist.size() && blockSize(offsets, last) <= partBytes && offsets[last + 1] - offsets[first] <= batchBytes) {
+                last++;
+            }
+            List<String> hashes = hashlist.subList(first, last);
+            long position = offsets[first];
+            int permits = transfers.acquire(offsets[last] - offsets[first]);
+            download.add(transfers.submit(() -> {
+                try {
+                    download.writeAt(position, getBatch(hashes));
+                } catch (Exception e) {
+                    download.fail(e);
+                    throw e;
+                } finally {
+                    transfers.release(permits);
+                }
+                return null;
+            }));
+            first = last;
+        }
+    }
+
+    /**
+     * Get a block larger than partBytes in ranges of partBytes, copying it from the base directory
+     * if a file there holds it. Each range is hashed and written into the download as it arrives,
+     * so the block is never held in memory whole; the hash of the whole block is checked at the end.
+     * @param download The download the block belongs to
+     * @param hash Hash value of the block
+     * @param position Offset of the block in the file
+     * @param length Size of the block
+     */
+    private static void getLargeBlock(FileDownload download, String hash, long position, int length) throws XmlRpcException, IOException, InterruptedException {
+        BlockLocation location = localBlocks.get(hash);
+        if (location != null) {
+            try (FileChannel channel = FileChannel.open(Paths.get(baseDir, location.filename), StandardOpenOption.READ)) {
+                Hasher hasher = new Hasher();
+                boolean complete = true;
+                for (int offset = 0; offset < length && complete; offset += partBytes) {
+                    int permits = transfers.acquirePart(Math.min(partBytes, length - offset));
+                    try {
+                        byte[] range = new byte[Math.min(partBytes, length - offset)];
+                        complete = readFully(channel, ByteBuffer.wrap(range), location.offset + offset) == range.length;
+                        hasher.update(range, 0, range.length);
+                        download.writeAt(position + offset, Collections.singletonList(range));
+                    } finally {
+                        transfers.releasePart(permits);
+                    }
+                }
+                if (complete && hasher.digest().equals(hash)) {
+                    transfers.recordLocalCopy(1, length);
+                    return;
+                }
+            } catch (NoSuchFileException e) {
+                // Deleted since it was scanned, get the block from the server
+            }
+        }
+        RpcClient client = cluster.blockClient(hash);
+        Hasher hasher = new Hasher();
+        for (int offset = 0; offset < length; ) {
+            int permits = transfers.acquirePart(Math.min(partBytes, length - offset));
+            try {
+                Vector params = new Vector();
+                params.add(hash);
+                params.add(offset);
+                params.add(Math.min(partBytes, length - offset));
+                byte[] range = (byte[]) client.execute("surfstore.getblockrange", params);
+                if (range.length == 0) {
+                    throw new IOException("Server returned an empty range of block " + hash);
+                }
+                hasher.update(range, 0, range.length);
+                download.writeAt(position + offset, Collections.singletonList(range));
+                offset += range.length;
+            } finally {
+                transfers.releasePart(permits);
             }
-            bos.close();
-        } catch (Exception e) {
-            System.err.println("Construct file: " + e);
         }
+        if (!hasher.digest().equals(hash)) {
+            throw new IOException("Downloaded block does not match its hash: " + hash);
+        }
+        transfers.recordDownload(1, length);
+    }
+
+    /**
+     * Get the blocks of a download batch, copying those found in the base directory
+     * and fetching only the others from the server.
+     * @param hashes Hash values of the blocks
+     * @return Blocks in the order of hashes
+     */
+    private static Vector<byte[]> getBatch(List<String> hashes) throws XmlRpcException, IOException {
+        Vector<byte[]> blocks = new Vector<byte[]>();
+        blocks.setSize(hashes.size());
+        List<String> missing = new ArrayList<String>();
+        long copiedBytes = 0;
+        Map<String, FileChannel> channels = new HashMap<String, FileChannel>();
+        try {
+            for (int i = 0; i < hashes.size(); i++) {
+                byte[] block = readLocalBlock(hashes.get(i), channels);
+                if (block == null) {
+                    missing.add(hashes.get(i));
+                } else {
+                    blocks.set(i, block);
+                    copiedBytes += block.length;
+                }
+            }
+        } finally {
+            for (FileChannel channel : channels.values()) {
+                channel.close();
+            }
+        }
+        transfers.recordLocalCopy(hashes.size() - missing.size(), copiedBytes);
+        if (missing.isEmpty()) return blocks;
+        // Fetch the missing blocks from the block servers they belong to
+        Map<String, byte[]> fetched = new HashMap<String, byte[]>();
+        for (Map.Entry<String, List<String>> nodeHashes : cluster.ring().partition(missing).entrySet()) {
+            Vector<byte[]> nodeBlocks = getBlocks(cluster.rpcClient(nodeHashes.getKey()), nodeHashes.getValue());
+            for (int i = 0; i < nodeBlocks.size(); i++) {
+                fetched.put(nodeHashes.getValue().get(i), nodeBlocks.get(i));
+            }
+        }
+        long fetchedBytes = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            if (blocks.get(i) == null) {
+                byte[] block = fetched.get(hashes.get(i));
+                blocks.set(i, block);
+                fetchedBytes += block.length;
+            }
+        }
+        transfers.recordDownload(missing.size(), fetchedBytes);
+        return blocks;
+    }
+
+    /**
+     * A file being downloaded by the transfer pool.
+     * It is written to a temporary file in the base directory, which replaces the
+     * synced file once complete, so the old content stays readable for block copies until then.
+     * Batches may arrive in any order, they are held until the batches before them are written,
+     * unless the block offsets are known up front and every batch is written in place.
+     */
+    public static class FileDownload {
+        private final String filename;
+        private final int version;
+        private final Vector<String> hashlist;
+        private final long[] offsets;
+        private final List<Future<Void>> batches = new ArrayList<Future<Void>>();
+        private final Map<Integer, Vector<byte[]>> arrived = new HashMap<Integer, Vector<byte[]>>(); // Batches waiting to be written
+        private final Map<Integer, Integer> permits = new HashMap<Integer, Integer>(); // Bytes reserved by waiting batches
+        private OutputStream out;
+        private FileChannel channel; // Temporary file written with positioned writes, instead of out
+        private int nextBatch;
+        private int nextBlock;
+        private Throwable failure;
+
+        FileDownload(String filename, int version, Vector<String> hashlist) {
+            this.filename = filename;
+            this.version = version;
+            this.hashlist = hashlist;
+            this.offsets = new long[hashlist.size() + 1];
+        }
+
+        void open() throws IOException {
+            out = new BufferedOutputStream(new FileOutputStream(tempFile()));
+        }
+
+        /**
+         * Open the temporary file for writes at the offsets of the blocks.
+         * @param blockOffsets Offsets of the blocks followed by the file size
+         */
+        void openInPlace(long[] blockOffsets) throws IOException {
+            System.arraycopy(blockOffsets, 0, offsets, 0, offsets.length);
+            channel = FileChannel.open(tempFile().toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        /**
+         * Write blocks, or a range of a block, in place. Safe to call from several threads at once.
+         * @param position Offset in the file of the first byte
+         * @param blocks Consecutive data to write
+         */
+        void writeAt(long position, List<byte[]> blocks) throws IOException {
+            for (byte[] block : blocks) {
+                ByteBuffer buffer = ByteBuffer.wrap(block);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+        }
+
+        File tempFile() {
+            return new File(baseDir + "/" + DOWNLOAD_PREFIX + filename);
+        }
+
+        void add(Future<Void> batch) {
+            batches.add(batch);
+        }
+
+        /**
+         * Write an arrived batch, and any batches after it that arrived earlier.
+         * @param batch Index of the batch in the file
+         * @param blocks Blocks of the batch
+         * @param reserved Bytes reserved in the transfer pool for the batch
+         */
+        synchronized void write(int batch, Vector<byte[]> blocks, int reserved) {
+            if (failure != null) {
+                transfers.release(reserved);
+                return;
+            }
+            arrived.put(batch, blocks);
+            permits.put(batch, reserved);
+            try {
+                while (arrived.containsKey(nextBatch)) {
+                    for (byte[] block : arrived.remove(nextBatch)) {
+                        out.write(block);
+                        offsets[nextBlock + 1] = offsets[nextBlock] + block.length;
+                        nextBlock++;
+                    }
+                    transfers.release(permits.remove(nextBatch));
+                    nextBatch++;
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Stop writing the file and give back the room held by waiting batches.
+         * @param e Cause of the failure
+         */
+        synchronized void fail(Throwable e) {
+            if (failure == null) {
+                failure = e;
+            }
+            for (int reserved : permits.values()) {
+                transfers.release(reserved);
+            }
+            arrived.clear();
+            permits.clear();
+        }
+
+        /**
+         * Wait for every batch to be written, then close the file and record it in the new index.
+         */
+        void finish() {
+            for (Future<Void> batch : batches) {
+                try {
+                    batch.get();
+                } catch (Exception e) {
+                    fail(cause(e));
+                }
+            }
+            try {
+                if (out != null || channel != null) {
+                    if (out != null) out.close();
+                    if (channel != null) channel.close();
+                    if (failure == null) {
+                        Files.move(tempFile().toPath(), Paths.get(baseDir, filename),
+                                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+            if (failure != null) {
+                System.err.println("Download file: " + failure);
+                tempFile().delete();
+                syncFailed = true;
+                return;
+            }
+            // Update filesData
+            Vector hashlistblocks = new Vector();
+            hashlistblocks.add(hashlist);
+            hashlistblocks.add(offsets);
+            if (out != null || channel != null) {
+                try {
+                    hashlistblocks.add(FileStat.of(Paths.get(baseDir, filename)));
+                } catch (IOException e) {
+                    hashlistblocks.add(null);
+                }
+            }
+            filesData.put(filename, hashlistblocks);
+            // Update new local index
+            Vector fileinfo = new Vector();
+            fileinfo.add(version);
+            fileinfo.add(hashlist);
+            newIndex.put(filename, fileinfo);
+        }
+    }
+
+    /**
+     * Unwrap the exception thrown by a task of the transfer pool.
+     * @param e Exception thrown by Future.get
+     * @return The exception thrown by the task itself
+     */
+    private static Throwable cause(Exception e) {
+        return e instanceof ExecutionException ? e.getCause() : e;
     }
 
     /**
      * Check which files to upload to server
      */
     public static void uploadSync() {
+        // Update the remote index of every file and ask which of its blocks the servers
+        // already have first, so the round trips overlap
+        Map<String, Future<Boolean>> updates = new LinkedHashMap<String, Future<Boolean>>();
+        Map<String, Future<Vector<String>>> available = new HashMap<String, Future<Vector<String>>>();
         for (String filename : metadata.keySet()) {
             // Check if there is new file or modified file in the base directory
             if (!remoteIndex.containsKey(filename) || (int) remoteIndex.get(filename).get(0) < (int) metadata.get(filename).get(0)) {
-                uploadFile(filename);
+                updates.put(filename, transfers.submit(() -> updateFile(filename)));
+                Vector<String> hashlist = (Vector<String>) filesData.get(filename).get(0);
+                if (!hashlist.isEmpty()) {
+                    Vector<String> unique = new Vector<String>(new LinkedHashSet<String>(hashlist));
+                    available.put(filename, transfers.submit(() -> hasBlocks(unique)));
+                }
+            }
+        }
+        Map<String, List<Future<Void>>> uploads = new LinkedHashMap<String, List<Future<Void>>>();
+        for (Map.Entry<String, Future<Boolean>> update : updates.entrySet()) {
+            String filename = update.getKey();
+            try {
+                // Only upload blocks if the remote index update is successful
+                if (update.getValue().get()) {
+                    System.out.println("Uploading: " + filename);
+                    uploads.put(filename, putBlocks(filename, availableBlocks(available.get(filename))));
+                }
+            } catch (Exception e) {
+                System.err.println("Upload file: " + cause(e));
+                syncFailed = true;
+            }
+        }
+        // Update the new local index once every block of a file is on the server
+        for (Map.Entry<String, List<Future<Void>>> upload : uploads.entrySet()) {
+            try {
+                for (Future<Void> batch : upload.getValue()) {
+                    batch.get();
+                }
+                newIndex.put(upload.getKey(), metadata.get(upload.getKey()));
+            } catch (Exception e) {
+                System.err.println("Upload file: " + cause(e));
+                syncFailed = true;
             }
         }
     }
 
+    /**
+     * Wait for the answer of hasblocks, taking a failed call as no blocks available.
+     * @param available Future of hasBlocks, or null for a deleted file
+     * @return Hashes of the blocks the block servers have
+     */
+    private static Collection<String> availableBlocks(Future<Vector<String>> available) throws InterruptedException {
+        if (available == null) return Collections.emptyList();
+        try {
+            return available.get();
+        } catch (ExecutionException e) {
+            System.err.println("Has blocks: " + e.getCause());
+            return Collections.emptyList();
+        }
+    }
+
     /**
      * Check which files to download from server.
      */
     public static void downloadSync() {
-        // Check if there is new file or there is modified file in server
+        // Ask for the blocks of every file first, so the round trips overlap
+        Map<String, Future<Vector<String>>> available = new LinkedHashMap<String, Future<Vector<String>>>();
         for (String filename : remoteIndex.keySet()) {
+            // Check if there is new file or there is modified file in server
             if (!localIndex.containsKey(filename) || (int) localIndex.get(filename).get(0) < (int) remoteIndex.get(filename).get(0)) {
-                System.out.println("Downloading: " + filename);
-                int version = (int) remoteIndex.get(filename).get(0);
                 Vector<String> hashlist = (Vector<String>) remoteIndex.get(filename).get(1);
-                downloadFile(filename, version, hashlist);
+                available.put(filename, transfers.submit(() -> hasBlocks(hashlist)));
             }
         }
+        List<FileDownload> downloads = new ArrayList<FileDownload>();
+        for (Map.Entry<String, Future<Vector<String>>> availableHash : available.entrySet()) {
+            String filename = availableHash.getKey();
+            System.out.println("Downloading: " + filename);
+            int version = (int) remoteIndex.get(filename).get(0);
+            Vector<String> hashlist = (Vector<String>) remoteIndex.get(filename).get(1);
+            try {
+                // Check if all required hashes are available on the server
+                if (availableHash.getValue().get().size() == hashlist.size()) {
+                    downloads.add(downloadFile(filename, version, hashlist));
+                } else {
+                    System.out.println("Download file: Server does not have those hashlist");
+                    syncFailed = true;
+                }
+            } catch (Exception e) {
+                System.err.println("Download file: " + cause(e));
+                syncFailed = true;
+            }
+        }
+        for (FileDownload download : downloads) {
+            download.finish();
+        }
     }
 
     /**
      * Copy index content of files that stays the same to the new index.
+     * Changed files that could not be uploaded keep their old entry, so the
+     * index stays a copy of the server's FileInfoMap and they are retried next sync.
      */
     public static void indexSync() {
         for (String filename : metadata.keySet()) {
-            if (!newIndex.containsKey(filename)) {
+            if (!newIndex.containsKey(filename) && localIndex.containsKey(filename)) {
                 System.out.println("Index Sync: " + filename);
-                newIndex.put(filename, metadata.get(filename));
+                newIndex.put(filename, localIndex.get(filename));
             }
         }
     }
 
+    /**
+     * Set the block size and parse the optional arguments, like the command line does.
+     * @param size Block size
+     * @param options Arguments following host:port, basedir and blockSize
+     */
+    public static void configure(int size, String[] options) {
+        blockSize = size;
+        parseOptions(options);
+    }
+
+    /**
+     * Parse the optional --name=value command line arguments.
+     * @param options Arguments following host:port, basedir and blockSize
+     */
+    public static void parseOptions(String[] options) {
+        int compression = BlockCodec.NONE;
+        boolean watch = false;
+        long pollInterval = 5000;
+        long debounce = 500;
+        long indexFlushInterval = 10000;
+        boolean contentDefined = false;
+        int minBlockSize = blockSize / 4;
+        int maxBlockSize = blockSize * 4;
+        for (String option : options) {
+            String[] nameValue = option.split("=", 2);
+            String value = nameValue.length > 1 ? nameValue[1] : "";
+            switch (nameValue[0]) {
+                case "--batch-bytes":
+                    batchBytes = Integer.parseInt(value);
+                    // The server rejects putblocks calls larger than its limit
+                    if (batchBytes < 1 || batchBytes > Server.MAX_BATCH_BYTES) {
+                        System.err.println("--batch-bytes must be between 1 and " + Server.MAX_BATCH_BYTES + ": " + value);
+                        System.exit(1);
+                    }
+                    break;
+                case "--parallelism":
+                    parallelism = Integer.parseInt(value);
+                    break;
+                case "--workers":
+                    transferWorkers = Integer.parseInt(value);
+                    break;
+                case "--max-inflight-bytes":
+                    maxInFlightBytes = Integer.parseInt(value);
+                    break;
+                case "--part-bytes":
+                    partBytes = Integer.parseInt(value);
+                    break;
+                case "--verify":
+                    verify = true;
+                    break;
+                case "--watch":
+                    watch = true;
+                    break;
+                case "--poll-interval":
+                    pollInterval = Long.parseLong(value);
+                    break;
+                case "--debounce":
+                    debounce = Long.parseLong(value);
+                    break;
+                case "--index-flush-interval":
+                    indexFlushInterval = Long.parseLong(value);
+                    break;
+                case "--chunking":
+                    if (!value.equals("fixed") && !value.equals("cdc")) {
+                        System.err.println("Unknown chunking: " + value);
+                        System.exit(1);
+                    }
+                    contentDefined = value.equals("cdc");
+                    break;
+                case "--min-block-size":
+                    minBlockSize = Integer.parseInt(value);
+                    break;
+                case "--max-block-size":
+                    maxBlockSize = Integer.parseInt(value);
+                    break;
+                case "--compression":
+                    compression = BlockCodec.id(value);
+                    if (compression < 0) {
+                        System.err.println("Unknown compression: " + value);
+                        System.exit(1);
+                    }
+                    break;
+                default:
+                    System.err.println("Unknown option: " + option);
+                    System.exit(1);
+            }
+        }
+        chunker = contentDefined ? Chunker.contentDefined(minBlockSize, blockSize, maxBlockSize) : Chunker.fixed(blockSize);
+        features = new ServerFeatures(compression);
+        watchMode = watch ? new WatchMode(pollInterval, debounce, indexFlushInterval) : null;
+    }
+
     public static void main (String [] args) {
         // Check if user supplied all the command line arguments required
-        if (args.length != 3) {
-            System.err.println("Usage: Client host:port /basedir blockSize");
+        if (args.length < 3) {
+            System.err.println("Usage: Client [surf://]host:port|config.txt /basedir blockSize [--batch-bytes=N (at most " + Server.MAX_BATCH_BYTES + ")] [--parallelism=N] [--workers=N] [--max-inflight-bytes=N] [--chunking=fixed|cdc] [--min-block-size=N] [--max-block-size=N] [--verify] [--compression=none|deflate|deflate-fast] [--watch] [--poll-interval=MS] [--debounce=MS] [--index-flush-interval=MS]");
             System.exit(1);
         }
 
         // Parse command line input arguments
         System.out.println(Arrays.toString(args));
-        serverAddress = args[0];
-        String[] ipPort = args[0].split(":"); // Get server IP and port
-        ipAddress = ipPort[0];
-        port = Integer.parseInt(ipPort[1]);
+        // Either a single server holding metadata and blocks, or a config file listing the servers
+        ClusterConfig config;
+        if (new File(args[0]).isFile()) {
+            try {
+                config = ClusterConfig.read(new File(args[0]));
+            } catch (IOException e) {
+                System.err.println("Read config: " + e);
+                System.exit(1);
+                return;
+            }
+        } else {
+            config = ClusterConfig.single(args[0].startsWith("http://") ? args[0].substring("http://".length()) : args[0]);
+        }
+        cluster = new ClusterClient(config);
         baseDir = args[1]; // Get base directory to sync with
-        blockSize = Integer.parseInt(args[2]); // Get block size
+        configure(Integer.parseInt(args[2]), Arrays.copyOfRange(args, 3, args.length)); // Get block size and options
 
         // Local index file
-        File indexFile = getOrCreateIndexFile();
+        indexFile = getOrCreateIndexFile();
         localIndex = getIndexMetadata(indexFile);
+        statCacheFile = new File(baseDir, STAT_CACHE_FILE);
+        statCache = getStatCache(statCacheFile);
 
         System.out.println("Initial Local Index Content");
         printIndex(localIndex);
         System.out.println();
 
+        transfers = new TransferPool(transferWorkers, maxInFlightBytes);
+        try {
+            features.negotiate(cluster);
+        } catch (XmlRpcException | IOException e) {
+            System.err.println("Get codecs: " + e);
+            syncFailed = true;
+        }
+        String syncCursor = indexCursor;
+        sync(null, true);
+        if (watchMode != null) {
+            watchMode.run(Paths.get(baseDir), new WatchMode.Target() {
+                public boolean sync(List<String> changed) {
+                    return Client.sync(changed, false);
+                }
+
+                public void writeIndex() {
+                    Client.writeIndex(localIndex, indexFile);
+                    writeStatCache(statCache, statCacheFile);
+                }
+
+                public boolean isOwnFile(String filename) {
+                    return isIndexFile(filename);
+                }
+            });
+            return;
+        }
+        transfers.shutdown();
+
+        // New remote index
+        System.out.println("New Remote Index");
+        remoteIndex = getRemoteIndex(syncCursor);
+        printIndex(remoteIndex);
+        System.out.println();
+    }
+
+    /**
+     * Sync the base directory with the server once.
+     * @param changed Names of the files that may have changed since the last sync, or null to scan the base directory
+     * @param verbose True to print the indexes, as a single sync does
+     * @return False if nothing changed locally or on the server, so nothing was done
+     */
+    public static boolean sync(Collection<String> changed, boolean verbose) {
+        syncFailed = false;
+        sentBlocks.clear();
+        String syncCursor = indexCursor;
+        if (changed != null && changed.isEmpty()) {
+            // Only polling the server: nothing to do unless its change cursor moved
+            getRemoteIndex(syncCursor);
+            if (syncFailed || (features.cursors() && remoteCursor.equals(syncCursor))) return false;
+        }
+
         // Get files data and metadata of files in base directory
-        filesData = getFilesData();
+        filesData = getFilesData(changed);
         metadata = getFilesMetadata();
+        localBlocks = getLocalBlocks();
 
-        System.out.println("Metadata");
-        printIndex(metadata);
-        System.out.println();
+        if (verbose) {
+            System.out.println("Metadata");
+            printIndex(metadata);
+            System.out.println();
+        }
 
         // Remote Index
-        Map<String, Vector> remoteIndex = getRemoteIndex();
-        System.out.println("Initial Remote Index Content");
-        printIndex(remoteIndex);
-        System.out.println();
+        if (changed == null || !changed.isEmpty()) {
+            getRemoteIndex(syncCursor);
+        }
+        if (verbose) {
+            System.out.println("Initial Remote Index Content");
+            printIndex(remoteIndex);
+            System.out.println();
+        }
 
         // New Index
         newIndex = new Hashtable<String, Vector>();
@@ -454,24 +1730,46 @@ public class Client {
         uploadSync();
         System.out.println();
 
+        System.out.println("Transfer Summary");
+        transfers.printSummary();
+        transfers.resetSummary();
+        System.out.println();
+
         // Index Sync
         System.out.println("Index Sync");
         indexSync();
         System.out.println();
 
-        System.out.println("New Local Index");
-        printIndex(newIndex);
-        System.out.println();
+        if (verbose) {
+            System.out.println("New Local Index");
+            printIndex(newIndex);
+            System.out.println();
+        }
 
-        // Write new index to file
-        System.out.println("Writing New Index to File");
-        writeIndex(newIndex, indexFile);
-        System.out.println();
+        // The cursor only moves forward if every file was transferred, otherwise the
+        // next sync fetches the changes since the old cursor again
+        if (!syncFailed) {
+            indexCursor = remoteCursor;
+        }
+        localIndex = newIndex;
+        statCache = filesData;
+        if (verbose) {
+            // Write new index to file
+            System.out.println("Writing New Index to File");
+            writeIndex(newIndex, indexFile);
+            writeStatCache(filesData, statCacheFile);
+            System.out.println();
+        }
+        return true;
+    }
 
-        // New remote index
-        System.out.println("New Remote Index");
-        remoteIndex = getRemoteIndex();
-        printIndex(remoteIndex);
-        System.out.println();
+    /**
+     * Check if a file in the base directory belongs to the client rather than being synced.
+     * @param filename Name of the file
+     * @return True for the index files and partial downloads
+     */
+    private static boolean isIndexFile(String filename) {
+        return filename.startsWith(INDEX_FILE) || filename.equals(TEXT_INDEX_FILE) || filename.startsWith(STAT_CACHE_FILE)
+                || filename.startsWith(DOWNLOAD_PREFIX);
     }
 }
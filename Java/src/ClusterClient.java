@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.*;
+import org.apache.xmlrpc.XmlRpcException;
+
+/**
+ * Routes the calls of a client to the servers of a cluster.
+ * Metadata calls go to the Raft leader, which is remembered and looked up again when a call is
+ * refused by a node that is no longer the leader, and block calls go to the block server the
+ * hash ring assigns each block to. Every thread has its own RPC client of each server.
+ */
+public class ClusterClient {
+
+    // Time to keep looking for a Raft leader, e.g. while one is elected after the old one failed
+    private static final long LEADER_WAIT_MILLIS = 10000;
+
+    private final List<String> metadataAddresses; // [surf://]ip:port of each metadata server
+    private final HashRing blockRing; // Assigns every block to one of the block servers
+    private volatile String metadataLeader; // Metadata server calls are sent to, the Raft leader if there are several
+    private final ThreadLocal<Map<String, RpcClient>> rpcClients = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * Constructor.
+     * @param config Metadata and block servers of the cluster
+     */
+    public ClusterClient(ClusterConfig config) {
+        metadataAddresses = config.metadataAddresses();
+        blockRing = config.ring();
+        metadataLeader = metadataAddresses.get(0);
+    }
+
+    /**
+     * Hash ring assigning every block to one of the block servers.
+     */
+    public HashRing ring() {
+        return blockRing;
+    }
+
+    /**
+     * Get the calling thread's RPC client of the block server a block belongs to.
+     * @param hash Hash of the block
+     * @return RPC client connected to the block server
+     */
+    public RpcClient blockClient(String hash) throws MalformedURLException {
+        return rpcClient(blockRing.node(hash));
+    }
+
+    /**
+     * Call a method on the metadata server, or on the Raft leader if there are several.
+     * A call refused by a node that is not the leader, or not reaching it, is retried on the
+     * leader found by asking every metadata server isLeader, for up to LEADER_WAIT_MILLIS.
+     * @param method Name of the method
+     * @param params Parameters of the method
+     * @return Result of the method
+     */
+    public Object executeMetadata(String method, Vector params) throws XmlRpcException, IOException {
+        long deadline = System.currentTimeMillis() + LEADER_WAIT_MILLIS;
+        while (true) {
+            try {
+                return rpcClient(metadataLeader).execute(method, params);
+            } catch (XmlRpcException | IOException e) {
+                if (metadataAddresses.size() == 1 || System.currentTimeMillis() > deadline) throw e;
+                if (e instanceof XmlRpcException && !isLeaderChange((XmlRpcException) e)) throw e;
+            }
+            findLeader(deadline);
+        }
+    }
+
+    /**
+     * Ask every metadata server whether it is the leader until one is, or the deadline passes.
+     * @param deadline Time to give up at
+     */
+    private void findLeader(long deadline) {
+        while (System.currentTimeMillis() <= deadline) {
+            for (String address : metadataAddresses) {
+                try {
+                    if ((boolean) rpcClient(address).execute("surfstore.isLeader", new Vector())) {
+                        if (!address.equals(metadataLeader)) {
+                            System.out.println("Metadata leader is " + address);
+                        }
+                        metadataLeader = address;
+                        return;
+                    }
+                } catch (XmlRpcException | IOException e) {
+                    // Down, try the next one
+                }
+            }
+            try {
+                Thread.sleep(100); // An election is probably running
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Check if an RPC failed because the metadata server is not the Raft leader or is crashed.
+     * @param e Exception returned by the RPC
+     * @return True if the call should be retried on the leader
+     */
+    private static boolean isLeaderChange(XmlRpcException e) {
+        return e.getMessage() != null && (e.getMessage().contains("Not the leader") || e.getMessage().contains("Server is crashed"));
+    }
+
+    /**
+     * Get the calling thread's RPC client of a server, creating it on first use.
+     * @param address Address of the server, [surf://]host:port
+     * @return RPC client connected to the server over the binary transport (surf:// address) or XML-RPC
+     */
+    public RpcClient rpcClient(String address) throws MalformedURLException {
+        Map<String, RpcClient> clients = rpcClients.get();
+        RpcClient client = clients.get(address);
+        if (client == null) {
+            client = RpcClient.connect(address);
+            clients.put(address, client);
+        }
+        return client;
+    }
+}
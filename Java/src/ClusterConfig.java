@@ -0,0 +1,119 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Addresses of the metadata server and the block servers, in the format of the Python config.txt:
+ *
+ *   B: 2
+ *   metadata: localhost:8080
+ *   block0: localhost:8081
+ *   block1: localhost:8082
+ *
+ * An optional "vnodes: N" line sets the virtual nodes per block server on the hash ring.
+ * Several metadata servers replicating the FileInfoMap with Raft are listed as "M: 3" and
+ * "metadata0:" to "metadata2:" lines instead of the single "metadata:" line.
+ * Addresses may start with surf:// to use the binary transport of that server.
+ */
+public class ClusterConfig {
+
+    private final List<String> metadataAddresses;
+    private final List<String> blockAddresses;
+    private final int virtualNodes;
+
+    /**
+     * Constructor.
+     * @param metadataAddresses Addresses of the metadata servers
+     * @param blockAddresses Addresses of the block servers
+     * @param virtualNodes Number of positions of each block server on the hash ring
+     */
+    public ClusterConfig(List<String> metadataAddresses, List<String> blockAddresses, int virtualNodes) {
+        this.metadataAddresses = new ArrayList<String>(metadataAddresses);
+        this.blockAddresses = new ArrayList<String>(blockAddresses);
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * Config of a single server holding both the metadata and all blocks.
+     * @param address Address of the server
+     * @return The config
+     */
+    public static ClusterConfig single(String address) {
+        return new ClusterConfig(Collections.singletonList(address), Collections.singletonList(address), HashRing.DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * Read a config file.
+     * @param file Config file
+     * @return The config
+     */
+    public static ClusterConfig read(File file) throws IOException {
+        int metadataCount = -1;
+        int blockCount = -1;
+        int virtualNodes = HashRing.DEFAULT_VIRTUAL_NODES;
+        SortedMap<Integer, String> metadataAddresses = new TreeMap<Integer, String>();
+        SortedMap<Integer, String> blockAddresses = new TreeMap<Integer, String>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            String[] nameValue = line.split(":", 2);
+            if (line.trim().isEmpty() || nameValue.length < 2) continue;
+            String name = nameValue[0].trim();
+            String value = nameValue[1].trim();
+            try {
+                if (name.equals("B")) {
+                    blockCount = Integer.parseInt(value);
+                } else if (name.equals("M")) {
+                    metadataCount = Integer.parseInt(value);
+                } else if (name.equals("metadata")) {
+                    metadataAddresses.put(0, value);
+                } else if (name.startsWith("metadata")) {
+                    metadataAddresses.put(Integer.parseInt(name.substring("metadata".length())), value);
+                } else if (name.equals("vnodes")) {
+                    virtualNodes = Integer.parseInt(value);
+                } else if (name.startsWith("block")) {
+                    blockAddresses.put(Integer.parseInt(name.substring("block".length())), value);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad config line: " + line);
+            }
+        }
+        if (metadataAddresses.isEmpty() || (metadataCount >= 0 && metadataCount != metadataAddresses.size())) {
+            throw new IOException("Expected " + metadataCount + " metadata servers in " + file + ", found " + metadataAddresses.size());
+        }
+        if (blockAddresses.isEmpty() || (blockCount >= 0 && blockCount != blockAddresses.size())) {
+            throw new IOException("Expected " + blockCount + " block servers in " + file + ", found " + blockAddresses.size());
+        }
+        return new ClusterConfig(new ArrayList<String>(metadataAddresses.values()),
+                new ArrayList<String>(blockAddresses.values()), virtualNodes);
+    }
+
+    /**
+     * Addresses of the metadata servers.
+     */
+    public List<String> metadataAddresses() {
+        return Collections.unmodifiableList(metadataAddresses);
+    }
+
+    /**
+     * Addresses of the block servers.
+     */
+    public List<String> blockAddresses() {
+        return Collections.unmodifiableList(blockAddresses);
+    }
+
+    /**
+     * Number of positions of each block server on the hash ring.
+     */
+    public int virtualNodes() {
+        return virtualNodes;
+    }
+
+    /**
+     * Build the hash ring assigning blocks to the block servers.
+     * @return The hash ring
+     */
+    public HashRing ring() {
+        return new HashRing(blockAddresses, virtualNodes);
+    }
+}
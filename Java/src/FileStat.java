@@ -0,0 +1,58 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size, modification time and identity of a file, recorded when it is hashed.
+ * A file whose stat data still matches the recorded one is assumed unchanged and is not hashed again.
+ */
+public class FileStat {
+
+    // A file modified this soon before its stat was taken may be modified again within the same
+    // mtime tick without its mtime changing, so it cannot be trusted to be unchanged later
+    private static final long RACY_MILLIS = 2000;
+
+    final long size;
+    final long mtimeNanos;
+    final String fileKey; // Device and inode where the file system provides them, otherwise ""
+    private final long takenMillis; // When the stat was taken, 0 if read from the stat cache
+
+    FileStat(long size, long mtimeNanos, String fileKey, long takenMillis) {
+        this.size = size;
+        this.mtimeNanos = mtimeNanos;
+        this.fileKey = fileKey;
+        this.takenMillis = takenMillis;
+    }
+
+    /**
+     * Take the stat data of a file.
+     * @param path Path of the file
+     * @return Stat data of the file
+     */
+    public static FileStat of(Path path) throws IOException {
+        long now = System.currentTimeMillis();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        Object key = attributes.fileKey();
+        return new FileStat(attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                key == null ? "" : key.toString(), now);
+    }
+
+    /**
+     * Check if the file was modified too close to when the stat was taken to be cached.
+     * @return True if the stat must not be trusted by a later sync
+     */
+    public boolean isRacy() {
+        return mtimeNanos / 1_000_000 + RACY_MILLIS > takenMillis;
+    }
+
+    /**
+     * Check if two stats of a file show the same content.
+     * @param other Stat to compare with
+     * @return True if size, mtime and identity are equal
+     */
+    public boolean matches(FileStat other) {
+        return other != null && size == other.size && mtimeNanos == other.mtimeNanos && fileKey.equals(other.fileKey);
+    }
+}
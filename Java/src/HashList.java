@@ -0,0 +1,87 @@
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ * Hash list of a file packed into one byte array, 32 bytes per hash.
+ * The hex Vector form is only built when the list goes on the wire.
+ */
+public final class HashList {
+
+    private final byte[] hashes;
+
+    private HashList(byte[] hashes) {
+        this.hashes = hashes;
+    }
+
+    /**
+     * Pack a hash list.
+     * @param hashlist List of hash values in hex form
+     * @return Packed hash list
+     * @throws IllegalArgumentException If an entry is not a hash value
+     */
+    public static HashList fromHex(Vector<String> hashlist) {
+        byte[] hashes = new byte[hashlist.size() * BlockHash.BYTES];
+        for (int i = 0; i < hashlist.size(); i++) {
+            BlockHash.fromHex(hashlist.get(i)).toBytes(hashes, i * BlockHash.BYTES);
+        }
+        return new HashList(hashes);
+    }
+
+    /**
+     * Wrap packed hashes.
+     * @param hashes Raw hashes, 32 bytes each, not copied
+     * @return Packed hash list
+     */
+    public static HashList fromBytes(byte[] hashes) {
+        if (hashes.length % BlockHash.BYTES != 0) {
+            throw new IllegalArgumentException("Not a whole number of hashes: " + hashes.length + " bytes");
+        }
+        return new HashList(hashes);
+    }
+
+    /**
+     * Get the raw hashes of the list.
+     * @return Copy of the packed hashes, 32 bytes each
+     */
+    public byte[] toBytes() {
+        return hashes.clone();
+    }
+
+    /**
+     * Number of hashes in the list.
+     */
+    public int size() {
+        return hashes.length / BlockHash.BYTES;
+    }
+
+    /**
+     * Get a hash of the list.
+     * @param index Position of the hash
+     * @return The hash
+     */
+    public BlockHash get(int index) {
+        return BlockHash.fromBytes(hashes, index * BlockHash.BYTES);
+    }
+
+    /**
+     * Unpack the list into the hex form used on the wire.
+     * @return List of hash values
+     */
+    public Vector<String> toHex() {
+        Vector<String> hashlist = new Vector<String>(size());
+        for (int i = 0; i < size(); i++) {
+            hashlist.add(get(i).toHex());
+        }
+        return hashlist;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof HashList && Arrays.equals(hashes, ((HashList) other).hashes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(hashes);
+    }
+}
@@ -0,0 +1,97 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Consistent hashing of blocks over a set of block servers.
+ * Every server is placed on a ring of 64-bit positions at a number of virtual nodes, and a
+ * block belongs to the first virtual node at or after the first 8 bytes of its hash. Adding
+ * a server to N others only moves the blocks that now fall on its virtual nodes, about
+ * 1/(N+1) of them, and more virtual nodes spread the blocks more evenly.
+ */
+public class HashRing {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final List<String> nodes;
+    private final long[] positions; // Sorted positions of all virtual nodes
+    private final int[] owners; // Index in nodes of the server at each position
+
+    /**
+     * Constructor.
+     * @param nodes Addresses of the block servers
+     * @param virtualNodes Number of positions of each server on the ring
+     */
+    public HashRing(List<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("No block servers");
+        }
+        this.nodes = new ArrayList<String>(nodes);
+        TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int i = 0; i < virtualNodes; i++) {
+                long position = position(nodes.get(node), i);
+                // On the rare collision the lower node index wins, the same on every client
+                Integer owner = ring.get(position);
+                if (owner == null || owner > node) ring.put(position, node);
+            }
+        }
+        positions = new long[ring.size()];
+        owners = new int[ring.size()];
+        int next = 0;
+        for (Map.Entry<Long, Integer> entry : ring.entrySet()) {
+            positions[next] = entry.getKey();
+            owners[next] = entry.getValue();
+            next++;
+        }
+    }
+
+    /**
+     * Position of a virtual node, from the hash of the server address and replica number.
+     */
+    private static long position(String node, int replica) {
+        return BlockHash.of((node + "#" + replica).getBytes(StandardCharsets.UTF_8)).w0;
+    }
+
+    /**
+     * Find the server a block belongs to.
+     * @param hash Hash of the block
+     * @return Address of the block server
+     */
+    public String node(BlockHash hash) {
+        int index = Arrays.binarySearch(positions, hash.w0);
+        if (index < 0) {
+            index = -index - 1;
+            if (index == positions.length) index = 0; // Wrap around the ring
+        }
+        return nodes.get(owners[index]);
+    }
+
+    /**
+     * Find the server a block belongs to.
+     * @param hashvalue Hex hash of the block
+     * @return Address of the block server
+     */
+    public String node(String hashvalue) {
+        return node(BlockHash.fromHex(hashvalue));
+    }
+
+    /**
+     * Group hash values by the server their blocks belong to, keeping their order within each group.
+     * @param hashvalues Hex hashes of blocks
+     * @return Mapping of server address to the hashes it holds
+     */
+    public Map<String, List<String>> partition(List<String> hashvalues) {
+        Map<String, List<String>> groups = new LinkedHashMap<String, List<String>>();
+        for (String hashvalue : hashvalues) {
+            groups.computeIfAbsent(node(hashvalue), node -> new ArrayList<String>()).add(hashvalue);
+        }
+        return groups;
+    }
+
+    /**
+     * Addresses of all block servers.
+     */
+    public List<String> nodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+}
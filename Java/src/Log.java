@@ -0,0 +1,186 @@
+import java.io.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous server log. Callers only check the level and queue the message format and
+ * arguments; a background thread formats the queued messages and writes them in batches,
+ * one line each: time, level, message. ERROR and WARN lines go to stderr, the others to stdout.
+ *
+ * Messages below the level are dropped before anything is allocated but the argument array.
+ * When the queue is full messages are dropped rather than blocking the caller, and the
+ * number dropped is logged once there is room again.
+ */
+public class Log {
+
+    public static final int OFF = 0;
+    public static final int ERROR = 1;
+    public static final int WARN = 2;
+    public static final int INFO = 3;
+    public static final int DEBUG = 4;
+    private static final String[] NAMES = {"OFF", "ERROR", "WARN", "INFO", "DEBUG"};
+
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int MAX_BATCH = 4096;
+
+    private static volatile int level = INFO;
+
+    private static final BlockingQueue<Message> queue = new ArrayBlockingQueue<Message>(QUEUE_CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final Object flushed = new Object(); // Notified after each written batch
+    private static long written; // Messages written, guarded by flushed
+
+    private static class Message {
+        final long time;
+        final int level;
+        final String format;
+        final Object[] args;
+
+        Message(int level, String format, Object[] args) {
+            this.time = System.currentTimeMillis();
+            this.level = level;
+            this.format = format;
+            this.args = args;
+        }
+    }
+
+    static {
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush));
+    }
+
+    /**
+     * Set the most detailed level logged.
+     * @param name off, error, warn, info or debug
+     */
+    public static void setLevel(String name) {
+        int parsed = Arrays.asList(NAMES).indexOf(name.toUpperCase());
+        if (parsed < 0) throw new IllegalArgumentException("Unknown log level: " + name);
+        level = parsed;
+    }
+
+    /**
+     * Check if messages of a level are logged, to skip building expensive arguments.
+     * @param messageLevel Level of the message
+     * @return True if logged
+     */
+    public static boolean enabled(int messageLevel) {
+        return messageLevel <= level;
+    }
+
+    /**
+     * Log an error. The message is formatted with String.format on the log thread.
+     * @param format Message, or format string if there are arguments
+     * @param args Arguments of the format string
+     */
+    public static void error(String format, Object... args) {
+        log(ERROR, format, args);
+    }
+
+    /**
+     * Log a warning.
+     * @param format Message, or format string if there are arguments
+     * @param args Arguments of the format string
+     */
+    public static void warn(String format, Object... args) {
+        log(WARN, format, args);
+    }
+
+    /**
+     * Log a server event.
+     * @param format Message, or format string if there are arguments
+     * @param args Arguments of the format string
+     */
+    public static void info(String format, Object... args) {
+        log(INFO, format, args);
+    }
+
+    /**
+     * Log a message per request.
+     * @param format Message, or format string if there are arguments
+     * @param args Arguments of the format string
+     */
+    public static void debug(String format, Object... args) {
+        log(DEBUG, format, args);
+    }
+
+    private static void log(int messageLevel, String format, Object[] args) {
+        if (messageLevel > level) return;
+        if (!queue.offer(new Message(messageLevel, format, args))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Wait until the messages queued so far are written, for up to a second.
+     */
+    public static void flush() {
+        long target;
+        synchronized (flushed) {
+            target = written + queue.size();
+        }
+        long deadline = System.currentTimeMillis() + 1000;
+        synchronized (flushed) {
+            while (written < target && System.currentTimeMillis() < deadline) {
+                try {
+                    flushed.wait(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Log thread: write the queued messages in batches.
+     */
+    private static void writeLoop() {
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+        PrintStream err = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.err), 1 << 16), false);
+        List<Message> batch = new ArrayList<Message>(MAX_BATCH);
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            try {
+                Message first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                long lost = dropped.getAndSet(0);
+                if (lost > 0) {
+                    batch.add(new Message(WARN, "Log queue full, dropped %d messages", new Object[] {lost}));
+                }
+                boolean toErr = false;
+                for (Message message : batch) {
+                    line.setLength(0);
+                    line.append(Instant.ofEpochMilli(message.time)).append(' ').append(NAMES[message.level]).append(' ');
+                    try {
+                        line.append(message.args.length == 0 ? message.format : String.format(message.format, message.args));
+                    } catch (IllegalFormatException e) {
+                        line.append(message.format).append(' ').append(Arrays.toString(message.args));
+                    }
+                    (message.level <= WARN ? err : out).println(line);
+                    toErr |= message.level <= WARN;
+                }
+                out.flush();
+                if (toErr) err.flush();
+                synchronized (flushed) {
+                    written += batch.size() - (lost > 0 ? 1 : 0);
+                    flushed.notifyAll();
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // Keep logging whatever a message's toString throws
+                batch.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,672 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Durable FileInfoMap of the server.
+ * Every accepted updatefile is appended to a write-ahead log before it is acknowledged,
+ * and the map is periodically compacted into a snapshot so the log stays short.
+ *
+ * Updates take no locks: the version check and the store are a compare-and-set on the
+ * file's entry in a ConcurrentHashMap, retried if another update of the same file got there
+ * first, so updates of different files never wait for each other.
+ *
+ * Log writes go through a single committer thread. In "group" mode callers wait until
+ * their record is fsynced, and all records that arrive during one fsync share the next one.
+ * Until then the stored entry only reserves its version: readers see the entry it replaced,
+ * so nothing is read that a crash could lose.
+ * In "batched" mode callers return right away and the log is fsynced every syncInterval ms,
+ * trading the last interval of updates on a crash for a higher update rate.
+ *
+ * On startup the latest snapshot is loaded and the log files after it are replayed.
+ *
+ * Every accepted update is also given the next number of a store-wide change sequence,
+ * so clients can ask for only the entries changed after a cursor they got earlier.
+ * A cursor is "storeId:bootId:sequence". Cursors from another store get the full map, and
+ * cursors from an earlier run are only trusted up to the sequence that run made durable.
+ */
+public class MetadataStore {
+
+    private static final int OLD_RECORD_MAGIC = 0x534d5231; // "SMR1", hashes as hex strings
+    private static final int RECORD_MAGIC = 0x534d5232; // "SMR2", hashes packed
+    private static final int OLD_SNAPSHOT_MAGIC = 0x534d5331; // "SMS1", hashes as hex strings
+    private static final int SNAPSHOT_MAGIC = 0x534d5332; // "SMS2", hashes packed
+    private static final String SNAPSHOT_FILE = "meta.snapshot";
+    private static final String ID_FILE = "meta.id";
+    private static final long IDLE = Long.MAX_VALUE; // Announced sequence of a thread not updating
+
+    private final File dir; // Directory holding the snapshot and the log files
+    private final boolean groupCommit; // True if updates wait for their fsync
+    private final long syncInterval; // Milliseconds between fsyncs in batched mode
+    private final int snapshotEvery; // Log records after which a snapshot is taken
+
+    // Map<filename, entry holding the version and packed hashlist>
+    private final ConcurrentHashMap<String, Entry> fileInfoMap = new ConcurrentHashMap<String, Entry>();
+
+    // Map<change sequence, filename>, holding only the latest change of each file
+    private final ConcurrentSkipListMap<Long, String> changes = new ConcurrentSkipListMap<Long, String>();
+
+    private final AtomicLong lastSeq = new AtomicLong(); // Change sequence of the latest update
+    private long recoveredSeq; // Change sequence made durable by earlier runs
+    private String storeId; // Random id of this store, part of every cursor
+    private final String bootId = Long.toHexString(new Random().nextLong()); // Random id of this run
+
+    // Sequence number each thread may be about to publish, so cursors never skip an update in progress
+    private final Queue<AtomicLong> announced = new ConcurrentLinkedQueue<AtomicLong>();
+    private final ThreadLocal<AtomicLong> announcement = ThreadLocal.withInitial(() -> {
+        AtomicLong slot = new AtomicLong(IDLE);
+        announced.add(slot);
+        return slot;
+    });
+
+    // Records waiting for the committer
+    private final Queue<PendingRecord> pending = new ConcurrentLinkedQueue<PendingRecord>();
+    private final AtomicLong appended = new AtomicLong(); // Records handed to the committer
+    private volatile boolean closed;
+    private volatile IOException failure; // Set if the log can no longer be written
+
+    // Owned by the committer thread
+    private FileChannel wal; // Log file records are appended to
+    private int walGeneration; // Generation of the log file, the snapshot names the first one to replay
+    private long recordsSinceSnapshot;
+
+    // Committer statistics, written by the committer thread only
+    private volatile long fsyncCount;
+    private volatile long fsyncNanos;
+    private volatile long fsyncRecords;
+    private long recoveryNanos;
+
+    private final Thread committer;
+
+    /**
+     * A file's info and the change sequence of its latest update.
+     * The hash list is kept packed and only unpacked into a Vector when the entry is read.
+     * An entry whose record is not fsynced yet keeps the entry it replaced for readers.
+     */
+    private static class Entry {
+        final int version;
+        final HashList hashlist;
+        final long seq;
+        private volatile boolean durable;
+        private volatile Entry prior; // Entry replaced, dropped once this one is durable
+
+        Entry(int version, HashList hashlist, long seq, boolean durable, Entry prior) {
+            this.version = version;
+            this.hashlist = hashlist;
+            this.seq = seq;
+            this.durable = durable;
+            this.prior = durable ? null : prior;
+        }
+
+        /**
+         * Make the entry visible to readers once its record is fsynced.
+         */
+        void markDurable() {
+            durable = true;
+            prior = null;
+        }
+
+        /**
+         * Latest durable entry of the file, this one or one it replaced.
+         * @return The entry, or null if no update of the file is durable yet
+         */
+        Entry visible() {
+            Entry entry = this;
+            while (entry != null) {
+                Entry next = entry.prior;
+                // prior is only cleared after durable is set, so check durable after reading it
+                if (entry.durable) return entry;
+                entry = next;
+            }
+            return null;
+        }
+
+        Vector fileinfo() {
+            Vector fileinfo = new Vector();
+            fileinfo.add(version);
+            fileinfo.add(hashlist.toHex());
+            return fileinfo;
+        }
+    }
+
+    /**
+     * An encoded log record and the latch its writer waits on in group mode.
+     */
+    private static class PendingRecord {
+        final byte[] bytes;
+        final CountDownLatch written = new CountDownLatch(1);
+
+        PendingRecord(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Constructor. Recovers the map from the snapshot and log in the given directory.
+     * @param dir Directory holding the snapshot and log, created if it does not exist
+     * @param groupCommit True to acknowledge updates only once fsynced, false for batched fsyncs
+     * @param syncInterval Milliseconds between fsyncs in batched mode
+     * @param snapshotEvery Log records after which a snapshot is taken
+     */
+    public MetadataStore(File dir, boolean groupCommit, long syncInterval, int snapshotEvery) throws IOException {
+        this.dir = dir;
+        this.groupCommit = groupCommit;
+        this.syncInterval = syncInterval;
+        this.snapshotEvery = snapshotEvery;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create metadata store directory " + dir);
+        }
+        long start = System.nanoTime();
+        storeId = readStoreId();
+        int replayed = recover();
+        recoveredSeq = lastSeq.get();
+        recoveryNanos = System.nanoTime() - start;
+        Log.info("Recovered %d files (%d log records replayed) in %.1f ms",
+                fileInfoMap.size(), replayed, recoveryNanos / 1e6);
+        committer = new Thread(this::commitLoop, "metadata-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Returns a copy of the FileInfoMap.
+     * @return Mapping of filename to version number and hashlist
+     */
+    public Hashtable<String, Vector> getAll() {
+        Hashtable<String, Vector> result = new Hashtable<String, Vector>();
+        for (Map.Entry<String, Entry> entry : fileInfoMap.entrySet()) {
+            Entry visible = entry.getValue().visible();
+            if (visible != null) {
+                result.put(entry.getKey(), visible.fileinfo());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the stored version of a file, including an update still waiting for its fsync.
+     * @param filename Name of the file
+     * @return Version number, 0 if the file was never stored
+     */
+    public int version(String filename) {
+        Entry entry = fileInfoMap.get(filename);
+        return entry == null ? 0 : entry.version;
+    }
+
+    /**
+     * Returns the entries changed after the given cursor.
+     * An entry may be returned again by the next call if it changed while this one ran.
+     * @param cursor Cursor returned by an earlier call, or "" for the full map
+     * @return Struct of "files" (changed entries), "cursor" (cursor to pass next time)
+     *         and "full" (true if files is the full map because the cursor was not usable)
+     */
+    public Hashtable<String, Object> changesSince(String cursor) {
+        long stable = stableSeq();
+        long since = 0;
+        boolean full = true;
+        String[] parts = cursor.split(":");
+        if (parts.length == 3 && parts[0].equals(storeId)) {
+            try {
+                since = Long.parseLong(parts[2]);
+                // A cursor from an earlier run may cover updates that were never made durable
+                full = since < 0 || since > (parts[1].equals(bootId) ? stable : recoveredSeq);
+            } catch (NumberFormatException e) {
+                // Not a cursor this store made, send the full map
+                since = 0;
+            }
+        }
+        Hashtable<String, Vector> files = new Hashtable<String, Vector>();
+        if (full) {
+            files = getAll();
+        } else {
+            for (String filename : changes.subMap(since, false, stable, true).values()) {
+                Entry entry = fileInfoMap.get(filename);
+                Entry visible = entry != null ? entry.visible() : null;
+                if (visible != null) {
+                    files.put(filename, visible.fileinfo());
+                }
+            }
+        }
+        Hashtable<String, Object> result = new Hashtable<String, Object>();
+        result.put("files", files);
+        result.put("cursor", storeId + ":" + bootId + ":" + stable);
+        result.put("full", full);
+        return result;
+    }
+
+    /**
+     * Latest change sequence below which every update has been published.
+     * An update announces a lower bound of its sequence number before taking it and clears
+     * the announcement once published and, in group mode, durable, so the sequence is capped
+     * below every announcement.
+     */
+    private long stableSeq() {
+        long stable = lastSeq.get();
+        for (AtomicLong slot : announced) {
+            stable = Math.min(stable, slot.get() - 1);
+        }
+        return stable;
+    }
+
+    /**
+     * Update the given entry if the version is newer than the stored one, and log it.
+     * @param filename Name of the file to update
+     * @param version Version number given
+     * @param hashlist List of hash values
+     * @return True if updated successfully
+     */
+    public boolean update(String filename, int version, Vector hashlist) throws IOException {
+        if (failure != null) throw failure;
+        HashList packed = HashList.fromHex(hashlist);
+        AtomicLong slot = announcement.get();
+        try {
+            long seq;
+            Entry entry;
+            while (true) {
+                Entry old = fileInfoMap.get(filename);
+                // Create new file if file does not exist, otherwise check version number
+                if (old != null && version < old.version + 1) {
+                    return false;
+                }
+                slot.set(lastSeq.get() + 1);
+                seq = lastSeq.incrementAndGet();
+                // In group mode the entry reserves the version until its record is fsynced
+                entry = new Entry(version, packed, seq, !groupCommit, old);
+                boolean swapped = old == null
+                        ? fileInfoMap.putIfAbsent(filename, entry) == null
+                        : fileInfoMap.replace(filename, old, entry);
+                if (swapped) {
+                    publish(filename, old, entry);
+                    break;
+                }
+                // Another update of the same file won, check the version again against it
+            }
+            PendingRecord record = new PendingRecord(encode(filename, version, packed, seq));
+            pending.add(record);
+            appended.incrementAndGet();
+            if (groupCommit) {
+                LockSupport.unpark(committer);
+                awaitDurable(record);
+                entry.markDurable();
+            }
+        } finally {
+            // Keeps cursors below the change until it is visible
+            slot.set(IDLE);
+        }
+        return true;
+    }
+
+    /**
+     * Wait until every update accepted so far is fsynced, also in batched mode.
+     */
+    public void flush() throws IOException {
+        if (failure != null) throw failure;
+        PendingRecord marker = new PendingRecord(new byte[0]);
+        pending.add(marker);
+        LockSupport.unpark(committer);
+        awaitDurable(marker);
+    }
+
+    /**
+     * Record a stored entry as the file's latest change.
+     * @param old Entry the new one replaced, or null
+     */
+    private void publish(String filename, Entry old, Entry entry) {
+        if (old != null) {
+            changes.remove(old.seq);
+        }
+        changes.put(entry.seq, filename);
+        // A newer update of the file may have removed our change before we added it
+        if (fileInfoMap.get(filename) != entry) {
+            changes.remove(entry.seq);
+        }
+    }
+
+    /**
+     * Apply an entry read from the snapshot or log during recovery.
+     * @param force True to store it as is, false to apply the version check
+     */
+    private void restore(String filename, int version, HashList hashlist, long seq, boolean force) {
+        Entry old = fileInfoMap.get(filename);
+        if (!force && old != null && version < old.version + 1) {
+            return;
+        }
+        Entry entry = new Entry(version, hashlist, seq, true, null);
+        fileInfoMap.put(filename, entry);
+        publish(filename, old, entry);
+        lastSeq.set(Math.max(lastSeq.get(), seq));
+    }
+
+    /**
+     * Wait until a record is fsynced.
+     */
+    private void awaitDurable(PendingRecord record) throws IOException {
+        try {
+            record.written.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the log");
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Committer thread: write and fsync pending records in groups, and take snapshots.
+     */
+    private void commitLoop() {
+        while (true) {
+            boolean stopping = closed;
+            try {
+                int count = commit();
+                if (count > 0 && recordsSinceSnapshot >= snapshotEvery) {
+                    snapshot();
+                }
+                if (stopping) {
+                    return;
+                }
+                if (count == 0 || !groupCommit) {
+                    // Woken up by the next update in group mode, by the timer in batched mode
+                    LockSupport.parkNanos(this, groupCommit ? 100_000_000L : syncInterval * 1_000_000L);
+                }
+            } catch (IOException e) {
+                Log.error("Metadata log write failed: %s", e);
+                failure = e;
+                PendingRecord record;
+                while ((record = pending.poll()) != null) {
+                    record.written.countDown();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write and fsync the records pending now, then release their writers.
+     * @return Number of records committed
+     */
+    private int commit() throws IOException {
+        List<PendingRecord> group = new ArrayList<PendingRecord>();
+        int bytes = 0;
+        PendingRecord record;
+        while ((record = pending.poll()) != null) {
+            group.add(record);
+            bytes += record.bytes.length;
+        }
+        if (group.isEmpty()) return 0;
+        long start = System.nanoTime();
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        for (PendingRecord pendingRecord : group) {
+            buffer.put(pendingRecord.bytes);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            wal.write(buffer);
+        }
+        wal.force(false);
+        fsyncNanos += System.nanoTime() - start;
+        fsyncCount++;
+        fsyncRecords += group.size();
+        recordsSinceSnapshot += group.size();
+        for (PendingRecord pendingRecord : group) {
+            pendingRecord.written.countDown();
+        }
+        return group.size();
+    }
+
+    /**
+     * Write the map to a new snapshot and start a new log generation, then drop the old logs.
+     * Runs on the committer thread between commits.
+     */
+    private void snapshot() throws IOException {
+        // Switch the log first: an update missing from the copy below stored its entry after
+        // the switch, so its record was queued after the switch and lands in the new log
+        commit();
+        int generation = walGeneration + 1;
+        wal.close();
+        openLog(generation);
+        Map<String, Entry> copy = new HashMap<String, Entry>(fileInfoMap);
+        long copySeq = lastSeq.get();
+
+        long start = System.nanoTime();
+        File tmp = new File(dir, SNAPSHOT_FILE + ".tmp");
+        FileOutputStream file = new FileOutputStream(tmp);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(generation);
+            out.writeLong(copySeq);
+            out.writeInt(copy.size());
+            for (Map.Entry<String, Entry> entry : copy.entrySet()) {
+                Entry value = entry.getValue();
+                writeEntry(out, entry.getKey(), value.version, value.hashlist, value.seq);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(dir, SNAPSHOT_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (int old : logGenerations()) {
+            if (old < generation) {
+                new File(dir, logName(old)).delete();
+            }
+        }
+        recordsSinceSnapshot = 0;
+        Log.info("Metadata snapshot: %d files in %.1f ms; %s",
+                copy.size(), (System.nanoTime() - start) / 1e6, statsLine());
+    }
+
+    /**
+     * Flush pending records, take a final snapshot and stop the committer.
+     */
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(committer);
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) throw failure;
+        snapshot();
+        wal.close();
+    }
+
+    /**
+     * Get the log and recovery statistics.
+     * @return Mapping of statistic name to value
+     */
+    public Hashtable<String, Object> stats() {
+        Hashtable<String, Object> stats = new Hashtable<String, Object>();
+        long fsyncs = fsyncCount;
+        stats.put("files", fileInfoMap.size());
+        stats.put("changeSequence", Long.toString(lastSeq.get()));
+        stats.put("updates", (int) appended.get());
+        stats.put("fsyncs", (int) fsyncs);
+        stats.put("fsyncAvgMicros", fsyncs == 0 ? 0 : (int) (fsyncNanos / fsyncs / 1000));
+        stats.put("updatesPerFsync", fsyncs == 0 ? 0.0 : (double) fsyncRecords / fsyncs);
+        stats.put("recoveryMillis", recoveryNanos / 1e6);
+        return stats;
+    }
+
+    /**
+     * Format the log statistics for the console.
+     */
+    private String statsLine() {
+        Hashtable<String, Object> stats = stats();
+        return String.format("%s updates, %s fsyncs, %s us per fsync, %.1f updates per fsync",
+                stats.get("updates"), stats.get("fsyncs"), stats.get("fsyncAvgMicros"), stats.get("updatesPerFsync"));
+    }
+
+    /**
+     * Load the snapshot and replay the log generations after it.
+     * @return Number of log records replayed
+     */
+    private int recover() throws IOException {
+        int generation = 0;
+        File snapshot = new File(dir, SNAPSHOT_FILE);
+        if (snapshot.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)))) {
+                int magic = in.readInt();
+                if (magic != SNAPSHOT_MAGIC && magic != OLD_SNAPSHOT_MAGIC) throw new IOException("Bad snapshot magic");
+                generation = in.readInt();
+                lastSeq.set(in.readLong());
+                int entries = in.readInt();
+                for (int i = 0; i < entries; i++) {
+                    readEntry(in, true, magic == SNAPSHOT_MAGIC);
+                }
+            }
+        }
+        int replayed = 0;
+        int last = generation;
+        for (int log : logGenerations()) {
+            if (log < generation) continue;
+            replayed += replay(new File(dir, logName(log)));
+            last = log;
+        }
+        openLog(last);
+        return replayed;
+    }
+
+    /**
+     * Apply the records of a log file, truncating a torn record at its end.
+     * @return Number of records replayed
+     */
+    private int replay(File log) throws IOException {
+        int replayed = 0;
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+            while (true) {
+                int magic;
+                try {
+                    magic = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (magic != RECORD_MAGIC && magic != OLD_RECORD_MAGIC) break;
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 0 || length > log.length()) break;
+                byte[] payload = new byte[length];
+                try {
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) break;
+                readEntry(new DataInputStream(new ByteArrayInputStream(payload)), false, magic == RECORD_MAGIC);
+                valid += 12 + length;
+                replayed++;
+            }
+        }
+        if (valid < log.length()) {
+            Log.warn("Metadata log %s is torn after offset %d, truncating", log.getName(), valid);
+            try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * Open a log generation for appending.
+     */
+    private void openLog(int generation) throws IOException {
+        wal = FileChannel.open(new File(dir, logName(generation)).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        walGeneration = generation;
+    }
+
+    /**
+     * List the log generations in the directory, oldest first.
+     */
+    private List<Integer> logGenerations() {
+        List<Integer> generations = new ArrayList<Integer>();
+        for (String name : dir.list()) {
+            if (name.startsWith("meta-") && name.endsWith(".wal")) {
+                generations.add(Integer.parseInt(name.substring(5, name.length() - 4)));
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    /**
+     * Read the id of this store, generating it when the store is created.
+     */
+    private String readStoreId() throws IOException {
+        File file = new File(dir, ID_FILE);
+        if (file.exists()) {
+            return new String(Files.readAllBytes(file.toPath()), "UTF-8").trim();
+        }
+        String id = UUID.randomUUID().toString();
+        Files.write(file.toPath(), id.getBytes("UTF-8"));
+        return id;
+    }
+
+    private static String logName(int generation) {
+        return String.format("meta-%06d.wal", generation);
+    }
+
+    /**
+     * Encode an update as a checksummed log record.
+     */
+    private static byte[] encode(String filename, int version, HashList hashlist, long seq) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        writeEntry(new DataOutputStream(payload), filename, version, hashlist, seq);
+        CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+        ByteArrayOutputStream record = new ByteArrayOutputStream(12 + payload.size());
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(RECORD_MAGIC);
+        out.writeInt(payload.size());
+        out.writeInt((int) crc.getValue());
+        payload.writeTo(out);
+        return record.toByteArray();
+    }
+
+    /**
+     * Write an entry: filename, change sequence, version, hash count and the packed hashes.
+     */
+    private static void writeEntry(DataOutputStream out, String filename, int version, HashList hashlist, long seq) throws IOException {
+        out.writeUTF(filename);
+        out.writeLong(seq);
+        out.writeInt(version);
+        out.writeInt(hashlist.size());
+        out.write(hashlist.toBytes());
+    }
+
+    /**
+     * Read an entry and apply it to the map.
+     * @param force True to store it as is (snapshot), false to apply the version check (log replay)
+     * @param packed True if the hashes are packed, false if written as hex strings by earlier servers
+     */
+    private void readEntry(DataInputStream in, boolean force, boolean packed) throws IOException {
+        String filename = in.readUTF();
+        long seq = in.readLong();
+        int version = in.readInt();
+        int count = in.readInt();
+        HashList hashlist;
+        if (packed) {
+            byte[] hashes = new byte[count * BlockHash.BYTES];
+            in.readFully(hashes);
+            hashlist = HashList.fromBytes(hashes);
+        } else {
+            Vector<String> hex = new Vector<String>(count);
+            for (int i = 0; i < count; i++) {
+                hex.add(in.readUTF());
+            }
+            hashlist = HashList.fromHex(hex);
+        }
+        restore(filename, version, hashlist, seq, force);
+    }
+}
@@ -0,0 +1,261 @@
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import org.apache.xmlrpc.Invoker;
+import org.apache.xmlrpc.XmlRpcHandler;
+
+/**
+ * Server counters, latency histograms and gauges, kept in memory and returned by the stats RPC.
+ * Counters are LongAdders and histograms arrays of atomic bucket counts, so recording from
+ * many request threads never takes a lock.
+ *
+ * Snapshots are flat maps of name to number, with histograms expanded to NAME.count, NAME.p50,
+ * NAME.p90, NAME.p99, NAME.p999 and NAME.max in microseconds. Numbers are doubles apart from
+ * small counts, as XML-RPC has no 64-bit integers.
+ */
+public class Metrics {
+
+    // Map<name, counter>
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+
+    // Map<name, histogram>
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    // Map<RPC method, latency histogram>, reported as "rpc.METHOD"
+    private static final Map<String, Histogram> calls = new ConcurrentHashMap<String, Histogram>();
+
+    // Map<prefix, values read at snapshot time>
+    private static final Map<String, Supplier<Map<String, Object>>> gauges = new ConcurrentHashMap<String, Supplier<Map<String, Object>>>();
+
+    /**
+     * Histogram of values with about 6% precision, HdrHistogram-style: values below 32 have a bucket
+     * each, and every larger power of two range is split into 16 equal buckets.
+     */
+    public static class Histogram {
+        private static final int EXACT = 32;
+        private static final int SUB_BUCKETS = 16;
+        private static final int BUCKETS = EXACT + (63 - 5) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Record a value.
+         * @param value Non-negative value, typically a latency in microseconds
+         */
+        public void record(long value) {
+            if (value < 0) value = 0;
+            counts.incrementAndGet(bucket(value));
+            if (value > max.get()) max.accumulateAndGet(value, Math::max);
+        }
+
+        /**
+         * Returns the value below which the given fraction of the recorded values fall.
+         * @param fraction Fraction between 0 and 1
+         * @return Upper bound of the bucket holding that value, at most the largest value recorded
+         */
+        public long percentile(double fraction) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= Math.max(1, rank)) return Math.min(upperBound(i), max.get());
+            }
+            return max.get();
+        }
+
+        /**
+         * Number of values recorded.
+         */
+        public long count() {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        /**
+         * Largest value recorded.
+         */
+        public long max() {
+            return max.get();
+        }
+
+        private static int bucket(long value) {
+            if (value < EXACT) return (int) value;
+            int top = 63 - Long.numberOfLeadingZeros(value); // At least 5
+            int sub = (int) (value >>> (top - 4)) & (SUB_BUCKETS - 1);
+            return EXACT + (top - 5) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < EXACT) return bucket;
+            int top = (bucket - EXACT) / SUB_BUCKETS + 5;
+            int sub = (bucket - EXACT) % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (top - 4)) - 1;
+        }
+    }
+
+    /**
+     * XML-RPC handler timing every call of the wrapped handler into the histogram "rpc.METHOD",
+     * and counting failed calls in "rpc.METHOD.errors". Calls of unknown methods are not recorded,
+     * so clients cannot create metrics.
+     */
+    public static class TimedHandler implements XmlRpcHandler {
+        private final XmlRpcHandler handler;
+        private final Set<String> methods = new HashSet<String>();
+
+        /**
+         * Constructor.
+         * @param target Object whose public methods are the RPCs, as passed to WebServer.addHandler
+         */
+        public TimedHandler(Object target) {
+            this.handler = new Invoker(target);
+            for (Method method : target.getClass().getMethods()) {
+                methods.add(method.getName());
+            }
+        }
+
+        @Override
+        public Object execute(String method, Vector params) throws Exception {
+            String name = method.substring(method.lastIndexOf('.') + 1);
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                Object result = handler.execute(method, params);
+                failed = false;
+                return result;
+            } finally {
+                if (methods.contains(name)) recordCall(name, start, failed);
+            }
+        }
+    }
+
+    /**
+     * Add to a counter.
+     * @param name Name of the counter
+     * @param delta Amount to add
+     */
+    public static void count(String name, long delta) {
+        LongAdder counter = counters.get(name);
+        if (counter == null) counter = counters.computeIfAbsent(name, key -> new LongAdder());
+        counter.add(delta);
+    }
+
+    /**
+     * Get a histogram, creating it on first use.
+     * @param name Name of the histogram
+     * @return The histogram
+     */
+    public static Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        return histogram != null ? histogram : histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    /**
+     * Record the latency and outcome of an RPC.
+     * @param method Name of the method, without the handler prefix
+     * @param startNanos System.nanoTime() when the call started
+     * @param failed True if the call threw
+     */
+    public static void recordCall(String method, long startNanos, boolean failed) {
+        Histogram histogram = calls.get(method);
+        if (histogram == null) histogram = calls.computeIfAbsent(method, key -> new Histogram());
+        histogram.record((System.nanoTime() - startNanos) / 1000);
+        if (failed) count("rpc." + method + ".errors", 1);
+    }
+
+    /**
+     * Register values read when a snapshot is taken, such as the size of a store.
+     * Non-numeric values are left out of snapshots.
+     * @param prefix Prefix of the value names in snapshots
+     * @param values Returns the current values by name
+     */
+    public static void gauge(String prefix, Supplier<Map<String, Object>> values) {
+        gauges.put(prefix, values);
+    }
+
+    /**
+     * Take a snapshot of every counter, histogram and gauge.
+     * @return Mapping of name to value, sorted by name
+     */
+    public static SortedMap<String, Object> snapshot() {
+        SortedMap<String, Object> snapshot = new TreeMap<String, Object>();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            snapshot.put(counter.getKey(), (double) counter.getValue().sum());
+        }
+        for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+            putHistogram(snapshot, histogram.getKey(), histogram.getValue());
+        }
+        for (Map.Entry<String, Histogram> call : calls.entrySet()) {
+            putHistogram(snapshot, "rpc." + call.getKey(), call.getValue());
+        }
+        for (Map.Entry<String, Supplier<Map<String, Object>>> gauge : gauges.entrySet()) {
+            try {
+                for (Map.Entry<String, Object> value : gauge.getValue().get().entrySet()) {
+                    if (value.getValue() instanceof Number) {
+                        snapshot.put(gauge.getKey() + "." + value.getKey(), value.getValue());
+                    }
+                }
+            } catch (RuntimeException e) {
+                Log.warn("Metrics gauge %s: %s", gauge.getKey(), e);
+            }
+        }
+        return snapshot;
+    }
+
+    private static void putHistogram(Map<String, Object> snapshot, String name, Histogram histogram) {
+        snapshot.put(name + ".count", (double) histogram.count());
+        snapshot.put(name + ".p50", (double) histogram.percentile(0.50));
+        snapshot.put(name + ".p90", (double) histogram.percentile(0.90));
+        snapshot.put(name + ".p99", (double) histogram.percentile(0.99));
+        snapshot.put(name + ".p999", (double) histogram.percentile(0.999));
+        snapshot.put(name + ".max", (double) histogram.max());
+    }
+
+    /**
+     * Append a snapshot to a file every interval, as one JSON object per line with a "time" field.
+     * @param file File to append to
+     * @param intervalMillis Milliseconds between snapshots
+     */
+    public static void startDump(File file, long intervalMillis) {
+        Thread dumper = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                    StringBuilder line = new StringBuilder("{\"time\":").append(System.currentTimeMillis());
+                    for (Map.Entry<String, Object> value : snapshot().entrySet()) {
+                        Object number = value.getValue();
+                        line.append(",\"").append(value.getKey()).append("\":")
+                                .append(number instanceof Double && ((Double) number) == Math.rint((Double) number)
+                                        ? Long.toString(((Double) number).longValue()) : number.toString());
+                    }
+                    line.append("}\n");
+                    try (OutputStream out = new FileOutputStream(file, true)) {
+                        out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    Log.error("Metrics dump to %s: %s", file, e);
+                }
+            }
+        }, "metrics-dump");
+        dumper.setDaemon(true);
+        dumper.start();
+    }
+}
@@ -0,0 +1,416 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent state of a Raft node: the current term, the vote cast in it, and the log of
+ * FileInfoMap updates after the last compaction.
+ *
+ * The term and vote are rewritten atomically to "raft.state" whenever they change, which only
+ * happens around elections. Log entries are appended to "raft.log" without an fsync, and sync
+ * makes them durable, sharing one fsync among all callers waiting at the same time.
+ *
+ * Each record in the log file is: magic, payload length, CRC32 of the payload, then the payload:
+ * index, term, filename, version, hash count and the raw 32-byte hashes. The same records are
+ * sent to followers by appendentries. Entries up to the snapshot index were applied to the
+ * MetadataStore and made durable there, so compaction drops them from the log.
+ */
+public class RaftLog {
+
+    private static final int RECORD_MAGIC = 0x53524c31; // "SRL1"
+    private static final int STATE_MAGIC = 0x53525331; // "SRS1"
+    private static final String LOG_FILE = "raft.log";
+    private static final String STATE_FILE = "raft.state";
+
+    /**
+     * A log entry: an updatefile call, or a no-op a new leader appends in its term.
+     */
+    public static class Entry {
+        final int term;
+        final String filename; // Null for a no-op
+        final int version;
+        final HashList hashlist;
+
+        Entry(int term, String filename, int version, HashList hashlist) {
+            this.term = term;
+            this.filename = filename;
+            this.version = version;
+            this.hashlist = hashlist;
+        }
+
+        static Entry noop(int term) {
+            return new Entry(term, null, 0, HashList.fromBytes(new byte[0]));
+        }
+
+        boolean isNoop() {
+            return filename == null;
+        }
+    }
+
+    private final File dir;
+
+    // Guarded by this
+    private int currentTerm;
+    private String votedFor; // Null if no vote was cast in the current term
+    private int snapshotIndex; // Index of the last compacted entry
+    private int snapshotTerm; // Term of the last compacted entry
+    private final ArrayList<Entry> entries = new ArrayList<Entry>(); // Entries after snapshotIndex
+    private final ArrayList<Long> offsets = new ArrayList<Long>(); // File offset of each entry
+    private FileChannel channel;
+    private long fileSize;
+    private int truncations; // Times entries were truncated, so a sync racing a truncation keeps durableIndex
+
+    private final Object syncLock = new Object(); // Held by the one caller running an fsync
+    private volatile int durableIndex; // Index of the last entry known to be fsynced
+
+    /**
+     * Constructor. Loads the state and log in the given directory.
+     * @param dir Directory holding the state and log, created if it does not exist
+     */
+    public RaftLog(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create raft directory " + dir);
+        }
+        readState();
+        fileSize = load();
+        durableIndex = lastIndex();
+    }
+
+    public synchronized int currentTerm() {
+        return currentTerm;
+    }
+
+    public synchronized String votedFor() {
+        return votedFor;
+    }
+
+    /**
+     * Persist a new term and the vote cast in it.
+     * @param term Current term
+     * @param vote Node voted for in the term, or null
+     */
+    public synchronized void setTerm(int term, String vote) throws IOException {
+        currentTerm = term;
+        votedFor = vote;
+        writeState();
+    }
+
+    public synchronized int snapshotIndex() {
+        return snapshotIndex;
+    }
+
+    public synchronized int lastIndex() {
+        return snapshotIndex + entries.size();
+    }
+
+    public int durableIndex() {
+        return durableIndex;
+    }
+
+    /**
+     * Get the term of an entry.
+     * @param index Index of the entry, the snapshot index or 0
+     * @return Term of the entry, or -1 if it was compacted or does not exist
+     */
+    public synchronized int term(int index) {
+        if (index == 0) return 0;
+        if (index == snapshotIndex) return snapshotTerm;
+        if (index < snapshotIndex || index > lastIndex()) return -1;
+        return entries.get(index - snapshotIndex - 1).term;
+    }
+
+    /**
+     * Get an entry.
+     * @param index Index of an entry after the snapshot index
+     * @return The entry
+     */
+    public synchronized Entry get(int index) {
+        return entries.get(index - snapshotIndex - 1);
+    }
+
+    /**
+     * Encode a run of entries as appendentries sends them.
+     * @param from Index of the first entry, after the snapshot index
+     * @param maxEntries Largest number of entries to encode
+     * @param maxBytes Size after which no further entries are added
+     * @return Number of entries encoded and their records
+     */
+    public synchronized Map.Entry<Integer, byte[]> encode(int from, int maxEntries, int maxBytes) throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        int count = 0;
+        for (int index = from; index <= lastIndex() && count < maxEntries && records.size() < maxBytes; index++, count++) {
+            records.write(record(index, get(index)));
+        }
+        return new AbstractMap.SimpleEntry<Integer, byte[]>(count, records.toByteArray());
+    }
+
+    /**
+     * Decode the records sent by appendentries.
+     * @param records Encoded records
+     * @return Entries in order
+     */
+    public static List<Entry> decode(byte[] records) throws IOException {
+        List<Entry> decoded = new ArrayList<Entry>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(records));
+        while (in.available() > 0) {
+            Map.Entry<Integer, Entry> indexed = readRecord(in, records.length);
+            if (indexed == null) throw new IOException("Bad log record");
+            decoded.add(indexed.getValue());
+        }
+        return decoded;
+    }
+
+    /**
+     * Append an entry to the log. It is not durable until sync is called.
+     * @return Index of the entry
+     */
+    public synchronized int append(Entry entry) throws IOException {
+        int index = lastIndex() + 1;
+        ByteBuffer buffer = ByteBuffer.wrap(record(index, entry));
+        offsets.add(fileSize);
+        while (buffer.hasRemaining()) {
+            fileSize += channel.write(buffer, fileSize);
+        }
+        entries.add(entry);
+        return index;
+    }
+
+    /**
+     * Drop the entry at the given index and all after it, conflicting with the leader's log.
+     * @param index Index of the first entry to drop, after the snapshot index
+     */
+    public synchronized void truncateFrom(int index) throws IOException {
+        int keep = index - snapshotIndex - 1;
+        fileSize = offsets.get(keep);
+        channel.truncate(fileSize);
+        channel.force(false);
+        entries.subList(keep, entries.size()).clear();
+        offsets.subList(keep, offsets.size()).clear();
+        truncations++;
+        durableIndex = Math.min(durableIndex, index - 1);
+    }
+
+    /**
+     * Make the entries up to the given index durable.
+     * Callers arriving during an fsync wait for it, then share the next one.
+     * @param index Index of the last entry that must be durable
+     */
+    public void sync(int index) throws IOException {
+        synchronized (syncLock) {
+            if (durableIndex >= index) return;
+            int written;
+            int truncationsBefore;
+            FileChannel target;
+            synchronized (this) {
+                written = lastIndex();
+                truncationsBefore = truncations;
+                target = channel;
+            }
+            target.force(false);
+            synchronized (this) {
+                if (truncations == truncationsBefore) {
+                    durableIndex = Math.max(durableIndex, written);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop the entries up to the given index, which the MetadataStore has made durable.
+     * The remaining entries are written to a new log file that replaces the old one.
+     * @param index Index of the last entry to drop
+     */
+    public void compact(int index) throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (index <= snapshotIndex) return;
+                int term = term(index);
+                List<Entry> kept = new ArrayList<Entry>(entries.subList(index - snapshotIndex, entries.size()));
+                rewrite(index, term, kept);
+                durableIndex = lastIndex();
+            }
+        }
+    }
+
+    /**
+     * Drop the whole log after the leader sent a snapshot.
+     * @param index Index of the last entry in the snapshot
+     * @param term Term of that entry
+     */
+    public void reset(int index, int term) throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                rewrite(index, term, Collections.<Entry>emptyList());
+                truncations++;
+                durableIndex = index;
+            }
+        }
+    }
+
+    /**
+     * Close the log file.
+     */
+    public synchronized void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+
+    /**
+     * Replace the log with the given entries after a new snapshot index.
+     */
+    private void rewrite(int index, int term, List<Entry> kept) throws IOException {
+        File tmp = new File(dir, LOG_FILE + ".tmp");
+        FileChannel rewritten = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        List<Long> keptOffsets = new ArrayList<Long>();
+        long size = 0;
+        for (int i = 0; i < kept.size(); i++) {
+            ByteBuffer buffer = ByteBuffer.wrap(record(index + 1 + i, kept.get(i)));
+            keptOffsets.add(size);
+            while (buffer.hasRemaining()) {
+                size += rewritten.write(buffer, size);
+            }
+        }
+        rewritten.force(false);
+        // The state names the new snapshot index before the old log is replaced, and loading
+        // skips entries at or below it, so a crash between the two steps loses nothing
+        snapshotIndex = index;
+        snapshotTerm = term;
+        writeState();
+        Files.move(tmp.toPath(), new File(dir, LOG_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel.close();
+        channel = rewritten;
+        fileSize = size;
+        entries.clear();
+        entries.addAll(kept);
+        offsets.clear();
+        offsets.addAll(keptOffsets);
+    }
+
+    /**
+     * Read the log file, skipping compacted entries and truncating a torn or out of sequence tail.
+     * @return Size of the valid part of the file
+     */
+    private long load() throws IOException {
+        File log = new File(dir, LOG_FILE);
+        long valid = 0;
+        long length = log.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+            while (valid < length) {
+                Map.Entry<Integer, Entry> indexed = readRecord(in, length);
+                if (indexed == null) break;
+                int index = indexed.getKey();
+                long recordSize = 12 + recordPayloadSize(indexed.getValue());
+                if (index > snapshotIndex) {
+                    if (index != lastIndex() + 1) break;
+                    offsets.add(valid);
+                    entries.add(indexed.getValue());
+                }
+                valid += recordSize;
+            }
+        } catch (EOFException | FileNotFoundException e) {
+            // Torn record at the end, truncated below, or no log yet
+        }
+        if (valid < length) {
+            Log.warn("Raft log is torn after offset %d, truncating", valid);
+        }
+        channel = FileChannel.open(log.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.truncate(valid);
+        return valid;
+    }
+
+    /**
+     * Read one record.
+     * @return Index and entry, or null if the record is not valid
+     */
+    private static Map.Entry<Integer, Entry> readRecord(DataInputStream in, long limit) throws IOException {
+        if (in.readInt() != RECORD_MAGIC) return null;
+        int length = in.readInt();
+        int checksum = in.readInt();
+        if (length < 0 || length > limit) return null;
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) return null;
+        DataInputStream fields = new DataInputStream(new ByteArrayInputStream(payload));
+        int index = fields.readInt();
+        int term = fields.readInt();
+        boolean noop = fields.readBoolean();
+        String filename = fields.readUTF();
+        int version = fields.readInt();
+        byte[] hashes = new byte[fields.readInt() * BlockHash.BYTES];
+        fields.readFully(hashes);
+        Entry entry = new Entry(term, noop ? null : filename, version, HashList.fromBytes(hashes));
+        return new AbstractMap.SimpleEntry<Integer, Entry>(index, entry);
+    }
+
+    /**
+     * Encode an entry as a checksummed record.
+     */
+    private static byte[] record(int index, Entry entry) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(recordPayloadSize(entry));
+        DataOutputStream fields = new DataOutputStream(payload);
+        fields.writeInt(index);
+        fields.writeInt(entry.term);
+        fields.writeBoolean(entry.isNoop());
+        fields.writeUTF(entry.isNoop() ? "" : entry.filename);
+        fields.writeInt(entry.version);
+        fields.writeInt(entry.hashlist.size());
+        fields.write(entry.hashlist.toBytes());
+        CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+        ByteArrayOutputStream record = new ByteArrayOutputStream(12 + payload.size());
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(RECORD_MAGIC);
+        out.writeInt(payload.size());
+        out.writeInt((int) crc.getValue());
+        payload.writeTo(out);
+        return record.toByteArray();
+    }
+
+    private static int recordPayloadSize(Entry entry) throws UnsupportedEncodingException {
+        String filename = entry.isNoop() ? "" : entry.filename;
+        return 4 + 4 + 1 + 2 + filename.getBytes("UTF-8").length + 4 + 4 + entry.hashlist.size() * BlockHash.BYTES;
+    }
+
+    /**
+     * Load the term, vote and snapshot position, if they were ever written.
+     */
+    private void readState() throws IOException {
+        File file = new File(dir, STATE_FILE);
+        if (!file.exists()) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != STATE_MAGIC) throw new IOException("Bad raft state magic");
+            currentTerm = in.readInt();
+            votedFor = in.readBoolean() ? in.readUTF() : null;
+            snapshotIndex = in.readInt();
+            snapshotTerm = in.readInt();
+        }
+    }
+
+    /**
+     * Write the term, vote and snapshot position to a new state file that replaces the old one.
+     */
+    private void writeState() throws IOException {
+        File tmp = new File(dir, STATE_FILE + ".tmp");
+        FileOutputStream file = new FileOutputStream(tmp);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(STATE_MAGIC);
+            out.writeInt(currentTerm);
+            out.writeBoolean(votedFor != null);
+            if (votedFor != null) out.writeUTF(votedFor);
+            out.writeInt(snapshotIndex);
+            out.writeInt(snapshotTerm);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(dir, STATE_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,842 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Raft replication of the FileInfoMap over several metadata servers.
+ *
+ * The leader appends every updatefile to its RaftLog and returns once the entry is durable on a
+ * majority of the nodes and applied to its MetadataStore, with the result the MetadataStore's
+ * version check gave. Followers apply the same entries in the same order, so every node ends up
+ * with the same map. Applying an entry again after a restart is harmless, since an update is
+ * only accepted if its version is newer than the stored one.
+ *
+ * Entries are sent to each follower in batches of all entries not yet sent, and up to
+ * PIPELINE_DEPTH batches are in flight at once. A follower that receives a batch ahead of the
+ * one before it waits briefly for the earlier one instead of rejecting it. The leader writes
+ * its own log in parallel with the followers.
+ *
+ * Once compactEvery entries are applied, the MetadataStore is flushed and the log up to there
+ * is dropped. A follower that needs dropped entries is sent the leader's whole map instead.
+ *
+ * crash() stops the node from answering or sending RPCs until restore(), for failover tests.
+ */
+public class RaftNode {
+
+    private static final int MAX_BATCH_ENTRIES = 1024;
+    private static final int MAX_BATCH_BYTES = 4 * 1024 * 1024;
+    private static final int PIPELINE_DEPTH = 4;
+    private static final long COMMIT_TIMEOUT_MILLIS = 5000;
+
+    private enum Role { FOLLOWER, CANDIDATE, LEADER }
+
+    /**
+     * Replication state of another node, guarded by lock.
+     */
+    private static class Peer {
+        final String address;
+        final ExecutorService senders; // One connection per thread, PIPELINE_DEPTH requests in flight
+        int nextIndex = 1; // Index of the next entry to send
+        int matchIndex; // Index of the last entry known to be durable on the peer
+        int epoch; // Bumped when nextIndex is moved back, so answers to earlier requests do not move it again
+        int inFlight;
+        boolean sendingSnapshot;
+        long lastSent; // Time of the last request, for heartbeats
+        long retryAt; // Time before which nothing is sent after a failed request
+
+        Peer(String address) {
+            this.address = address;
+            senders = Executors.newFixedThreadPool(PIPELINE_DEPTH, daemonThreads("raft-" + address));
+        }
+    }
+
+    /**
+     * A caller of update waiting for its entry to be applied.
+     */
+    private static class Waiter {
+        final int term;
+        final CompletableFuture<Boolean> applied = new CompletableFuture<Boolean>();
+
+        Waiter(int term) {
+            this.term = term;
+        }
+    }
+
+    private final String self;
+    private final List<Peer> peers = new ArrayList<Peer>();
+    private final RaftLog log;
+    private final MetadataStore store;
+    private final long electionTimeoutMillis;
+    private final long heartbeatMillis;
+    private final int compactEvery;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition(); // Signalled when the log, commit index or role changes
+    // Guarded by lock
+    private Role role = Role.FOLLOWER;
+    private String leaderId; // Address of the current leader, null if unknown
+    private long electionDeadline;
+    private int commitIndex;
+    private int leaderStartIndex = Integer.MAX_VALUE; // Index of the no-op this node appended on becoming leader
+    private boolean crashed;
+    private final Map<Integer, Waiter> waiters = new HashMap<Integer, Waiter>();
+
+    private final Object applyLock = new Object(); // Held while an entry or snapshot is applied
+    private volatile int lastApplied;
+
+    private final ThreadLocal<Map<String, RpcClient>> connections = ThreadLocal.withInitial(HashMap::new);
+    private final ExecutorService voters;
+    private final Random random = new Random();
+
+    // Statistics
+    private final AtomicInteger elections = new AtomicInteger();
+    private volatile long appendRequests;
+    private volatile long appendedEntries;
+
+    /**
+     * Constructor.
+     * @param self Address of this node, as listed in the config
+     * @param nodes Addresses of all metadata nodes, including this one
+     * @param log Persistent term, vote and log of this node
+     * @param store FileInfoMap committed entries are applied to
+     * @param electionTimeoutMillis Shortest time without a leader before an election, the longest is twice that
+     * @param compactEvery Applied entries after which the log is compacted
+     */
+    public RaftNode(String self, List<String> nodes, RaftLog log, MetadataStore store, long electionTimeoutMillis, int compactEvery) {
+        this.self = self;
+        this.log = log;
+        this.store = store;
+        this.electionTimeoutMillis = electionTimeoutMillis;
+        this.heartbeatMillis = Math.max(1, electionTimeoutMillis / 6);
+        this.compactEvery = compactEvery;
+        for (String node : nodes) {
+            if (!node.equals(self)) {
+                peers.add(new Peer(node));
+            }
+        }
+        voters = Executors.newCachedThreadPool(daemonThreads("raft-vote"));
+        // Entries up to the snapshot were applied and made durable by the MetadataStore
+        lastApplied = log.snapshotIndex();
+        commitIndex = lastApplied;
+    }
+
+    /**
+     * Start the election timer, the replication and the applier threads.
+     */
+    public void start() {
+        lock.lock();
+        try {
+            resetElectionDeadline();
+        } finally {
+            lock.unlock();
+        }
+        startThread("raft-timer", this::timerLoop);
+        startThread("raft-applier", this::applyLoop);
+        for (Peer peer : peers) {
+            startThread("raft-replicate-" + peer.address, () -> replicateLoop(peer));
+        }
+    }
+
+    // Client operations
+
+    /**
+     * Replicate an updatefile and apply it once committed. Only the leader accepts updates.
+     * @return True if the MetadataStore accepted the version
+     */
+    public boolean update(String filename, int version, Vector hashlist) throws IOException {
+        HashList packed = HashList.fromHex(hashlist);
+        int index;
+        Waiter waiter;
+        lock.lock();
+        try {
+            checkLeader();
+            // Versions only grow, so an update no newer than the applied version would be refused anyway
+            if (version <= store.version(filename)) {
+                return false;
+            }
+            waiter = new Waiter(log.currentTerm());
+            index = log.append(new RaftLog.Entry(waiter.term, filename, version, packed));
+            waiters.put(index, waiter);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        // Followers receive the entry while the leader's own copy is fsynced
+        log.sync(index);
+        lock.lock();
+        try {
+            advanceCommitIndex();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            return waiter.applied.get(COMMIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out waiting for a majority to store the update");
+        } catch (ExecutionException e) {
+            throw new IOException("Update lost: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the update to commit");
+        }
+    }
+
+    /**
+     * Fail unless this node is the leader and has applied every entry committed before its term,
+     * so reads served from the MetadataStore are not older than an acknowledged update.
+     */
+    public void checkReadable() throws IOException {
+        long deadline = System.currentTimeMillis() + COMMIT_TIMEOUT_MILLIS;
+        lock.lock();
+        try {
+            checkLeader();
+            while (lastApplied < leaderStartIndex) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) throw new IOException("Timed out waiting for the new leader to catch up");
+                changed.await(Math.min(wait, heartbeatMillis), TimeUnit.MILLISECONDS);
+                checkLeader();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the new leader to catch up");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fail the calling RPC unless this node is a running leader.
+     */
+    private void checkLeader() {
+        checkNotCrashed();
+        if (role != Role.LEADER) {
+            throw new IllegalStateException("Not the leader" + (leaderId == null ? "" : ", leader is " + leaderId));
+        }
+    }
+
+    private void checkNotCrashed() {
+        if (crashed) throw new IllegalStateException("Server is crashed");
+    }
+
+    public boolean isLeader() {
+        lock.lock();
+        try {
+            return role == Role.LEADER && !crashed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop answering and sending RPCs until restore is called. A leader steps down.
+     */
+    public void crash() {
+        lock.lock();
+        try {
+            crashed = true;
+            role = Role.FOLLOWER;
+            leaderId = null;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Resume as a follower after crash.
+     */
+    public void restore() {
+        lock.lock();
+        try {
+            crashed = false;
+            resetElectionDeadline();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isCrashed() {
+        lock.lock();
+        try {
+            return crashed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // RPCs from other nodes
+
+    /**
+     * Append entries sent by the leader, or just note its heartbeat if there are none.
+     * @param term Leader's term
+     * @param leader Leader's address
+     * @param prevLogIndex Index of the entry before the sent ones
+     * @param prevLogTerm Term of that entry
+     * @param records Entries encoded by RaftLog.encode
+     * @param leaderCommit Leader's commit index
+     * @return Struct of "term", "success" and, on failure, "conflictIndex" (where the leader should continue)
+     */
+    public Hashtable<String, Object> appendEntries(int term, String leader, int prevLogIndex, int prevLogTerm,
+                                                   byte[] records, int leaderCommit) throws IOException {
+        List<RaftLog.Entry> entries = RaftLog.decode(records);
+        int lastNew;
+        lock.lock();
+        try {
+            checkNotCrashed();
+            if (term < log.currentTerm()) {
+                return reply(false, 0);
+            }
+            followLeader(term, leader);
+            // A batch overtook the one before it, give that one a moment to arrive
+            long deadline = System.currentTimeMillis() + heartbeatMillis;
+            while (prevLogIndex > log.lastIndex() && term == log.currentTerm() && !crashed) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) break;
+                changed.await(wait, TimeUnit.MILLISECONDS);
+            }
+            checkNotCrashed();
+            if (term != log.currentTerm()) {
+                return reply(false, 0);
+            }
+            if (prevLogIndex > log.lastIndex()) {
+                return reply(false, log.lastIndex() + 1);
+            }
+            // Entries up to the snapshot index are committed, so they match the leader's
+            int skip = Math.max(0, log.snapshotIndex() - prevLogIndex);
+            if (skip == 0 && log.term(prevLogIndex) != prevLogTerm) {
+                int conflictTerm = log.term(prevLogIndex);
+                int conflictIndex = prevLogIndex;
+                while (conflictIndex - 1 > log.snapshotIndex() && log.term(conflictIndex - 1) == conflictTerm) {
+                    conflictIndex--;
+                }
+                return reply(false, conflictIndex);
+            }
+            for (int i = skip; i < entries.size(); i++) {
+                int index = prevLogIndex + 1 + i;
+                if (index <= log.lastIndex()) {
+                    if (log.term(index) == entries.get(i).term) continue;
+                    log.truncateFrom(index);
+                }
+                log.append(entries.get(i));
+            }
+            lastNew = prevLogIndex + entries.size();
+            if (leaderCommit > commitIndex) {
+                commitIndex = Math.max(commitIndex, Math.min(leaderCommit, lastNew));
+            }
+            appendRequests++;
+            appendedEntries += entries.size();
+            changed.signalAll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for earlier entries");
+        } finally {
+            lock.unlock();
+        }
+        log.sync(lastNew);
+        return reply(true, 0);
+    }
+
+    /**
+     * Vote for a candidate if its log is at least as up to date as this node's.
+     * @param term Candidate's term
+     * @param candidate Candidate's address
+     * @param lastLogIndex Index of the candidate's last entry
+     * @param lastLogTerm Term of that entry
+     * @return Struct of "term" and "granted"
+     */
+    public Hashtable<String, Object> requestVote(int term, String candidate, int lastLogIndex, int lastLogTerm) throws IOException {
+        lock.lock();
+        try {
+            checkNotCrashed();
+            if (term > log.currentTerm()) {
+                stepDown(term);
+            }
+            int ownLastTerm = log.term(log.lastIndex());
+            boolean upToDate = lastLogTerm > ownLastTerm || (lastLogTerm == ownLastTerm && lastLogIndex >= log.lastIndex());
+            String vote = log.votedFor();
+            boolean granted = term == log.currentTerm() && upToDate && (vote == null || vote.equals(candidate));
+            if (granted) {
+                log.setTerm(term, candidate);
+                resetElectionDeadline();
+            }
+            Hashtable<String, Object> result = new Hashtable<String, Object>();
+            result.put("term", log.currentTerm());
+            result.put("granted", granted);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take over the leader's map in place of log entries it no longer has.
+     * @param term Leader's term
+     * @param leader Leader's address
+     * @param lastIncludedIndex Index of the last entry applied to the map
+     * @param lastIncludedTerm Term of that entry
+     * @param files Leader's FileInfoMap as of that entry
+     * @return Struct of "term" and "success"
+     */
+    public Hashtable<String, Object> installSnapshot(int term, String leader, int lastIncludedIndex, int lastIncludedTerm,
+                                                     Hashtable files) throws IOException {
+        lock.lock();
+        try {
+            checkNotCrashed();
+            if (term < log.currentTerm()) {
+                return reply(false, 0);
+            }
+            followLeader(term, leader);
+        } finally {
+            lock.unlock();
+        }
+        synchronized (applyLock) {
+            lock.lock();
+            try {
+                if (term != log.currentTerm()) {
+                    return reply(false, 0);
+                }
+                // Committed entries match the leader's, so a snapshot they cover, such as one
+                // retried by the leader that arrives after a later one, must not replace them
+                if (lastIncludedIndex <= commitIndex || log.term(lastIncludedIndex) == lastIncludedTerm) {
+                    return reply(true, 0); // Already has the entries
+                }
+            } finally {
+                lock.unlock();
+            }
+            // Every file of the map is newer than or as new as this node's copy
+            for (Map.Entry<String, Vector> file : ((Hashtable<String, Vector>) files).entrySet()) {
+                store.update(file.getKey(), (int) file.getValue().get(0), (Vector) file.getValue().get(1));
+            }
+            store.flush();
+            lock.lock();
+            try {
+                log.reset(lastIncludedIndex, lastIncludedTerm);
+                commitIndex = Math.max(commitIndex, lastIncludedIndex);
+                lastApplied = lastIncludedIndex;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        Log.info("Raft: installed snapshot of %d files at index %d", files.size(), lastIncludedIndex);
+        return reply(true, 0);
+    }
+
+    /**
+     * Get the replication statistics.
+     * @return Mapping of statistic name to value
+     */
+    public Hashtable<String, Object> stats() {
+        lock.lock();
+        try {
+            Hashtable<String, Object> stats = new Hashtable<String, Object>();
+            stats.put("role", crashed ? "crashed" : role.name().toLowerCase());
+            stats.put("leader", leaderId == null ? "" : leaderId);
+            stats.put("term", log.currentTerm());
+            stats.put("lastIndex", log.lastIndex());
+            stats.put("commitIndex", commitIndex);
+            stats.put("lastApplied", lastApplied);
+            stats.put("snapshotIndex", log.snapshotIndex());
+            stats.put("elections", elections.get());
+            stats.put("appendRequests", (int) appendRequests);
+            stats.put("entriesPerAppend", appendRequests == 0 ? 0.0 : (double) appendedEntries / appendRequests);
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Leader election
+
+    /**
+     * Timer thread: start an election when no leader was heard from in time.
+     */
+    private void timerLoop() {
+        while (true) {
+            try {
+                Thread.sleep(Math.max(1, heartbeatMillis / 2));
+                lock.lock();
+                try {
+                    if (!crashed && role != Role.LEADER && System.currentTimeMillis() >= electionDeadline) {
+                        startElection();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                Log.warn("Raft election: %s", e);
+            }
+        }
+    }
+
+    /**
+     * Become a candidate in the next term and ask the other nodes for their votes. Called with lock held.
+     */
+    private void startElection() throws IOException {
+        int term = log.currentTerm() + 1;
+        log.setTerm(term, self);
+        role = Role.CANDIDATE;
+        leaderId = null;
+        elections.incrementAndGet();
+        resetElectionDeadline();
+        int lastLogIndex = log.lastIndex();
+        int lastLogTerm = log.term(lastLogIndex);
+        AtomicInteger votes = new AtomicInteger(1);
+        if (votes.get() > (peers.size() + 1) / 2) {
+            becomeLeader();
+            return;
+        }
+        for (Peer peer : peers) {
+            voters.submit(() -> {
+                Vector params = new Vector();
+                params.add(term);
+                params.add(self);
+                params.add(lastLogIndex);
+                params.add(lastLogTerm);
+                Hashtable result;
+                try {
+                    result = (Hashtable) connection(peer.address).execute("surfstore.requestvote", params);
+                } catch (Exception e) {
+                    return null; // Down or crashed, counts as no vote
+                }
+                lock.lock();
+                try {
+                    int replyTerm = (int) result.get("term");
+                    if (replyTerm > log.currentTerm()) {
+                        stepDown(replyTerm);
+                    } else if (role == Role.CANDIDATE && log.currentTerm() == term && !crashed
+                            && (boolean) result.get("granted") && votes.incrementAndGet() > (peers.size() + 1) / 2) {
+                        becomeLeader();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Take over as leader: replicate from the end of this log and commit a no-op of the new term,
+     * which also commits the entries of earlier terms. Called with lock held.
+     */
+    private void becomeLeader() throws IOException {
+        role = Role.LEADER;
+        leaderId = self;
+        for (Peer peer : peers) {
+            peer.nextIndex = log.lastIndex() + 1;
+            peer.matchIndex = 0;
+            peer.epoch++;
+            peer.lastSent = 0; // Announce the new leader right away
+            peer.retryAt = 0;
+        }
+        leaderStartIndex = log.append(RaftLog.Entry.noop(log.currentTerm()));
+        log.sync(leaderStartIndex);
+        Log.info("Raft: leader of term %d at index %d", log.currentTerm(), leaderStartIndex);
+        advanceCommitIndex();
+        changed.signalAll();
+    }
+
+    /**
+     * Accept the sender of a valid appendentries or installsnapshot as leader. Called with lock held.
+     */
+    private void followLeader(int term, String leader) throws IOException {
+        if (term > log.currentTerm()) {
+            stepDown(term);
+        }
+        if (role != Role.FOLLOWER) {
+            role = Role.FOLLOWER;
+            changed.signalAll();
+        }
+        leaderId = leader;
+        leaderStartIndex = Integer.MAX_VALUE;
+        resetElectionDeadline();
+    }
+
+    /**
+     * Move to a newer term as a follower. Called with lock held.
+     */
+    private void stepDown(int term) throws IOException {
+        log.setTerm(term, null);
+        if (role == Role.LEADER) {
+            Log.info("Raft: stepping down in term %d", term);
+        }
+        role = Role.FOLLOWER;
+        leaderId = null;
+        leaderStartIndex = Integer.MAX_VALUE;
+        changed.signalAll();
+    }
+
+    private void resetElectionDeadline() {
+        electionDeadline = System.currentTimeMillis() + electionTimeoutMillis
+                + (long) (random.nextDouble() * electionTimeoutMillis);
+    }
+
+    // Replication
+
+    /**
+     * Replication thread of a peer: keep up to PIPELINE_DEPTH batches in flight while there are
+     * entries it lacks, and send heartbeats otherwise.
+     */
+    private void replicateLoop(Peer peer) {
+        while (true) {
+            lock.lock();
+            try {
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    long idle = now - peer.lastSent;
+                    if (role == Role.LEADER && !crashed && !peer.sendingSnapshot && now >= peer.retryAt) {
+                        boolean behind = peer.nextIndex <= log.lastIndex();
+                        if (peer.inFlight < PIPELINE_DEPTH && (behind || idle >= heartbeatMillis)) break;
+                    }
+                    changed.await(Math.max(1, heartbeatMillis - idle), TimeUnit.MILLISECONDS);
+                }
+                peer.lastSent = System.currentTimeMillis();
+                peer.inFlight++;
+                int term = log.currentTerm();
+                int epoch = peer.epoch;
+                if (peer.nextIndex <= log.snapshotIndex()) {
+                    // The entries the peer needs were compacted, wait for the pipeline to drain
+                    if (peer.inFlight > 1) {
+                        peer.inFlight--;
+                        changed.await(heartbeatMillis, TimeUnit.MILLISECONDS);
+                        continue;
+                    }
+                    peer.sendingSnapshot = true;
+                    peer.senders.submit(() -> sendSnapshot(peer, term));
+                    continue;
+                }
+                int prevLogIndex = peer.nextIndex - 1;
+                int prevLogTerm = log.term(prevLogIndex);
+                Map.Entry<Integer, byte[]> batch = log.encode(peer.nextIndex, MAX_BATCH_ENTRIES, MAX_BATCH_BYTES);
+                // Sent optimistically, the next batch starts after this one without waiting for the answer
+                peer.nextIndex += batch.getKey();
+                int leaderCommit = commitIndex;
+                peer.senders.submit(() -> sendEntries(peer, term, epoch, prevLogIndex, prevLogTerm, batch, leaderCommit));
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                Log.warn("Raft replicate: %s", e);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Send one appendentries request and process the answer.
+     */
+    private void sendEntries(Peer peer, int term, int epoch, int prevLogIndex, int prevLogTerm,
+                             Map.Entry<Integer, byte[]> batch, int leaderCommit) {
+        Vector params = new Vector();
+        params.add(term);
+        params.add(self);
+        params.add(prevLogIndex);
+        params.add(prevLogTerm);
+        params.add(batch.getValue());
+        params.add(leaderCommit);
+        Hashtable result = null;
+        try {
+            result = (Hashtable) connection(peer.address).execute("surfstore.appendentries", params);
+        } catch (Exception e) {
+            // Unreachable or crashed: retried from here after the next heartbeat interval
+        }
+        lock.lock();
+        try {
+            peer.inFlight--;
+            if (result == null) {
+                if (epoch == peer.epoch) {
+                    peer.nextIndex = Math.min(peer.nextIndex, prevLogIndex + 1);
+                    peer.epoch++;
+                }
+                peer.retryAt = System.currentTimeMillis() + heartbeatMillis;
+            } else if ((int) result.get("term") > log.currentTerm()) {
+                stepDown((int) result.get("term"));
+            } else if (role == Role.LEADER && term == log.currentTerm()) {
+                if ((boolean) result.get("success")) {
+                    peer.matchIndex = Math.max(peer.matchIndex, prevLogIndex + batch.getKey());
+                    peer.nextIndex = Math.max(peer.nextIndex, peer.matchIndex + 1);
+                    advanceCommitIndex();
+                } else if (epoch == peer.epoch) {
+                    int conflictIndex = (int) result.get("conflictIndex");
+                    peer.nextIndex = Math.max(peer.matchIndex + 1, Math.min(conflictIndex, prevLogIndex + 1));
+                    peer.epoch++;
+                }
+            }
+            changed.signalAll();
+        } catch (IOException e) {
+            Log.warn("Raft replicate: %s", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Send the applied map to a peer that needs compacted entries.
+     */
+    private void sendSnapshot(Peer peer, int term) {
+        int index;
+        int indexTerm;
+        Hashtable<String, Vector> files;
+        synchronized (applyLock) {
+            index = lastApplied;
+            indexTerm = log.term(index);
+            files = store.getAll();
+        }
+        Vector params = new Vector();
+        params.add(term);
+        params.add(self);
+        params.add(index);
+        params.add(indexTerm);
+        params.add(files);
+        Hashtable result = null;
+        try {
+            result = (Hashtable) connection(peer.address).execute("surfstore.installsnapshot", params);
+        } catch (Exception e) {
+            // Retried after the next heartbeat interval
+        }
+        lock.lock();
+        try {
+            peer.inFlight--;
+            peer.sendingSnapshot = false;
+            if (result == null) {
+                peer.retryAt = System.currentTimeMillis() + heartbeatMillis;
+            }
+            if (result != null && (int) result.get("term") > log.currentTerm()) {
+                stepDown((int) result.get("term"));
+            } else if (result != null && (boolean) result.get("success") && term == log.currentTerm()) {
+                peer.matchIndex = Math.max(peer.matchIndex, index);
+                peer.nextIndex = index + 1;
+                peer.epoch++;
+                advanceCommitIndex();
+            }
+            changed.signalAll();
+        } catch (IOException e) {
+            Log.warn("Raft snapshot: %s", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Commit the latest entry of the current term that a majority has made durable. Called with lock held.
+     */
+    private void advanceCommitIndex() {
+        if (role != Role.LEADER) return;
+        int majority = (peers.size() + 1) / 2 + 1;
+        for (int index = log.lastIndex(); index > commitIndex; index--) {
+            // Entries of earlier terms are only committed along with one of the current term
+            if (log.term(index) != log.currentTerm()) break;
+            int count = log.durableIndex() >= index ? 1 : 0;
+            for (Peer peer : peers) {
+                if (peer.matchIndex >= index) count++;
+            }
+            if (count >= majority) {
+                commitIndex = index;
+                changed.signalAll();
+                break;
+            }
+        }
+    }
+
+    // Applying committed entries
+
+    /**
+     * Applier thread: apply committed entries to the MetadataStore in order and wake their callers.
+     */
+    private void applyLoop() {
+        while (true) {
+            int target;
+            lock.lock();
+            try {
+                while (lastApplied >= commitIndex) {
+                    changed.await();
+                }
+                target = commitIndex;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                for (int index = lastApplied + 1; index <= target; index++) {
+                    RaftLog.Entry entry;
+                    boolean accepted = false;
+                    synchronized (applyLock) {
+                        if (index != lastApplied + 1) break; // A snapshot was installed meanwhile
+                        entry = log.get(index);
+                        if (!entry.isNoop()) {
+                            accepted = store.update(entry.filename, entry.version, entry.hashlist.toHex());
+                        }
+                        lastApplied = index;
+                    }
+                    lock.lock();
+                    try {
+                        Waiter waiter = waiters.remove(index);
+                        if (waiter != null) {
+                            if (waiter.term == entry.term) {
+                                waiter.applied.complete(accepted);
+                            } else {
+                                waiter.applied.completeExceptionally(new IllegalStateException("Replaced by another leader"));
+                            }
+                        }
+                        changed.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                if (lastApplied - log.snapshotIndex() >= compactEvery) {
+                    store.flush();
+                    log.compact(lastApplied);
+                    Log.info("Raft: compacted log up to index %d", log.snapshotIndex());
+                }
+            } catch (IOException e) {
+                Log.error("Raft apply failed: %s", e);
+                return;
+            }
+        }
+    }
+
+    // Helper Methods
+
+    private Hashtable<String, Object> reply(boolean success, int conflictIndex) {
+        Hashtable<String, Object> result = new Hashtable<String, Object>();
+        result.put("term", log.currentTerm());
+        result.put("success", success);
+        result.put("conflictIndex", conflictIndex);
+        return result;
+    }
+
+    /**
+     * Get the calling thread's connection to another node, creating it on first use.
+     */
+    private RpcClient connection(String address) throws IOException {
+        Map<String, RpcClient> clients = connections.get();
+        RpcClient client = clients.get(address);
+        if (client == null) {
+            client = RpcClient.connect(address);
+            clients.put(address, client);
+        }
+        return client;
+    }
+
+    private static void startThread(String name, Runnable body) {
+        Thread thread = new Thread(body, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
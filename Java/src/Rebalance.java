@@ -0,0 +1,65 @@
+import java.io.File;
+import java.util.*;
+
+/**
+ * Copies blocks to the block servers a new config assigns them to.
+ * Run it after adding block servers to the config: every server of the old config is asked
+ * for the blocks the new hash ring places elsewhere, about 1/N of them per added server, and
+ * those are copied over with getblocks and putblocks. Blocks are left on the old server too.
+ *
+ * Usage: Rebalance new-config.txt [old-config.txt]
+ * Without an old config the servers of the new config are the ones asked.
+ */
+public class Rebalance {
+
+    // Hashes fetched per getblocks call, which may return fewer if they exceed the server's limit
+    private static final int HASHES_PER_BATCH = 1024;
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: Rebalance new-config.txt [old-config.txt]");
+            System.exit(1);
+        }
+        try {
+            ClusterConfig newConfig = ClusterConfig.read(new File(args[0]));
+            ClusterConfig oldConfig = args.length > 1 ? ClusterConfig.read(new File(args[1])) : newConfig;
+            ClusterClient cluster = new ClusterClient(newConfig);
+            long movedBlocks = 0;
+            long movedBytes = 0;
+            for (String source : oldConfig.blockAddresses()) {
+                RpcClient sourceClient = cluster.rpcClient(source);
+                Vector params = new Vector();
+                params.add(new Vector<String>(newConfig.blockAddresses()));
+                params.add(newConfig.virtualNodes());
+                params.add(source);
+                Vector<String> moved = (Vector<String>) sourceClient.execute("surfstore.movedblocks", params);
+                System.out.println(source + ": " + moved.size() + " blocks to move");
+                int next = 0;
+                while (next < moved.size()) {
+                    params = new Vector();
+                    params.add(new Vector<String>(moved.subList(next, Math.min(next + HASHES_PER_BATCH, moved.size()))));
+                    Vector<byte[]> blocks = (Vector<byte[]>) sourceClient.execute("surfstore.getblocks", params);
+                    if (blocks.isEmpty()) {
+                        throw new IllegalStateException("Server returned an empty batch");
+                    }
+                    Map<String, Vector<byte[]>> nodeBatches = new LinkedHashMap<String, Vector<byte[]>>();
+                    for (int i = 0; i < blocks.size(); i++) {
+                        nodeBatches.computeIfAbsent(cluster.ring().node(moved.get(next + i)), node -> new Vector<byte[]>()).add(blocks.get(i));
+                        movedBytes += blocks.get(i).length;
+                    }
+                    for (Map.Entry<String, Vector<byte[]>> nodeBatch : nodeBatches.entrySet()) {
+                        params = new Vector();
+                        params.add(nodeBatch.getValue());
+                        cluster.rpcClient(nodeBatch.getKey()).execute("surfstore.putblocks", params);
+                    }
+                    next += blocks.size();
+                }
+                movedBlocks += moved.size();
+            }
+            System.out.println("Copied " + movedBlocks + " blocks (" + movedBytes + " bytes)");
+        } catch (Exception e) {
+            System.err.println("Rebalance: " + e);
+            System.exit(1);
+        }
+    }
+}
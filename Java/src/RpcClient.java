@@ -0,0 +1,32 @@
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Vector;
+import org.apache.xmlrpc.XmlRpcException;
+
+/**
+ * Connection to the SurfStore server over one of the RPC transports.
+ */
+public interface RpcClient {
+
+    /**
+     * Call a method on the server.
+     * @param method Name of the method, prefixed with the handler name, e.g. "surfstore.getblock"
+     * @param params Parameters of the method
+     * @return Result of the method
+     * @throws XmlRpcException If the server returned a fault
+     */
+    Object execute(String method, Vector params) throws XmlRpcException, IOException;
+
+    /**
+     * Connect to a server.
+     * @param address Address of the server, host:port for XML-RPC or surf://host:port for the binary transport
+     * @return RPC client connected to the server
+     */
+    static RpcClient connect(String address) throws MalformedURLException {
+        if (address.startsWith("surf://")) {
+            String[] ipPort = address.substring("surf://".length()).split(":"); // Get server IP and port
+            return new BinaryConnection(ipPort[0], Integer.parseInt(ipPort[1]));
+        }
+        return new XmlRpcConnection("http://" + address + "/RPC2");
+    }
+}
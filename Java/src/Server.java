@@ -1,22 +1,35 @@
 import org.apache.xmlrpc.*;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.math.BigInteger;
+import java.util.concurrent.Callable;
 public class Server {
 
-    // Map<hashvalue, block>
-    private Map<String, byte[]> blockStore; // Store mappings of hash value to blocks
+    private final BlockStore blockStore; // Store mappings of hash value to blocks, on disk, null if this server holds no blocks
 
-    // Map<filename, Vector<version, hashlist>>
-    private Map<String, Vector> metaStore; // Store mappings of filenames to vector (version no, hashlist)
+    private final MetadataStore metaStore; // Store mappings of filenames to vector (version no, hashlist), on disk, null if this server holds no metadata
+
+    private final RaftNode raft; // Replicates the FileInfoMap to the other metadata servers, null if this is the only one
+
+    private volatile boolean crashed; // Set by crash() on a server without Raft
+
+    private final BlockCollector collector; // Removes blocks no file refers to, null if garbage collection is off
+
+    // Largest total block size moved by a single putblocks or getblocks call
+    public static final int MAX_BATCH_BYTES = 16 * 1024 * 1024;
 
     /**
      * Constructor.
+     * @param blockStore Store of the blocks, or null for a metadata-only server
+     * @param metaStore Store of the FileInfoMap, or null for a block-only server
+     * @param raft Raft node replicating metaStore, or null if this is the only metadata server
+     * @param collector Garbage collector of blockStore, or null if garbage collection is off
      */
-    public Server() {
-        blockStore = new Hashtable<String, byte[]>();
-        metaStore = new Hashtable<String, Vector>();
+    public Server(BlockStore blockStore, MetadataStore metaStore, RaftNode raft, BlockCollector collector) {
+        this.blockStore = blockStore;
+        this.metaStore = metaStore;
+        this.raft = raft;
+        this.collector = collector;
     }
 
 	/*
@@ -24,7 +37,7 @@ public class Server {
      * @return True ping
      */
 	public boolean ping() {
-		System.out.println("Ping()");
+		Log.debug("Ping()");
 		return true;
 	}
 
@@ -33,9 +46,10 @@ public class Server {
      * @param hashvalue String format of the SHA-256 hash
      * @return Byte array chunk block
      */
-	public byte[] getblock(String hashvalue) {
-		System.out.println("GetBlock(" + hashvalue + ")");
-        byte[] blockData = blockStore.get(hashvalue);
+	public byte[] getblock(String hashvalue) throws IOException {
+		Log.debug("GetBlock(%s)", hashvalue);
+        byte[] blockData = requireBlockStore().get(BlockHash.fromHex(hashvalue));
+        if (blockData != null) Metrics.count("bytesOut", blockData.length);
 		return blockData;
 	}
 
@@ -44,10 +58,212 @@ public class Server {
      * @param blockData Byte array chunk
      * @return True
      */
-	public boolean putblock(byte[] blockData) {
-        String hashvalue = hash(blockData);
-        blockStore.put(hashvalue, blockData);
-		System.out.println("PutBlock(" + hashvalue + ")");
+	public boolean putblock(byte[] blockData) throws IOException {
+        BlockHash hashvalue = BlockHash.of(blockData);
+        touch(Collections.singletonList(hashvalue));
+        requireBlockStore().put(hashvalue, blockData);
+        requireBlockStore().sync();
+        Metrics.count("bytesIn", blockData.length);
+		Log.debug("PutBlock(%s)", hashvalue);
+		return true;
+	}
+
+	/**
+     * Store the provided blocks in a single call.
+     * @param blocks List of byte array chunks, at most MAX_BATCH_BYTES in total
+     * @return True
+     */
+	public boolean putblocks(Vector blocks) throws IOException {
+        long batchSize = 0;
+        for (byte[] blockData : (Vector<byte[]>) blocks) {
+            batchSize += blockData.length;
+        }
+        if (batchSize > MAX_BATCH_BYTES) {
+            throw new IllegalArgumentException("Batch of " + batchSize + " bytes exceeds limit of " + MAX_BATCH_BYTES);
+        }
+        List<BlockHash> hashes = new ArrayList<BlockHash>(blocks.size());
+        for (byte[] blockData : (Vector<byte[]>) blocks) {
+            hashes.add(BlockHash.of(blockData));
+        }
+        touch(hashes);
+        for (int i = 0; i < hashes.size(); i++) {
+            requireBlockStore().put(hashes.get(i), (byte[]) blocks.get(i));
+        }
+        requireBlockStore().sync();
+        Metrics.count("bytesIn", batchSize);
+		Log.debug("PutBlocks(): %d", blocks.size());
+		return true;
+	}
+
+	/**
+     * Given a list of hash values, return the associated blocks in order.
+     * Stops early once the next block would exceed MAX_BATCH_BYTES, so callers
+     * should request the remaining hash values again. At least one block is always returned.
+     * @param hashlist List of hash values
+     * @return List of byte array chunks for a prefix of the hashlist
+     */
+	public Vector getblocks(Vector hashlist) throws IOException {
+        Vector<byte[]> blocks = new Vector<byte[]>();
+        long batchSize = 0;
+        for (String hashvalue : (Vector<String>) hashlist) {
+            byte[] blockData = requireBlockStore().get(BlockHash.fromHex(hashvalue));
+            if (blockData == null) {
+                throw new IllegalArgumentException("Block not found: " + hashvalue);
+            }
+            if (!blocks.isEmpty() && batchSize + blockData.length > MAX_BATCH_BYTES) break;
+            blocks.add(blockData);
+            batchSize += blockData.length;
+        }
+        Metrics.count("bytesOut", batchSize);
+		Log.debug("GetBlocks(): %d/%d", blocks.size(), hashlist.size());
+		return blocks;
+	}
+
+	/**
+     * Returns the block codecs this server accepts, see BlockCodec.
+     * @return List of codec names
+     */
+	public Vector codecs() {
+		Log.debug("Codecs()");
+		return BlockCodec.names();
+	}
+
+	/**
+     * Store the provided encoded blocks in a single call.
+     * Each block is decoded once to check it and compute its hash, then stored as sent.
+     * @param encodedBlocks List of encoded chunks, at most MAX_BATCH_BYTES in total
+     * @return True
+     */
+	public boolean putblockscompressed(Vector encodedBlocks) throws IOException {
+        long batchSize = 0;
+        for (byte[] encoded : (Vector<byte[]>) encodedBlocks) {
+            batchSize += encoded.length;
+        }
+        if (batchSize > MAX_BATCH_BYTES) {
+            throw new IllegalArgumentException("Batch of " + batchSize + " bytes exceeds limit of " + MAX_BATCH_BYTES);
+        }
+        long rawSize = 0;
+        List<BlockHash> hashes = new ArrayList<BlockHash>(encodedBlocks.size());
+        for (byte[] encoded : (Vector<byte[]>) encodedBlocks) {
+            byte[] blockData = BlockCodec.decode(encoded);
+            rawSize += blockData.length;
+            hashes.add(BlockHash.of(blockData));
+        }
+        touch(hashes);
+        for (int i = 0; i < hashes.size(); i++) {
+            requireBlockStore().putEncoded(hashes.get(i), (byte[]) encodedBlocks.get(i));
+        }
+        requireBlockStore().sync();
+        Metrics.count("bytesIn", batchSize);
+		Log.debug("PutBlocksCompressed(): %d, %d -> %d bytes", encodedBlocks.size(), rawSize, batchSize);
+		return true;
+	}
+
+	/**
+     * Given a list of hash values, return the associated blocks in order, encoded.
+     * Blocks are sent as stored when their codec is accepted, and uncompressed otherwise.
+     * Stops early like getblocks, counting encoded bytes.
+     * @param hashlist List of hash values
+     * @param codecs List of codec names the caller can decode
+     * @return List of encoded chunks for a prefix of the hashlist
+     */
+	public Vector getblockscompressed(Vector hashlist, Vector codecs) throws IOException {
+        Vector<byte[]> blocks = new Vector<byte[]>();
+        long batchSize = 0;
+        for (String hashvalue : (Vector<String>) hashlist) {
+            byte[] encoded = requireBlockStore().getEncoded(BlockHash.fromHex(hashvalue));
+            if (encoded == null) {
+                throw new IllegalArgumentException("Block not found: " + hashvalue);
+            }
+            if (!codecs.contains(BlockCodec.name(BlockCodec.codec(encoded)))) {
+                encoded = BlockCodec.encode(BlockCodec.decode(encoded), BlockCodec.NONE);
+            }
+            if (!blocks.isEmpty() && batchSize + encoded.length > MAX_BATCH_BYTES) break;
+            blocks.add(encoded);
+            batchSize += encoded.length;
+        }
+        Metrics.count("bytesOut", batchSize);
+		Log.debug("GetBlocksCompressed(): %d/%d", blocks.size(), hashlist.size());
+		return blocks;
+	}
+
+	/**
+     * Given a list of hash values, return the sizes of the associated blocks, so a large
+     * block can be downloaded in ranges and written in place.
+     * @param hashlist List of hash values
+     * @return List of raw block sizes in order, -1 for blocks not on this server
+     */
+	public Vector blocksizes(Vector hashlist) throws IOException {
+        Vector<Integer> sizes = new Vector<Integer>(hashlist.size());
+        for (String hashvalue : (Vector<String>) hashlist) {
+            sizes.add(requireBlockStore().rawLength(BlockHash.fromHex(hashvalue)));
+        }
+		Log.debug("BlockSizes(): %d", hashlist.size());
+		return sizes;
+	}
+
+	/**
+     * Given a hash value, return a range of the associated block.
+     * @param hashvalue String format of the SHA-256 hash
+     * @param offset Offset of the range in the block
+     * @param length Length of the range, at most MAX_BATCH_BYTES
+     * @return Byte array of the range, shorter at the end of the block
+     */
+	public byte[] getblockrange(String hashvalue, int offset, int length) throws IOException {
+        if (length < 0 || length > MAX_BATCH_BYTES) {
+            throw new IllegalArgumentException("Range of " + length + " bytes exceeds limit of " + MAX_BATCH_BYTES);
+        }
+        byte[] range = requireBlockStore().getRange(BlockHash.fromHex(hashvalue), offset, length);
+        if (range == null) {
+            throw new IllegalArgumentException("Block not found: " + hashvalue);
+        }
+        Metrics.count("bytesOut", range.length);
+		Log.debug("GetBlockRange(%s, %d, %d)", hashvalue, offset, range.length);
+		return range;
+	}
+
+	/**
+     * Returns how much of a block uploaded in parts was received, so an interrupted upload can resume.
+     * @param hashvalue String format of the SHA-256 hash of the whole block
+     * @return Bytes received so far, or -1 if the block is already stored
+     */
+	public int blockpartlength(String hashvalue) throws IOException {
+        BlockHash hash = BlockHash.fromHex(hashvalue);
+        touch(Collections.singletonList(hash));
+        int length = requireBlockStore().contains(hash) ? -1 : (int) requireBlockStore().partLength(hash);
+		Log.debug("BlockPartLength(%s): %d", hashvalue, length);
+		return length;
+	}
+
+	/**
+     * Store a part of a block too large to send in one call. Parts are sent in order, each
+     * starting at most at the bytes received so far. The block is stored by putblockcommit.
+     * @param hashvalue String format of the SHA-256 hash of the whole block
+     * @param offset Offset of the part in the block
+     * @param data Byte array of the part, at most MAX_BATCH_BYTES
+     * @return Bytes of the block received so far
+     */
+	public int putblockpart(String hashvalue, int offset, byte[] data) throws IOException {
+        if (data.length > MAX_BATCH_BYTES) {
+            throw new IllegalArgumentException("Part of " + data.length + " bytes exceeds limit of " + MAX_BATCH_BYTES);
+        }
+        long received = requireBlockStore().writePart(BlockHash.fromHex(hashvalue), offset, data);
+        Metrics.count("bytesIn", data.length);
+		Log.debug("PutBlockPart(%s, %d, %d)", hashvalue, offset, data.length);
+		return (int) received;
+	}
+
+	/**
+     * Store a block uploaded with putblockpart, once the bytes received hash to its hash value.
+     * On a mismatch the parts are discarded and the upload must start over.
+     * @param hashvalue String format of the SHA-256 hash of the whole block
+     * @return True
+     */
+	public boolean putblockcommit(String hashvalue) throws IOException {
+        BlockHash hash = BlockHash.fromHex(hashvalue);
+        touch(Collections.singletonList(hash));
+        requireBlockStore().commitPart(hash);
+		Log.debug("PutBlockCommit(%s)", hashvalue);
 		return true;
 	}
 
@@ -57,27 +273,64 @@ public class Server {
      * @return List of hash values that are available in this server
      */
 	public Vector hasblocks(Vector hashlist) {
-        Vector availableHash = new Vector();
+        List<BlockHash> hashes = new ArrayList<BlockHash>(hashlist.size());
+        List<String> requested = new ArrayList<String>(hashlist.size());
         for (String hashvalue : (Vector<String>) hashlist) {
-            System.out.println(hashvalue + " requested");
-            if (blockStore.containsKey(hashvalue)) {
-                availableHash.add(hashvalue);
+            BlockHash hash = parseHash(hashvalue);
+            if (hash != null) {
+                hashes.add(hash);
+                requested.add(hashvalue);
             }
         }
-		System.out.println("HasBlocks(): " + availableHash.size());
+        touch(hashes);
+        boolean[] stored = requireBlockStore().containsAll(hashes);
+        Vector availableHash = new Vector();
+        for (int i = 0; i < stored.length; i++) {
+            if (stored[i]) availableHash.add(requested.get(i));
+        }
+		Log.debug("HasBlocks(): %d/%d", availableHash.size(), hashlist.size());
 		return availableHash;
 	}
 
+	/**
+     * List the blocks on this server that a hash ring of block servers assigns to another server,
+     * so they can be copied there after servers are added.
+     * @param nodes Addresses of the block servers, as listed in the config
+     * @param virtualNodes Number of positions of each block server on the ring
+     * @param self Address of this server on the ring
+     * @return List of hash values of the blocks that belong elsewhere
+     */
+	public Vector movedblocks(Vector nodes, int virtualNodes, String self) {
+        HashRing ring = new HashRing((Vector<String>) nodes, virtualNodes);
+        Vector<String> moved = new Vector<String>();
+        requireBlockStore().forEachHash(hash -> {
+            if (!ring.node(hash).equals(self)) {
+                moved.add(hash.toHex());
+            }
+        });
+		Log.debug("MovedBlocks(%s): %d", self, moved.size());
+		return moved;
+	}
+
 	/**
      * Returns the server's FileInfoMap.
      * @return Mapping of filename to version number and hashlist
      */
-	public Hashtable getfileinfomap() {
-		Hashtable<String, Vector> result = new Hashtable<String, Vector>();
-        for (Map.Entry<String, Vector> entry : metaStore.entrySet()) {
-            result.put(entry.getKey(), entry.getValue());
-        }
-		System.out.println("GetFileInfoMap()");
+	public Hashtable getfileinfomap() throws IOException {
+		Hashtable<String, Vector> result = requireReadableMetaStore().getAll();
+		Log.debug("GetFileInfoMap()");
+		return result;
+	}
+
+	/**
+     * Returns the entries of the server's FileInfoMap changed after the given cursor.
+     * @param cursor Cursor returned by an earlier call, or "" for the full map
+     * @return Struct of "files" (mapping of filename to version number and hashlist),
+     *         "cursor" (to pass on the next call) and "full" (true if files is the full map)
+     */
+	public Hashtable getfileinfomapsince(String cursor) throws IOException {
+		Hashtable<String, Object> result = requireReadableMetaStore().changesSince(cursor);
+		Log.debug("GetFileInfoMapSince(%s): %d", cursor, ((Hashtable) result.get("files")).size());
 		return result;
 	}
 
@@ -88,30 +341,15 @@ public class Server {
      * @param hashlist List of hash values
      * @return True if updated successfully
      */
-	public boolean updatefile(String filename, int version, Vector hashlist) {
-		System.out.println("UpdateFile(" + filename + ")");
-        Vector fileinfo = metaStore.get(filename);
-
-        if (fileinfo == null) {
-            // Create new file if file does not exist
-            fileinfo = new Vector();
-            fileinfo.add(new Integer(version));
-            fileinfo.add(hashlist);
-            metaStore.put(filename, fileinfo);
-            return true;
-        }
-
-        // If we retrieved the fileinfo from fileinfomap
-        // Check version number
-        if (version < (int) fileinfo.get(0) + 1) {
-            System.out.println("File version is incorrect");
+	public boolean updatefile(String filename, int version, Vector hashlist) throws IOException {
+		Log.debug("UpdateFile(%s)", filename);
+        // Version must be newer than the stored one, the update is logged before returning,
+        // and with Raft stored by a majority of the metadata servers
+        MetadataStore store = requireReadableMetaStore();
+        if (!(raft != null ? raft.update(filename, version, hashlist) : store.update(filename, version, hashlist))) {
+            Log.debug("File version is incorrect");
             return false;
         }
-        // Update fileinfomap
-        fileinfo = new Vector();
-        fileinfo.add(new Integer(version));
-        fileinfo.add(hashlist);
-        metaStore.put(filename, fileinfo);
 		return true;
 	}
 
@@ -120,8 +358,8 @@ public class Server {
 	// Queries whether this metadata store is a leader
 	// Note that this call should work even when the server is "crashed"
 	public boolean isLeader() {
-		System.out.println("IsLeader()");
-		return true;
+		Log.debug("IsLeader()");
+		return raft != null ? raft.isLeader() : metaStore != null && !crashed;
 	}
 
 	// "Crashes" this metadata store
@@ -129,54 +367,353 @@ public class Server {
 	// with an error (unless indicated otherwise), and shouldn't send
 	// RPCs to other servers
 	public boolean crash() {
-		System.out.println("Crash()");
+		Log.info("Crash()");
+		if (raft != null) {
+			raft.crash();
+		}
+		crashed = true;
 		return true;
 	}
 
 	// "Restores" this metadata store, allowing it to start responding
 	// to and sending RPCs to other nodes
 	public boolean restore() {
-		System.out.println("Restore()");
+		Log.info("Restore()");
+		if (raft != null) {
+			raft.restore();
+		}
+		crashed = false;
 		return true;
 	}
 
 	// "IsCrashed" returns the status of this metadata node (crashed or not)
 	// This method should always work, even when the node is crashed
 	public boolean isCrashed() {
-		System.out.println("IsCrashed()");
-		return true;
+		Log.debug("IsCrashed()");
+		return crashed;
+	}
+
+	// Raft RPCs between metadata servers, see RaftNode
+
+	/**
+     * Append the leader's log entries, or take its heartbeat if there are none.
+     * @return Struct of "term", "success" and "conflictIndex"
+     */
+	public Hashtable appendentries(int term, String leader, int prevLogIndex, int prevLogTerm, byte[] entries, int leaderCommit) throws IOException {
+		return requireRaft().appendEntries(term, leader, prevLogIndex, prevLogTerm, entries, leaderCommit);
+	}
+
+	/**
+     * Vote for a candidate leader.
+     * @return Struct of "term" and "granted"
+     */
+	public Hashtable requestvote(int term, String candidate, int lastLogIndex, int lastLogTerm) throws IOException {
+		Log.debug("RequestVote(%s, %d)", candidate, term);
+		return requireRaft().requestVote(term, candidate, lastLogIndex, lastLogTerm);
+	}
+
+	/**
+     * Replace the log with the leader's FileInfoMap, sent when it no longer has the entries needed.
+     * @return Struct of "term" and "success"
+     */
+	public Hashtable installsnapshot(int term, String leader, int lastIncludedIndex, int lastIncludedTerm, Hashtable files) throws IOException {
+		Log.info("InstallSnapshot(%s, %d)", leader, lastIncludedIndex);
+		return requireRaft().installSnapshot(term, leader, lastIncludedIndex, lastIncludedTerm, files);
+	}
+
+	/**
+     * Returns the Raft state of this metadata server.
+     * @return Mapping of statistic name to value
+     */
+	public Hashtable raftstats() {
+		return requireRaft().stats();
+	}
+
+	/**
+     * Returns the hit rate, evictions and bytes served of the block cache.
+     * @return Mapping of statistic name to value, empty if the cache is off
+     */
+	public Hashtable blockcachestats() {
+		return requireBlockStore().cacheStats();
+	}
+
+	/**
+     * Remove the blocks no file refers to any more and compact the segments they leave
+     * mostly empty now, instead of waiting for the next scheduled collection.
+     * @return Mapping of statistic name to value: blocks and bytes removed, bytes reclaimed, pause times
+     */
+	public Hashtable collectgarbage() throws Exception {
+        if (collector == null) throw new IllegalStateException("Block garbage collection is off");
+		Log.debug("CollectGarbage()");
+		return collector.collect();
+	}
+
+	/**
+     * Returns the server metrics: per-RPC call counts and latency percentiles in microseconds,
+     * block bytes in and out, and the sizes of the stores, the block cache and the Raft state.
+     * @return Mapping of metric name to value
+     */
+	public Hashtable stats() {
+		return new Hashtable(Metrics.snapshot());
 	}
 
     // Helper Methods
-    public String hash(byte[] blockData) {
-        String hashvalue = "";
+    // Block store of this server, failing the call on a metadata-only server
+    private BlockStore requireBlockStore() {
+        if (blockStore == null) throw new IllegalStateException("This server does not store blocks");
+        return blockStore;
+    }
+
+    // Metadata store of this server, failing the call on a block-only server
+    private MetadataStore requireMetaStore() {
+        if (metaStore == null) throw new IllegalStateException("This server does not store metadata");
+        return metaStore;
+    }
+
+    // Metadata store of this server, failing the call if it is crashed or, with Raft, not the leader
+    private MetadataStore requireReadableMetaStore() throws IOException {
+        MetadataStore store = requireMetaStore();
+        if (raft != null) {
+            raft.checkReadable();
+        } else if (crashed) {
+            throw new IllegalStateException("Server is crashed");
+        }
+        return store;
+    }
+
+    // Raft node of this server, failing the call if the metadata is not replicated
+    private RaftNode requireRaft() {
+        if (raft == null) throw new IllegalStateException("This server does not replicate metadata");
+        return raft;
+    }
+
+    // Keep blocks a client is told are stored, or sends again, from being collected before its updatefile
+    private void touch(List<BlockHash> hashes) {
+        if (collector != null) collector.touch(hashes);
+    }
+
+    // FileInfoMap of the first metadata server that serves it, the leader if they use Raft
+    private static Map<String, Vector> fetchFileInfoMap(List<RpcClient> metadataServers) throws IOException {
+        IOException failure = null;
+        for (RpcClient metadataServer : metadataServers) {
+            try {
+                return (Map<String, Vector>) metadataServer.execute("surfstore.getfileinfomap", new Vector());
+            } catch (XmlRpcException | IOException e) {
+                failure = new IOException("Get FileInfoMap: " + e.getMessage());
+            }
+        }
+        throw failure;
+    }
+
+    // Parse a hash value sent by a client, null if it is not one
+    private static BlockHash parseHash(String hashvalue) {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] hash = md.digest(blockData);
-            BigInteger number = new BigInteger(1, hash);
-            StringBuilder hexString = new StringBuilder(number.toString(16));
-            while (hexString.length() < 32) {
-                hexString.insert(0, '0');
-            }
-            hashvalue = hexString.toString();
-        } catch (NoSuchAlgorithmException e) {
-            System.out.println("Hash block data: " + e);
-        }
-        return hashvalue;
+            return BlockHash.fromHex(hashvalue);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public String hash(byte[] blockData) {
+        return BlockHash.of(blockData).toHex();
     }
 
 	public static void main (String [] args) {
 
 		try {
+            int port = 8080;
+            int binaryPort = 0;
+            String dataDir = "data";
+            long segmentBytes = 256L * 1024 * 1024;
+            long cacheBytes = 64L * 1024 * 1024;
+            boolean groupCommit = true;
+            long syncInterval = 10;
+            int snapshotEvery = 100000;
+            String role = "all";
+            String configFile = null;
+            int nodeId = -1;
+            long electionTimeout = 300;
+            String statsFile = null;
+            long statsInterval = 10000;
+            long gcInterval = 600000;
+            long gcGrace = 3600000;
+            double gcGarbageRatio = 0.5;
+            for (String option : args) {
+                String[] nameValue = option.split("=", 2);
+                String value = nameValue.length > 1 ? nameValue[1] : "";
+                switch (nameValue[0]) {
+                    case "--port":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "--binary-port":
+                        binaryPort = Integer.parseInt(value);
+                        break;
+                    case "--data-dir":
+                        dataDir = value;
+                        break;
+                    case "--segment-bytes":
+                        segmentBytes = Long.parseLong(value);
+                        break;
+                    case "--block-cache-bytes":
+                        cacheBytes = Long.parseLong(value);
+                        break;
+                    case "--meta-sync":
+                        groupCommit = !value.equals("batched");
+                        break;
+                    case "--meta-sync-interval":
+                        syncInterval = Long.parseLong(value);
+                        break;
+                    case "--snapshot-every":
+                        snapshotEvery = Integer.parseInt(value);
+                        break;
+                    case "--config":
+                        configFile = value;
+                        break;
+                    case "--id":
+                        nodeId = Integer.parseInt(value);
+                        break;
+                    case "--election-timeout":
+                        electionTimeout = Long.parseLong(value);
+                        break;
+                    case "--log-level":
+                        Log.setLevel(value);
+                        break;
+                    case "--stats-file":
+                        statsFile = value;
+                        break;
+                    case "--stats-interval":
+                        statsInterval = Long.parseLong(value);
+                        break;
+                    case "--gc-interval":
+                        gcInterval = Long.parseLong(value);
+                        break;
+                    case "--gc-grace":
+                        gcGrace = Long.parseLong(value);
+                        break;
+                    case "--gc-garbage-ratio":
+                        gcGarbageRatio = Double.parseDouble(value);
+                        break;
+                    case "--role":
+                        if (!value.equals("all") && !value.equals("block") && !value.equals("metadata")) {
+                            System.err.println("Unknown role: " + value);
+                            System.exit(1);
+                        }
+                        role = value;
+                        break;
+                    default:
+                        System.err.println("Usage: Server [--port=N] [--binary-port=N] [--data-dir=DIR] [--segment-bytes=N]"
+                                + " [--block-cache-bytes=N] [--meta-sync=group|batched] [--meta-sync-interval=MS] [--snapshot-every=N] [--role=all|block|metadata]"
+                                + " [--config=FILE --id=N] [--election-timeout=MS]"
+                                + " [--log-level=off|error|warn|info|debug] [--stats-file=FILE] [--stats-interval=MS]"
+                                + " [--gc-interval=MS] [--gc-grace=MS] [--gc-garbage-ratio=F]");
+                        System.exit(1);
+                }
+            }
+
+            // Metadata server N of a config file listing several is replicated with Raft, and listens
+            // on the port the config gives it
+            List<String> raftNodes = null;
+            String self = null;
+            if (configFile != null && !role.equals("block")) {
+                List<String> metadataAddresses = ClusterConfig.read(new File(configFile)).metadataAddresses();
+                if (nodeId < 0 || nodeId >= metadataAddresses.size()) {
+                    System.err.println("--id must name one of the " + metadataAddresses.size() + " metadata servers in " + configFile);
+                    System.exit(1);
+                }
+                self = metadataAddresses.get(nodeId);
+                if (self.startsWith("surf://")) {
+                    binaryPort = Integer.parseInt(self.substring(self.lastIndexOf(':') + 1));
+                } else {
+                    port = Integer.parseInt(self.substring(self.lastIndexOf(':') + 1));
+                }
+                if (metadataAddresses.size() > 1) {
+                    raftNodes = metadataAddresses;
+                }
+            }
+
+            // A block server only opens the block store and a metadata server only the metadata store
+            BlockStore blockStore = role.equals("metadata") ? null : new BlockStore(new File(dataDir, "blocks"), segmentBytes, cacheBytes);
+            // With Raft the Raft log makes updates durable before they are applied, so the
+            // MetadataStore's own log only needs batched fsyncs
+            MetadataStore metaStore = role.equals("block") ? null
+                    : new MetadataStore(new File(dataDir, "meta"), groupCommit && raftNodes == null, syncInterval, snapshotEvery);
+            RaftNode raft = null;
+            if (raftNodes != null) {
+                RaftLog raftLog = new RaftLog(new File(dataDir, "raft"));
+                raft = new RaftNode(self, raftNodes, raftLog, metaStore, electionTimeout, snapshotEvery);
+            }
+            if (blockStore != null) {
+                Metrics.gauge("blockStore", () -> {
+                    Map<String, Object> values = new HashMap<String, Object>();
+                    values.put("blocks", blockStore.size());
+                    values.put("bytes", (double) blockStore.bytes());
+                    return values;
+                });
+                Metrics.gauge("blockCache", blockStore::cacheStats);
+                Metrics.gauge("blockSync", blockStore::syncStats);
+            }
+            // Blocks are collected against the local FileInfoMap, or on a block server against the
+            // FileInfoMap of the metadata servers in the config
+            BlockCollector collector = null;
+            if (blockStore != null) {
+                Callable<Map<String, Vector>> fileInfoMap = null;
+                if (metaStore != null) {
+                    fileInfoMap = metaStore::getAll;
+                } else if (configFile != null) {
+                    List<RpcClient> metadataServers = new ArrayList<RpcClient>();
+                    for (String address : ClusterConfig.read(new File(configFile)).metadataAddresses()) {
+                        metadataServers.add(RpcClient.connect(address));
+                    }
+                    fileInfoMap = () -> fetchFileInfoMap(metadataServers);
+                } else if (gcInterval > 0) {
+                    Log.warn("Block garbage collection is off: a block server needs --config to find the metadata servers");
+                }
+                if (fileInfoMap != null) {
+                    collector = new BlockCollector(blockStore, fileInfoMap, gcGrace, gcGarbageRatio);
+                    Metrics.gauge("blockGc", collector::stats);
+                }
+            }
+            if (metaStore != null) {
+                Metrics.gauge("metaStore", metaStore::stats);
+            }
+            if (raft != null) {
+                Metrics.gauge("raft", raft::stats);
+            }
+            if (statsFile != null) {
+                Metrics.startDump(new File(statsFile), statsInterval);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    if (blockStore != null) blockStore.close();
+                    if (metaStore != null) metaStore.close();
+                } catch (IOException e) {
+                    Log.error("Close stores: %s", e);
+                }
+            }));
 
-			System.out.println("Attempting to start XML-RPC Server...");
+			Log.info("Attempting to start XML-RPC Server...");
 
-			WebServer server = new WebServer(8080);
-			server.addHandler("surfstore", new Server());
+			Server handler = new Server(blockStore, metaStore, raft, collector);
+			WebServer server = new WebServer(port);
+			server.addHandler("surfstore", new Metrics.TimedHandler(handler));
 			server.start();
 
-			System.out.println("Started successfully.");
-			System.out.println("Accepting requests. (Halt program to stop.)");
+            if (binaryPort != 0) {
+                Log.info("Starting binary transport on port %d...", binaryPort);
+                new BinaryServer(binaryPort, handler, blockStore).start();
+            }
+
+            if (raft != null) {
+                Log.info("Replicating metadata as %s of %s", self, raftNodes);
+                raft.start();
+            }
+
+            if (collector != null && gcInterval > 0) {
+                collector.start(gcInterval);
+            }
+
+			Log.info("Started successfully.");
+			Log.info("Accepting requests. (Halt program to stop.)");
 
 		} catch (Exception exception){
 			System.err.println("Server: " + exception);
@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.util.Vector;
+import org.apache.xmlrpc.XmlRpcException;
+
+/**
+ * The optional RPCs a client can use with the servers it talks to, and the codec it uploads blocks with.
+ * Every feature is assumed until a call finds its method missing on an older server, after
+ * which the client falls back to the RPCs the server does have for the rest of the run.
+ */
+public class ServerFeatures {
+
+    private volatile boolean batches = true; // putblocks/getblocks
+    private volatile boolean parts = true; // blocksizes and the block part RPCs
+    private volatile boolean compression = true; // putblockscompressed/getblockscompressed and codecs
+    private volatile boolean cursors = true; // getfileinfomapsince
+    private volatile int codec; // Codec blocks are uploaded with
+
+    /**
+     * Constructor.
+     * @param codec Codec to upload blocks with, if the block servers accept it
+     */
+    public ServerFeatures(int codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Ask the block servers which block codecs they accept, once before any blocks are moved.
+     * Compressed RPCs are not used if any server predates them, and uploads fall back
+     * to uncompressed blocks if a server does not accept the configured codec.
+     * @param cluster Servers of the cluster
+     */
+    public void negotiate(ClusterClient cluster) throws XmlRpcException, IOException {
+        try {
+            for (String node : cluster.ring().nodes()) {
+                Vector<String> serverCodecs = (Vector<String>) cluster.rpcClient(node).execute("surfstore.codecs", new Vector());
+                if (!serverCodecs.contains(BlockCodec.name(codec))) {
+                    System.out.println("Server does not support " + BlockCodec.name(codec) + " compression, uploading uncompressed blocks");
+                    codec = BlockCodec.NONE;
+                }
+            }
+        } catch (XmlRpcException e) {
+            if (!isMissingMethod(e)) throw e;
+            compression = false;
+        }
+    }
+
+    /**
+     * Check if an RPC failed because the server does not know the method (an older server).
+     * @param e Exception returned by the RPC
+     * @return True if the method does not exist on the server
+     */
+    public static boolean isMissingMethod(XmlRpcException e) {
+        return e.getMessage() != null && e.getMessage().contains("NoSuchMethodException");
+    }
+
+    /**
+     * Whether the servers take batched block RPCs.
+     */
+    public boolean batches() {
+        return batches;
+    }
+
+    /**
+     * Whether the block servers move blocks in parts and report block sizes.
+     */
+    public boolean parts() {
+        return parts;
+    }
+
+    /**
+     * Whether the block servers take compressed batches.
+     */
+    public boolean compression() {
+        return compression;
+    }
+
+    /**
+     * Whether the metadata server returns the changes since a cursor.
+     */
+    public boolean cursors() {
+        return cursors;
+    }
+
+    /**
+     * Codec blocks are uploaded with, BlockCodec.NONE for uncompressed blocks.
+     */
+    public int codec() {
+        return codec;
+    }
+
+    /**
+     * Stop using batched block RPCs, after a server turned out to lack them.
+     */
+    public void noBatches() {
+        if (batches) System.out.println("Server does not support batched blocks, using putblock/getblock");
+        batches = false;
+    }
+
+    /**
+     * Stop using block part RPCs, after a server turned out to lack them.
+     */
+    public void noParts() {
+        if (parts) System.out.println("Server does not support block parts, moving whole blocks");
+        parts = false;
+    }
+
+    /**
+     * Stop asking for the changes since a cursor, after the server turned out to lack getfileinfomapsince.
+     */
+    public void noCursors() {
+        cursors = false;
+    }
+}
@@ -0,0 +1,207 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Worker threads that move batches of blocks between the client and the server.
+ * The bytes held by queued and running batches are capped, and the
+ * throughput of the run is tracked for the summary.
+ *
+ * Batch room is reserved by the submitting thread and released by the worker running the batch,
+ * so a worker must never wait for it: the room may be held by batches queued behind that worker.
+ * Parts of large blocks are read and sent by the workers themselves, so they have a budget of
+ * their own that is only held by running tasks, one part at a time.
+ */
+public class TransferPool {
+
+    private final ExecutorService workers;
+    private final Semaphore inFlight; // One permit per byte of block data held by a batch
+    private final Semaphore partsInFlight; // One permit per byte of block parts held by running tasks
+    private final int maxInFlightBytes;
+    private final ThreadLocal<Boolean> onWorker = ThreadLocal.withInitial(() -> false);
+
+    private final AtomicLong blocksUploaded = new AtomicLong();
+    private final AtomicLong bytesUploaded = new AtomicLong();
+    private final AtomicLong blocksDownloaded = new AtomicLong();
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    private final AtomicLong blocksCopied = new AtomicLong();
+    private final AtomicLong bytesCopied = new AtomicLong();
+    private final AtomicLong blocksOnServer = new AtomicLong(); // Upload blocks skipped as the server had them
+    private final AtomicLong bytesOnServer = new AtomicLong();
+    private final AtomicLong blocksRepeated = new AtomicLong(); // Upload blocks skipped as already sent this sync
+    private final AtomicLong bytesRepeated = new AtomicLong();
+    private final AtomicLong bytesBeforeCompression = new AtomicLong();
+    private final AtomicLong bytesAfterCompression = new AtomicLong();
+    private volatile long startTime = System.nanoTime();
+
+    /**
+     * Constructor.
+     * @param workerCount Number of transfer threads
+     * @param maxInFlightBytes Cap on the block bytes held by queued and running batches,
+     *                         and separately on the bytes of block parts
+     */
+    public TransferPool(int workerCount, int maxInFlightBytes) {
+        this.maxInFlightBytes = maxInFlightBytes;
+        inFlight = new Semaphore(maxInFlightBytes);
+        partsInFlight = new Semaphore(maxInFlightBytes);
+        workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(() -> {
+                onWorker.set(true);
+                runnable.run();
+            }, "transfer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reserve room for a batch before submitting it, waiting while the in-flight cap is reached.
+     * A batch larger than the cap reserves the whole cap.
+     * @param bytes Size of the batch
+     * @return Number of bytes reserved, to be passed to release
+     * @throws IllegalStateException If called from a transfer thread, which could wait forever
+     */
+    public int acquire(long bytes) throws InterruptedException {
+        if (onWorker.get()) {
+            throw new IllegalStateException("Batch room must be reserved before submitting, not on a transfer thread");
+        }
+        int permits = (int) Math.min(bytes, maxInFlightBytes);
+        inFlight.acquire(permits);
+        return permits;
+    }
+
+    /**
+     * Give back the room reserved for a batch.
+     * @param permits Number of bytes returned by acquire
+     */
+    public void release(int permits) {
+        inFlight.release(permits);
+    }
+
+    /**
+     * Reserve room for a part of a large block read or sent by the calling task, waiting while
+     * the parts cap is reached. Must be released before the task reserves room for another part.
+     * @param bytes Size of the part
+     * @return Number of bytes reserved, to be passed to releasePart
+     */
+    public int acquirePart(long bytes) throws InterruptedException {
+        int permits = (int) Math.min(bytes, maxInFlightBytes);
+        partsInFlight.acquire(permits);
+        return permits;
+    }
+
+    /**
+     * Give back the room reserved for a part.
+     * @param permits Number of bytes returned by acquirePart
+     */
+    public void releasePart(int permits) {
+        partsInFlight.release(permits);
+    }
+
+    /**
+     * Run a task on a transfer thread.
+     * @param task The task to run
+     * @return Future of the task result
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        return workers.submit(task);
+    }
+
+    /**
+     * Count blocks put on the server.
+     * @param blocks Number of blocks
+     * @param bytes Total size of the blocks
+     */
+    public void recordUpload(int blocks, long bytes) {
+        blocksUploaded.addAndGet(blocks);
+        bytesUploaded.addAndGet(bytes);
+    }
+
+    /**
+     * Count blocks received from the server.
+     * @param blocks Number of blocks
+     * @param bytes Total size of the blocks
+     */
+    public void recordDownload(int blocks, long bytes) {
+        blocksDownloaded.addAndGet(blocks);
+        bytesDownloaded.addAndGet(bytes);
+    }
+
+    /**
+     * Count blocks of downloads copied from local files instead of fetched.
+     * @param blocks Number of blocks
+     * @param bytes Total size of the blocks
+     */
+    public void recordLocalCopy(int blocks, long bytes) {
+        blocksCopied.addAndGet(blocks);
+        bytesCopied.addAndGet(bytes);
+    }
+
+    /**
+     * Count blocks of uploads not sent because the server already had them.
+     * @param blocks Number of blocks
+     * @param bytes Total size of the blocks
+     */
+    public void recordOnServer(int blocks, long bytes) {
+        blocksOnServer.addAndGet(blocks);
+        bytesOnServer.addAndGet(bytes);
+    }
+
+    /**
+     * Count blocks of uploads not sent because the same block is sent for another file or offset in this sync.
+     * @param blocks Number of blocks
+     * @param bytes Total size of the blocks
+     */
+    public void recordRepeated(int blocks, long bytes) {
+        blocksRepeated.addAndGet(blocks);
+        bytesRepeated.addAndGet(bytes);
+    }
+
+    /**
+     * Count blocks moved compressed, already counted by recordUpload or recordDownload.
+     * @param rawBytes Total size of the blocks
+     * @param encodedBytes Total size of the blocks as sent
+     */
+    public void recordCompression(long rawBytes, long encodedBytes) {
+        bytesBeforeCompression.addAndGet(rawBytes);
+        bytesAfterCompression.addAndGet(encodedBytes);
+    }
+
+    /**
+     * Stop the transfer threads once their queued tasks are done.
+     */
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    /**
+     * Start counting the blocks moved and the throughput from zero, e.g. for the next sync of a long-running client.
+     */
+    public void resetSummary() {
+        for (AtomicLong counter : new AtomicLong[] {blocksUploaded, bytesUploaded, blocksDownloaded, bytesDownloaded,
+                blocksCopied, bytesCopied, blocksOnServer, bytesOnServer, blocksRepeated, bytesRepeated,
+                bytesBeforeCompression, bytesAfterCompression}) {
+            counter.set(0);
+        }
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * Print the blocks and bytes moved so far and the resulting throughput.
+     */
+    public void printSummary() {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        long bytes = bytesUploaded.get() + bytesDownloaded.get();
+        System.out.println("Uploaded " + blocksUploaded.get() + " blocks (" + bytesUploaded.get() + " bytes)");
+        if (blocksOnServer.get() + blocksRepeated.get() > 0) {
+            System.out.println("Skipped " + (bytesOnServer.get() + bytesRepeated.get()) + " bytes through dedup: "
+                    + blocksOnServer.get() + " blocks (" + bytesOnServer.get() + " bytes) already on the server, "
+                    + blocksRepeated.get() + " blocks (" + bytesRepeated.get() + " bytes) repeated in this sync");
+        }
+        System.out.println("Downloaded " + blocksDownloaded.get() + " blocks (" + bytesDownloaded.get() + " bytes)");
+        System.out.println("Copied " + blocksCopied.get() + " blocks (" + bytesCopied.get() + " bytes) from local files");
+        if (bytesBeforeCompression.get() > 0) {
+            System.out.println("Compressed " + bytesBeforeCompression.get() + " bytes to " + bytesAfterCompression.get() + " bytes");
+        }
+        System.out.println(String.format("Transferred %d bytes in %.2f s (%.2f MB/s)", bytes, seconds, bytes / seconds / (1024 * 1024)));
+    }
+}
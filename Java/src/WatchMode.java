@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a base directory synced: its files are synced once they stopped changing for the
+ * debounce interval, and the server is polled for changes every poll interval.
+ * The index is kept in memory by the client and written every index flush interval and on exit.
+ */
+public class WatchMode {
+
+    // Longest a sync of changed files is put off while they keep changing, in debounce intervals
+    private static final int MAX_DEBOUNCES = 10;
+
+    private final long pollInterval; // Milliseconds between checks of the server for changes
+    private final long debounce; // Milliseconds without file events before changed files are synced
+    private final long indexFlushInterval; // Milliseconds between writes of the index
+
+    /**
+     * What watch mode syncs: the base directory of the client and its index.
+     */
+    public interface Target {
+        /**
+         * Sync the base directory with the server once.
+         * @param changed Names of the files that may have changed, null to scan the base directory,
+         *                or empty to only get the changes on the server
+         * @return False if nothing changed locally or on the server
+         */
+        boolean sync(List<String> changed);
+
+        /**
+         * Write the index and the stat cache.
+         */
+        void writeIndex();
+
+        /**
+         * Check if a file in the base directory belongs to the client rather than being synced.
+         * @param filename Name of the file
+         * @return True if changes of the file are not synced
+         */
+        boolean isOwnFile(String filename);
+    }
+
+    /**
+     * Constructor.
+     * @param pollInterval Milliseconds between checks of the server for changes
+     * @param debounce Milliseconds without file events before changed files are synced
+     * @param indexFlushInterval Milliseconds between writes of the index
+     */
+    public WatchMode(long pollInterval, long debounce, long indexFlushInterval) {
+        this.pollInterval = pollInterval;
+        this.debounce = debounce;
+        this.indexFlushInterval = indexFlushInterval;
+    }
+
+    /**
+     * Watch the base directory and poll the server until the client is stopped.
+     * @param dir Base directory
+     * @param target Client syncing the base directory
+     */
+    public void run(Path dir, Target target) {
+        Object indexLock = new Object(); // Held while the index is changed or written
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            synchronized (indexLock) {
+                target.writeIndex();
+            }
+        }));
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            System.out.println("Watching " + dir + " for changes, polling the server every " + pollInterval + " ms");
+            Set<String> changed = new HashSet<String>();
+            boolean rescan = false; // True if events were lost, so the whole directory has to be scanned
+            long firstChange = 0;
+            long nextPoll = System.currentTimeMillis() + pollInterval;
+            long nextFlush = System.currentTimeMillis() + indexFlushInterval;
+            boolean flushed = true;
+            while (true) {
+                long now = System.currentTimeMillis();
+                boolean pending = rescan || !changed.isEmpty();
+                long wait = pending ? Math.min(debounce, firstChange + MAX_DEBOUNCES * debounce - now) : nextPoll - now;
+                if (!flushed) wait = Math.min(wait, nextFlush - now);
+                WatchKey key = watcher.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            rescan = true;
+                        } else {
+                            String filename = ((Path) event.context()).getFileName().toString();
+                            if (!target.isOwnFile(filename)) changed.add(filename);
+                        }
+                    }
+                    key.reset();
+                    if (!pending && (rescan || !changed.isEmpty())) firstChange = System.currentTimeMillis();
+                    // Wait for the files to stop changing, unless they have been changing for too long
+                    if (System.currentTimeMillis() < firstChange + MAX_DEBOUNCES * debounce) continue;
+                }
+                now = System.currentTimeMillis();
+                boolean synced = false;
+                synchronized (indexLock) {
+                    if (rescan || !changed.isEmpty()) {
+                        synced = target.sync(rescan ? null : new ArrayList<String>(changed));
+                        changed.clear();
+                        rescan = false;
+                        nextPoll = now + pollInterval;
+                    } else if (now >= nextPoll) {
+                        synced = target.sync(Collections.<String>emptyList());
+                        nextPoll = now + pollInterval;
+                    }
+                    if (synced && flushed) {
+                        flushed = false;
+                        nextFlush = now + indexFlushInterval;
+                    }
+                    if (!flushed && now >= nextFlush) {
+                        target.writeIndex();
+                        flushed = true;
+                    }
+                }
+            }
+        } catch (IOException | ClosedWatchServiceException e) {
+            System.err.println("Watch base directory: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
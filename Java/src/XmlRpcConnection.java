@@ -0,0 +1,33 @@
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Vector;
+import org.apache.xmlrpc.XmlRpcClient;
+import org.apache.xmlrpc.XmlRpcException;
+
+/**
+ * Connection to the server over XML-RPC.
+ */
+public class XmlRpcConnection implements RpcClient {
+
+    private final XmlRpcClient client;
+
+    /**
+     * Constructor.
+     * @param url URL of the server's XML-RPC endpoint
+     */
+    public XmlRpcConnection(String url) throws MalformedURLException {
+        client = new XmlRpcClient(url);
+    }
+
+    /**
+     * Call a method on the server.
+     * XmlRpcClient returns server faults as its result, so they are thrown here instead.
+     */
+    public Object execute(String method, Vector params) throws XmlRpcException, IOException {
+        Object result = client.execute(method, params);
+        if (result instanceof XmlRpcException) {
+            throw (XmlRpcException) result;
+        }
+        return result;
+    }
+}
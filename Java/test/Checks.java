@@ -0,0 +1,96 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+/**
+ * Runs the cases of a test program and reports them: each case prints "ok" or "FAIL" with
+ * the reason, and finish exits with status 1 if any case failed, so ant's failonerror stops the build.
+ */
+public class Checks {
+
+    private final String program;
+    private int passed;
+    private int failed;
+
+    /**
+     * A test case, failing by throwing.
+     */
+    public interface Case {
+        void run() throws Exception;
+    }
+
+    /**
+     * Constructor.
+     * @param program Name of the test program
+     */
+    public Checks(String program) {
+        this.program = program;
+    }
+
+    /**
+     * Run one case and report it.
+     * @param name Name of the case
+     * @param body The case
+     */
+    public void run(String name, Case body) {
+        try {
+            body.run();
+            passed++;
+            System.out.println("ok   " + program + ": " + name);
+        } catch (Throwable e) {
+            failed++;
+            System.out.println("FAIL " + program + ": " + name + ": " + e);
+            e.printStackTrace(System.out);
+        }
+    }
+
+    /**
+     * Print the totals and exit, with status 1 if a case failed.
+     */
+    public void finish() {
+        System.out.println(program + ": " + passed + " passed, " + failed + " failed");
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    /**
+     * Fail the running case unless the condition holds.
+     * @param condition Condition that must hold
+     * @param format Message format, as for String.format
+     * @param args Message arguments
+     */
+    public static void check(boolean condition, String format, Object... args) {
+        if (!condition) throw new AssertionError(String.format(format, args));
+    }
+
+    /**
+     * Fail the running case unless the values are equal.
+     * @param expected Expected value
+     * @param actual Actual value
+     * @param what What the value is, for the message
+     */
+    public static void checkEquals(Object expected, Object actual, String what) {
+        check(expected == null ? actual == null : expected.equals(actual), "%s: expected %s, got %s", what, expected, actual);
+    }
+
+    /**
+     * Create an empty temporary directory.
+     * @param prefix Prefix of its name
+     * @return The directory
+     */
+    public static File tempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    /**
+     * Append bytes to a file, like a write cut short by a crash.
+     * @param file File to append to
+     * @param bytes Bytes to append
+     */
+    public static void append(File file, byte[] bytes) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(out.length());
+            out.write(bytes);
+        }
+    }
+}
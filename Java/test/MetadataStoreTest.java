@@ -0,0 +1,118 @@
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Crash recovery of the MetadataStore: acknowledged updates come back from the snapshot and the
+ * write-ahead log when a store is reopened without being closed, and a torn record at the end
+ * of the log is dropped without losing the records before it or the ones appended after recovery.
+ *
+ * Usage: java MetadataStoreTest
+ */
+public class MetadataStoreTest {
+
+    private static final int FILES = 20;
+    private static final int UPDATES = 100;
+
+    public static void main(String[] args) {
+        Checks checks = new Checks("MetadataStoreTest");
+
+        checks.run("acknowledged updates survive a crash", () -> {
+            File dir = Checks.tempDir("metastoretest");
+            Map<String, Vector> expected = updateFiles(new MetadataStore(dir, true, 10, 100000), 1);
+            // Reopened without close, as after a crash: no snapshot was written
+            checkEquals(expected, new MetadataStore(dir, true, 10, 100000));
+        });
+
+        checks.run("snapshot and the log after it are both replayed", () -> {
+            File dir = Checks.tempDir("metastoretest");
+            Map<String, Vector> expected = updateFiles(new MetadataStore(dir, true, 10, 7), 1);
+            checkEquals(expected, new MetadataStore(dir, true, 10, 7));
+        });
+
+        checks.run("torn log record is truncated", () -> {
+            File dir = Checks.tempDir("metastoretest");
+            Map<String, Vector> expected = updateFiles(new MetadataStore(dir, true, 10, 100000), 1);
+            // Header of a record claiming 1000 bytes, cut short after 10 of them
+            ByteBuffer torn = ByteBuffer.allocate(12 + 10);
+            torn.putInt(0x534d5232).putInt(1000).putInt(0);
+            Checks.append(newestLog(dir), torn.array());
+            MetadataStore recovered = new MetadataStore(dir, true, 10, 100000);
+            checkEquals(expected, recovered);
+            // Records appended after the truncation are replayed by the next recovery
+            Vector<String> hashlist = hashlist(UPDATES + 1);
+            Checks.check(recovered.update("after-torn", 1, hashlist), "update after recovery was refused");
+            expected.put("after-torn", fileinfo(1, hashlist));
+            checkEquals(expected, new MetadataStore(dir, true, 10, 100000));
+        });
+
+        checks.run("versions do not go back after recovery", () -> {
+            File dir = Checks.tempDir("metastoretest");
+            Map<String, Vector> expected = updateFiles(new MetadataStore(dir, true, 10, 100000), 1);
+            MetadataStore recovered = new MetadataStore(dir, true, 10, 100000);
+            for (Map.Entry<String, Vector> file : expected.entrySet()) {
+                int version = (Integer) file.getValue().get(0);
+                Checks.check(!recovered.update(file.getKey(), version, hashlist(0)),
+                        "version %d of %s was accepted again", version, file.getKey());
+            }
+            checkEquals(expected, recovered);
+        });
+
+        checks.run("malformed cursors get the full map", () -> {
+            MetadataStore store = new MetadataStore(Checks.tempDir("metastoretest"), true, 10, 100000);
+            Map<String, Vector> expected = updateFiles(store, 1);
+            String cursor = (String) store.changesSince("").get("cursor");
+            String prefix = cursor.substring(0, cursor.lastIndexOf(':') + 1);
+            for (String malformed : new String[] {prefix + "x", prefix + "-1", "a:b:c", "garbage"}) {
+                Hashtable<String, Object> changes = store.changesSince(malformed);
+                Checks.checkEquals(true, changes.get("full"), "full for cursor " + malformed);
+                Checks.checkEquals(expected, changes.get("files"), "files for cursor " + malformed);
+            }
+            Checks.checkEquals(false, store.changesSince(cursor).get("full"), "full for a current cursor");
+            store.close();
+        });
+
+        checks.finish();
+    }
+
+    /**
+     * Apply UPDATES updates to FILES files, each acknowledged before the next.
+     * @return The map the store must hold
+     */
+    private static Map<String, Vector> updateFiles(MetadataStore store, int firstVersion) throws Exception {
+        Map<String, Vector> expected = new HashMap<String, Vector>();
+        for (int i = 0; i < UPDATES; i++) {
+            String filename = "file" + (i % FILES);
+            int version = firstVersion + i / FILES;
+            Vector<String> hashlist = hashlist(i);
+            Checks.check(store.update(filename, version, hashlist), "update %d was refused", i);
+            expected.put(filename, fileinfo(version, hashlist));
+        }
+        return expected;
+    }
+
+    private static void checkEquals(Map<String, Vector> expected, MetadataStore store) {
+        Checks.checkEquals(expected, store.getAll(), "recovered map");
+    }
+
+    private static Vector<String> hashlist(int seed) {
+        Vector<String> hashlist = new Vector<String>();
+        for (int i = 0; i <= seed % 3; i++) {
+            hashlist.add(BlockHash.of(new byte[] {(byte) seed, (byte) (seed >> 8), (byte) i}).toHex());
+        }
+        return hashlist;
+    }
+
+    private static Vector fileinfo(int version, Vector<String> hashlist) {
+        Vector fileinfo = new Vector();
+        fileinfo.add(version);
+        fileinfo.add(hashlist);
+        return fileinfo;
+    }
+
+    private static File newestLog(File dir) {
+        String[] logs = dir.list((parent, name) -> name.startsWith("meta-") && name.endsWith(".wal"));
+        Arrays.sort(logs);
+        return new File(dir, logs[logs.length - 1]);
+    }
+}
@@ -0,0 +1,255 @@
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.*;
+import org.apache.xmlrpc.WebServer;
+
+/**
+ * Safety of the Raft log and node: log matching when a new leader overwrites conflicting
+ * entries, recovery of a torn or compacted log, snapshots that arrive after the entries they
+ * cover were applied, and re-election when the leader of a cluster in this process crashes.
+ *
+ * The single-node cases call the RPC methods of a RaftNode that is never started, so no
+ * timer or replication runs and every step is deterministic.
+ *
+ * Usage: java RaftTest
+ */
+public class RaftTest {
+
+    private static final int BASE_PORT = 18750;
+    private static final long ELECTION_TIMEOUT_MILLIS = 300;
+    private static final long WAIT_MILLIS = 10000;
+    private static final List<String> NODES = Arrays.asList("localhost:1", "localhost:2", "localhost:3");
+
+    public static void main(String[] args) {
+        Checks checks = new Checks("RaftTest");
+
+        checks.run("conflicting entries are truncated", () -> {
+            File dir = Checks.tempDir("rafttest");
+            RaftNode node = follower(dir);
+            checkSuccess(true, node.appendEntries(1, NODES.get(0), 0, 0, records(entry(1, "a"), entry(1, "b"), entry(1, "c")), 0));
+            // The leader of term 2 never had entries 2 and 3 of term 1
+            checkSuccess(true, node.appendEntries(2, NODES.get(2), 1, 1, records(entry(2, "x")), 0));
+            RaftLog log = new RaftLog(new File(dir, "raft"));
+            Checks.checkEquals(2, log.lastIndex(), "last index after a crash");
+            Checks.checkEquals(1, log.term(1), "term of entry 1");
+            Checks.checkEquals(2, log.term(2), "term of entry 2");
+            Checks.checkEquals("x", log.get(2).filename, "file of entry 2");
+        });
+
+        checks.run("entries after a mismatched previous entry are refused", () -> {
+            File dir = Checks.tempDir("rafttest");
+            RaftNode node = follower(dir);
+            checkSuccess(true, node.appendEntries(1, NODES.get(0), 0, 0, records(entry(1, "a"), entry(1, "b")), 0));
+            Hashtable<String, Object> reply = node.appendEntries(2, NODES.get(2), 2, 2, records(entry(2, "x")), 0);
+            checkSuccess(false, reply);
+            Checks.check((Integer) reply.get("conflictIndex") <= 2, "conflict index %s is after the mismatch", reply.get("conflictIndex"));
+            // Missing entries are refused too, pointing the leader at the end of the log
+            reply = node.appendEntries(2, NODES.get(2), 5, 2, records(entry(2, "y")), 0);
+            checkSuccess(false, reply);
+            Checks.checkEquals(3, reply.get("conflictIndex"), "conflict index of a gap");
+            RaftLog log = new RaftLog(new File(dir, "raft"));
+            Checks.checkEquals(2, log.lastIndex(), "last index");
+            Checks.checkEquals("b", log.get(2).filename, "file of entry 2");
+        });
+
+        checks.run("entries of a stale leader are refused", () -> {
+            File dir = Checks.tempDir("rafttest");
+            RaftNode node = follower(dir);
+            checkSuccess(true, node.appendEntries(3, NODES.get(0), 0, 0, records(entry(3, "a")), 0));
+            checkSuccess(false, node.appendEntries(2, NODES.get(2), 1, 3, records(entry(2, "x")), 0));
+            checkSuccess(false, node.appendEntries(2, NODES.get(2), 0, 0, records(entry(2, "x")), 0));
+            RaftLog log = new RaftLog(new File(dir, "raft"));
+            Checks.checkEquals(1, log.lastIndex(), "last index");
+            Checks.checkEquals(3, log.term(1), "term of entry 1");
+            Checks.checkEquals(3, log.currentTerm(), "current term");
+        });
+
+        checks.run("torn log record is truncated", () -> {
+            File dir = Checks.tempDir("rafttest");
+            RaftLog log = new RaftLog(dir);
+            for (int i = 1; i <= 10; i++) log.append(entry(1, "file" + i));
+            log.sync(10);
+            // Header of a record claiming 1000 bytes, cut short after 10 of them
+            ByteBuffer torn = ByteBuffer.allocate(12 + 10);
+            torn.putInt(0x53524c31).putInt(1000).putInt(0);
+            Checks.append(new File(dir, "raft.log"), torn.array());
+            RaftLog recovered = new RaftLog(dir);
+            Checks.checkEquals(10, recovered.lastIndex(), "last index after the torn record");
+            Checks.checkEquals(11, recovered.append(entry(2, "file11")), "index appended after recovery");
+            recovered.sync(11);
+            recovered = new RaftLog(dir);
+            Checks.checkEquals(11, recovered.lastIndex(), "last index after a second recovery");
+            for (int i = 1; i <= 11; i++) {
+                Checks.checkEquals("file" + i, recovered.get(i).filename, "file of entry " + i);
+            }
+        });
+
+        checks.run("compaction survives a crash", () -> {
+            File dir = Checks.tempDir("rafttest");
+            RaftLog log = new RaftLog(dir);
+            for (int i = 1; i <= 10; i++) log.append(entry(i <= 5 ? 1 : 2, "file" + i));
+            log.sync(10);
+            log.compact(6);
+            RaftLog recovered = new RaftLog(dir);
+            Checks.checkEquals(6, recovered.snapshotIndex(), "snapshot index");
+            Checks.checkEquals(2, recovered.term(6), "term of the snapshot entry");
+            Checks.checkEquals(-1, recovered.term(5), "term of a compacted entry");
+            Checks.checkEquals(10, recovered.lastIndex(), "last index");
+            for (int i = 7; i <= 10; i++) {
+                Checks.checkEquals("file" + i, recovered.get(i).filename, "file of entry " + i);
+            }
+        });
+
+        checks.run("late snapshot does not drop applied entries", () -> {
+            // The node applied and compacted entries 1 to 8, then got entries 9 and 10
+            File dir = Checks.tempDir("rafttest");
+            MetadataStore store = new MetadataStore(new File(dir, "meta"), false, 10, 100000);
+            RaftLog log = new RaftLog(new File(dir, "raft"));
+            for (int i = 1; i <= 10; i++) {
+                log.append(entry(1, "file" + i));
+                if (i <= 8) store.update("file" + i, 1, hashlist(i));
+            }
+            log.sync(10);
+            store.flush();
+            log.compact(8);
+            RaftNode node = new RaftNode(NODES.get(1), NODES, log, store, 1000000, 1000000);
+            // A snapshot of index 5 sent before the node caught up arrives after it did
+            Hashtable<String, Vector> files = new Hashtable<String, Vector>();
+            for (int i = 1; i <= 5; i++) files.put("file" + i, fileinfo(1, hashlist(i)));
+            checkSuccess(true, node.installSnapshot(1, NODES.get(0), 5, 1, files));
+            Checks.checkEquals(10, log.lastIndex(), "last index");
+            Checks.checkEquals(8, log.snapshotIndex(), "snapshot index");
+            Checks.checkEquals("file10", log.get(10).filename, "file of entry 10");
+        });
+
+        checks.run("snapshot past the end of the log replaces it", () -> {
+            File dir = Checks.tempDir("rafttest");
+            MetadataStore store = new MetadataStore(new File(dir, "meta"), false, 10, 100000);
+            RaftLog log = new RaftLog(new File(dir, "raft"));
+            RaftNode node = new RaftNode(NODES.get(1), NODES, log, store, 1000000, 1000000);
+            checkSuccess(true, node.appendEntries(1, NODES.get(0), 0, 0, records(entry(1, "stale")), 0));
+            Hashtable<String, Vector> files = new Hashtable<String, Vector>();
+            for (int i = 1; i <= 5; i++) files.put("file" + i, fileinfo(1, hashlist(i)));
+            checkSuccess(true, node.installSnapshot(2, NODES.get(0), 20, 2, files));
+            Checks.checkEquals(20, log.snapshotIndex(), "snapshot index");
+            Checks.checkEquals(20, log.lastIndex(), "last index");
+            Checks.checkEquals(files, store.getAll(), "map after the snapshot");
+            // The next entries follow the snapshot
+            checkSuccess(true, node.appendEntries(2, NODES.get(0), 20, 2, records(entry(2, "next")), 20));
+            Checks.checkEquals(21, new RaftLog(new File(dir, "raft")).lastIndex(), "last index after a crash");
+        });
+
+        checks.run("crashed leader is replaced and catches up", RaftTest::reelection);
+
+        checks.finish();
+    }
+
+    /**
+     * Start a cluster of three, crash its leader, update through the new leader, restore the
+     * old one and check that every node ends with the same map.
+     */
+    private static void reelection() throws Exception {
+        List<String> addresses = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) addresses.add("localhost:" + (BASE_PORT + i));
+        List<Server> servers = new ArrayList<Server>();
+        List<MetadataStore> stores = new ArrayList<MetadataStore>();
+        List<WebServer> webServers = new ArrayList<WebServer>();
+        try {
+            for (int i = 0; i < 3; i++) {
+                File dir = Checks.tempDir("rafttest");
+                MetadataStore store = new MetadataStore(new File(dir, "meta"), false, 10, 100000);
+                RaftNode raft = new RaftNode(addresses.get(i), addresses, new RaftLog(new File(dir, "raft")), store,
+                        ELECTION_TIMEOUT_MILLIS, 100000);
+                Server server = new Server(null, store, raft, null);
+                WebServer webServer = new WebServer(BASE_PORT + i);
+                webServer.addHandler("surfstore", server);
+                webServer.start();
+                raft.start();
+                servers.add(server);
+                stores.add(store);
+                webServers.add(webServer);
+            }
+            int first = awaitLeader(servers, -1);
+            Checks.check(servers.get(first).updatefile("before", 1, hashlist(1)), "update before the crash was refused");
+            servers.get(first).crash();
+            int second = awaitLeader(servers, first);
+            Checks.check(servers.get(second).updatefile("after", 1, hashlist(2)), "update after the crash was refused");
+            Checks.check(!servers.get(second).updatefile("before", 1, hashlist(3)), "stale version was accepted by the new leader");
+            servers.get(first).restore();
+            Hashtable<String, Vector> expected = new Hashtable<String, Vector>();
+            expected.put("before", fileinfo(1, hashlist(1)));
+            expected.put("after", fileinfo(1, hashlist(2)));
+            long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+            for (MetadataStore store : stores) {
+                while (!expected.equals(store.getAll()) && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(50);
+                }
+                Checks.checkEquals(expected, store.getAll(), "map of a node");
+            }
+            int leaders = 0;
+            for (Server server : servers) {
+                if (server.isLeader()) leaders++;
+            }
+            Checks.check(leaders <= 1, "%d leaders at once", leaders);
+        } finally {
+            // Crash first so the nodes stop sending heartbeats to servers already shut down
+            for (Server server : servers) server.crash();
+            for (WebServer webServer : webServers) webServer.shutdown();
+        }
+    }
+
+    /**
+     * Wait for one of the servers other than the given one to lead.
+     * @return Index of the leader
+     */
+    private static int awaitLeader(List<Server> servers, int except) throws Exception {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            for (int i = 0; i < servers.size(); i++) {
+                if (i != except && servers.get(i).isLeader()) return i;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("No leader elected in " + WAIT_MILLIS + " ms");
+    }
+
+    /**
+     * A follower of NODES that is never started.
+     */
+    private static RaftNode follower(File dir) throws Exception {
+        MetadataStore store = new MetadataStore(new File(dir, "meta"), false, 10, 100000);
+        return new RaftNode(NODES.get(1), NODES, new RaftLog(new File(dir, "raft")), store, 1000000, 1000000);
+    }
+
+    private static void checkSuccess(boolean expected, Hashtable<String, Object> reply) {
+        Checks.checkEquals(expected, reply.get("success"), "success of the reply");
+    }
+
+    private static RaftLog.Entry entry(int term, String filename) {
+        return new RaftLog.Entry(term, filename, 1, HashList.fromHex(hashlist(filename.hashCode())));
+    }
+
+    /**
+     * Encode entries as appendentries sends them.
+     */
+    private static byte[] records(RaftLog.Entry... entries) throws Exception {
+        RaftLog scratch = new RaftLog(Checks.tempDir("rafttest"));
+        for (RaftLog.Entry entry : entries) scratch.append(entry);
+        byte[] records = scratch.encode(1, entries.length, Integer.MAX_VALUE).getValue();
+        scratch.close();
+        return records;
+    }
+
+    private static Vector<String> hashlist(int seed) {
+        Vector<String> hashlist = new Vector<String>();
+        hashlist.add(BlockHash.of(ByteBuffer.allocate(4).putInt(seed).array()).toHex());
+        return hashlist;
+    }
+
+    private static Vector fileinfo(int version, Vector<String> hashlist) {
+        Vector fileinfo = new Vector();
+        fileinfo.add(version);
+        fileinfo.add(hashlist);
+        return fileinfo;
+    }
+}